@@ -0,0 +1,60 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пакетные операции: addAll неотсортированного пакета в 10% размера набора и retainAll с набором той же
+ * реализации, содержащим каждый второй ключ. Целевой набор копируется перед каждым вызовом вне замера.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class BulkBenchmark {
+    @Param({"AVLTree", "FatLeafAVLTree", "java.util.TreeSet", "java.util.concurrent.ConcurrentSkipListSet"})
+    public String implementation;
+
+    @Param({"Integer", "String"})
+    public String keyType;
+
+    @Param({"RANDOM", "SEQUENTIAL", "ZIPF"})
+    public String distribution;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    NavigableSet<Object> source;
+    List<Object> batch;
+    NavigableSet<Object> everyOther;
+    NavigableSet<Object> target;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = Keys.filled(implementation, keyType, distribution, size);
+        int[] indices = Keys.indices(distribution, size, Math.max(1, size / 10), 13);
+        batch = new ArrayList<>(indices.length);
+        for (int index : indices) batch.add(Keys.absentKey(index, keyType));
+        everyOther = Keys.newSet(implementation);
+        for (int i = 0; i < size; i += 2) everyOther.add(Keys.key(i, keyType));
+    }
+
+    @Setup(Level.Invocation)
+    public void copyTarget() {
+        target = Keys.copyOf(implementation, source);
+    }
+
+    @Benchmark
+    public boolean addAll() {
+        return target.addAll(batch);
+    }
+
+    @Benchmark
+    public boolean retainAll() {
+        return target.retainAll(everyOther);
+    }
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.NavigableSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Масштабирование ConcurrentAVLTree против ConcurrentSkipListSet: 90% чтений (contains и floor поровну),
+ * 5% add и 5% remove по случайным ключам общего набора. Методы отличаются только числом потоков;
+ * один шаг масштаба можно запустить отдельно, например
+ * java -jar target/benchmarks.jar ConcurrentBenchmark.threads08 -p size=100000
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class ConcurrentBenchmark {
+    @Param({"ConcurrentAVLTree", "java.util.concurrent.ConcurrentSkipListSet"})
+    public String implementation;
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    NavigableSet<Object> set;
+
+    // половина ключей диапазона в наборе: add и remove попадают и в присутствующие, и в отсутствующие
+    @Setup(Level.Trial)
+    public void setUp() {
+        set = Keys.newSet(implementation);
+        for (int i = 0; i < size; i += 2) set.add(i);
+    }
+
+    private Object operation() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Integer key = random.nextInt(size);
+        int operation = random.nextInt(100);
+        if (operation < 45) return set.contains(key);
+        if (operation < 90) return set.floor(key);
+        if (operation < 95) return set.add(key);
+        return set.remove(key);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object threads01() {
+        return operation();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Object threads02() {
+        return operation();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object threads04() {
+        return operation();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object threads08() {
+        return operation();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object threads16() {
+        return operation();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public Object threads32() {
+        return operation();
+    }
+}
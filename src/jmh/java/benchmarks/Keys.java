@@ -0,0 +1,74 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+
+/**
+ * Общие для бенчмарков ключи и наборы. Ключ с номером i - число 2i (или строка с ним), поэтому
+ * нечетные номера дают ключи, которых заведомо нет в наборе. Реализации создаются по имени класса:
+ * деревья лежат в пакете по умолчанию, и сослаться на них из пакета бенчмарков напрямую нельзя.
+ */
+final class Keys {
+    private Keys() {
+    }
+
+    static Object key(long index, String keyType) {
+        long value = 2 * index;
+        return keyType.equals("String") ? String.format("key%012d", value) : (Object) (int) value;
+    }
+
+    static Object absentKey(long index, String keyType) {
+        long value = 2 * index + 1;
+        return keyType.equals("String") ? String.format("key%012d", value) : (Object) (int) value;
+    }
+
+    // номера обращений: подряд, равномерно или по Ципфу (s = 1) с перемешанными рангами,
+    // чтобы горячие ключи были разбросаны по всему дереву
+    static int[] indices(String distribution, int size, int count, long seed) {
+        Random random = new Random(seed);
+        int[] result = new int[count];
+        int start = random.nextInt(size);
+        for (int i = 0; i < count; i++) {
+            switch (distribution) {
+                case "SEQUENTIAL":
+                    result[i] = (start + i) % size;
+                    break;
+                case "ZIPF":
+                    long rank = (long) Math.exp(random.nextDouble() * Math.log(size + 1.0)) - 1;
+                    result[i] = (int) Math.floorMod(rank * 2654435761L, (long) size);
+                    break;
+                default:
+                    result[i] = random.nextInt(size);
+            }
+        }
+        return result;
+    }
+
+    static NavigableSet<Object> newSet(String implementation) {
+        try {
+            return (NavigableSet<Object>) Class.forName(implementation).getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException(implementation, e);
+        }
+    }
+
+    static NavigableSet<Object> copyOf(String implementation, SortedSet<Object> source) {
+        try {
+            return (NavigableSet<Object>) Class.forName(implementation).getConstructor(SortedSet.class).newInstance(source);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException(implementation, e);
+        }
+    }
+
+    // набор из ключей с номерами 0..size-1; при SEQUENTIAL ключи добавляются по возрастанию, иначе вперемешку
+    static NavigableSet<Object> filled(String implementation, String keyType, String distribution, int size) {
+        Object[] keys = new Object[size];
+        for (int i = 0; i < size; i++) keys[i] = key(i, keyType);
+        if (!distribution.equals("SEQUENTIAL")) Collections.shuffle(Arrays.asList(keys), new Random(size));
+        NavigableSet<Object> set = newSet(implementation);
+        for (Object key : keys) set.add(key);
+        return set;
+    }
+}
@@ -0,0 +1,118 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.NavigableSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Точечные операции и обход: AVLTree и FatLeafAVLTree против TreeSet и ConcurrentSkipListSet на одинаковых ключах.
+ * Полная матрица параметров долгая; для быстрой проверки сузьте ее, например
+ * java -jar target/benchmarks.jar SetBenchmark -p size=1000 -p keyType=Integer
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class SetBenchmark {
+    private static final int PROBES = 1 << 14; // число заранее выбранных обращений, степень двойки
+    static final int BATCH = 1024; // вставок/удалений за один вызов add и remove
+
+    @Param({"AVLTree", "FatLeafAVLTree", "java.util.TreeSet", "java.util.concurrent.ConcurrentSkipListSet"})
+    public String implementation;
+
+    @Param({"Integer", "String"})
+    public String keyType;
+
+    @Param({"RANDOM", "SEQUENTIAL", "ZIPF"})
+    public String distribution;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    NavigableSet<Object> set;
+    Object[] hits; // ключи, которые есть в наборе
+    Object[] misses; // соседние с ними ключи, которых в наборе нет
+    Object[] rangeEnds; // для каждого обращения - ключ на 1% размера дальше
+    Object[] batch; // отсутствующие ключи для add и remove
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        set = Keys.filled(implementation, keyType, distribution, size);
+        int[] indices = Keys.indices(distribution, size, PROBES, 42);
+        hits = new Object[PROBES];
+        misses = new Object[PROBES];
+        rangeEnds = new Object[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            hits[i] = Keys.key(indices[i], keyType);
+            misses[i] = Keys.absentKey(indices[i], keyType);
+            rangeEnds[i] = Keys.key(indices[i] + Math.max(1, size / 100), keyType);
+        }
+        int[] batchIndices = Keys.indices(distribution, size, BATCH, 7);
+        batch = new Object[BATCH];
+        for (int i = 0; i < BATCH; i++) batch[i] = Keys.absentKey(batchIndices[i], keyType);
+    }
+
+    private int nextProbe() {
+        return next++ & (PROBES - 1);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return set.contains(hits[nextProbe()]);
+    }
+
+    @Benchmark
+    public Object floor() {
+        return set.floor(misses[nextProbe()]);
+    }
+
+    @Benchmark
+    public Object ceiling() {
+        return set.ceiling(misses[nextProbe()]);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+        for (Object element : set) blackhole.consume(element);
+    }
+
+    @Benchmark
+    public int subSetSize() {
+        int probe = nextProbe();
+        return set.subSet(hits[probe], true, rangeEnds[probe], false).size();
+    }
+
+    // перед каждым вызовом пакет удаляется из набора, так что add всегда вставляет новые ключи
+    @State(Scope.Thread)
+    public static class Absent {
+        @Setup(Level.Invocation)
+        public void removeBatch(SetBenchmark benchmark) {
+            for (Object key : benchmark.batch) benchmark.set.remove(key);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Present {
+        @Setup(Level.Invocation)
+        public void addBatch(SetBenchmark benchmark) {
+            for (Object key : benchmark.batch) benchmark.set.add(key);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void add(Absent absent, Blackhole blackhole) {
+        for (Object key : batch) blackhole.consume(set.add(key));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void remove(Present present, Blackhole blackhole) {
+        for (Object key : batch) blackhole.consume(set.remove(key));
+    }
+}
@@ -2,105 +2,423 @@
 import org.jetbrains.annotations.NotNull;
 import org.w3c.dom.ls.LSOutput;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
 
-public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
+public class AVLTree<T> implements NavigableSet<T> {
 
+    private final Comparator<? super T> comparator;
+    // необязательная свертка по поддеревьям: значение элемента и ассоциативная операция; null - свертки нет
+    private final Function<? super T, Object> extractor;
+    private final BinaryOperator<Object> combiner;
     private Node<T> root;
     private int size = 0;
-
-    private static class Node<T> {
-        private T value;
+    private int modCount = 0; // счетчик структурных изменений для fail-fast итераторов
+    // путь от корня при вставке и удалении; высота АВЛ-дерева из 2^31 узлов меньше 64
+    private Node<T>[] path = (Node<T>[]) new Node[64];
+    // метрики включаются при старте JVM (-Davltree.metrics=true); при выключенных static final
+    // условие сворачивается JIT-компилятором и счетчики не стоят ничего
+    private static final boolean METRICS = TreeMetrics.ENABLED;
+    private final TreeMetrics metrics = METRICS ? new TreeMetrics() : null;
+    private long rotations = 0; // только при включенных метриках; его же читает событие JFR avltree.Statistics
+
+    // узлы видны в пакете, чтобы AVLTreeMap хранил значение прямо в узле (подкласс Node)
+    static class Node<T> {
+        T value;
         private int height;
+        private int size; // количество узлов в поддереве, включая сам узел
         private Node<T> left;
         private Node<T> right;
+        private Node<T> parent; // у корня null; по ссылкам на родителя итераторы идут без стека
+        private Object aggregate; // свертка поддерева, если у дерева задан combiner
 
-        private Node(T value) {
+        Node(T value) {
             this.value = value;
             this.height = 1;
+            this.size = 1;
             this.left = null;
             this.right = null;
         }
     }
 
+    public AVLTree() {
+        this((Comparator<? super T>) null);
+    }
+
+    // порядок задается компаратором; null - естественный порядок элементов
+    public AVLTree(Comparator<? super T> comparator) {
+        this.comparator = comparator;
+        this.extractor = null;
+        this.combiner = null;
+    }
+
+    // отсортированный набор загружается за линейное время, без сравнений и поворотов; порядок берется у набора
+    public AVLTree(SortedSet<T> sorted) {
+        this(sorted.comparator());
+        addAll(sorted);
+    }
+
+    /**
+     * Дерево со сверткой: каждый узел хранит combiner-свертку значений extractor по своему поддереву
+     * (пересчитывается при вставке, удалении и поворотах), поэтому aggregate() у дерева и у любого
+     * subSet считается за O(log n). combiner должен быть ассоциативным; null от extractor считается пустым значением.
+     */
+    public <A> AVLTree(Comparator<? super T> comparator, Function<? super T, A> extractor, BinaryOperator<A> combiner) {
+        this.comparator = comparator;
+        this.extractor = (Function<? super T, Object>) Objects.requireNonNull(extractor);
+        this.combiner = (BinaryOperator<Object>) (BinaryOperator<?>) Objects.requireNonNull(combiner);
+    }
+
     T getRootValue() {
         return root.value;
     }
 
-    private Node<T> find(T value) {
-        if (root == null) return null;
-        return find(value, root);
+    // Сравнение для некритичных по скорости мест. Спуски в find, add и remove написаны отдельно для
+    // естественного порядка и для компаратора, чтобы место вызова compareTo/compare оставалось мономорфным.
+    private int compare(T first, T second) {
+        if (METRICS) metrics.comparison();
+        return comparator == null ? ((Comparable<? super T>) first).compareTo(second) : comparator.compare(first, second);
     }
 
-    private Node<T> find(T value, Node<T> current) {
-        int comparision = current.value.compareTo(value);
-        if (comparision == 0)
-            return current;
-        else if (comparision > 0) {
-            if (current.left != null) return find(value, current.left);
-            else return current;
+    Node<T> find(T value) {
+        Comparator<? super T> comparator = this.comparator;
+        Node<T> current = root;
+        int steps = 0;
+        if (comparator == null) {
+            Comparable<? super T> key = (Comparable<? super T>) value;
+            while (current != null) {
+                if (METRICS) steps++;
+                int comparision = key.compareTo(current.value);
+                if (comparision == 0) break;
+                current = comparision < 0 ? current.left : current.right;
+            }
         } else {
-            if (current.right != null) return find(value, current.right);
-            else return current;
+            while (current != null) {
+                if (METRICS) steps++;
+                int comparision = comparator.compare(value, current.value);
+                if (comparision == 0) break;
+                current = comparision < 0 ? current.left : current.right;
+            }
         }
+        if (METRICS) metrics.path(steps);
+        return current;
     }
 
     @Override
     public boolean contains(Object value) {
-        T val = (T) value;
-        Node<T> closest = find(val);
-        return closest != null && closest.value.compareTo(val) == 0;
+        return find((T) value) != null;
     }
 
     @Override
     public boolean add(T value) {
-        if (contains(value)) {
-            return false;
-        }
+        TreeEvents.OperationEvent event = new TreeEvents.OperationEvent();
+        event.begin();
+        boolean added = insert(value);
+        TreeEvents.commit(event, "add", size);
+        return added;
+    }
+
+    private boolean insert(T value) {
         if (root == null) {
-            root = new Node<T>(value);
+            compare(value, value); // проверка типа и null, как в TreeSet
+            setRoot(leaf(value));
             size++;
+            modCount++;
             return true;
         }
-        Node<T> result = add(root, value);
-        if (result != null) {
-            size++;
-            return true;
-        } else return false;
+        Comparator<? super T> comparator = this.comparator;
+        Node<T>[] path = this.path;
+        int depth = 0;
+        int comparision;
+        Node<T> current = root;
+        if (comparator == null) { // один спуск и одно сравнение на уровень
+            Comparable<? super T> key = (Comparable<? super T>) value;
+            do {
+                path[depth++] = current;
+                comparision = key.compareTo(current.value);
+                if (comparision == 0) break;
+                current = comparision < 0 ? current.left : current.right;
+            } while (current != null);
+        } else {
+            do {
+                path[depth++] = current;
+                comparision = comparator.compare(value, current.value);
+                if (comparision == 0) break;
+                current = comparision < 0 ? current.left : current.right;
+            } while (current != null);
+        }
+        if (METRICS) metrics.path(depth);
+        if (comparision == 0) {
+            Arrays.fill(path, 0, depth, null);
+            return false;
+        }
+        if (comparision < 0)
+            setLeft(path[depth - 1], leaf(value));
+        else
+            setRight(path[depth - 1], leaf(value));
+        size++;
+        modCount++;
+        fixPath(depth, 1);
+        return true;
+    }
+
+    // Вставка для AVLTreeMap в два шага без второго спуска: findOrParent находит узел с ключом
+    // (found()) или узел, под которым ключ должен висеть (null в пустом дереве), а attach
+    // подвешивает туда готовый узел и балансирует дерево вверх по ссылкам на родителя.
+    static final class Position<T> {
+        final Node<T> node;
+        final int comparision; // знак сравнения ключа с node: 0 - найден, иначе сторона, куда подвешивать
+        final int modCount;
+
+        private Position(Node<T> node, int comparision, int modCount) {
+            this.node = node;
+            this.comparision = comparision;
+            this.modCount = modCount;
+        }
+
+        boolean found() {
+            return comparision == 0;
+        }
+    }
+
+    Position<T> findOrParent(T key) {
+        Comparator<? super T> comparator = this.comparator;
+        Node<T> current = root;
+        if (current == null) {
+            compare(key, key); // проверка типа и null, как в TreeSet
+            return new Position<>(null, 1, modCount);
+        }
+        int steps = 0;
+        int comparision;
+        if (comparator == null) {
+            Comparable<? super T> comparable = (Comparable<? super T>) key;
+            while (true) {
+                if (METRICS) steps++;
+                comparision = comparable.compareTo(current.value);
+                Node<T> next = comparision < 0 ? current.left : current.right;
+                if (comparision == 0 || next == null) break;
+                current = next;
+            }
+        } else {
+            while (true) {
+                if (METRICS) steps++;
+                comparision = comparator.compare(key, current.value);
+                Node<T> next = comparision < 0 ? current.left : current.right;
+                if (comparision == 0 || next == null) break;
+                current = next;
+            }
+        }
+        if (METRICS) metrics.path(steps);
+        return new Position<>(current, comparision, modCount);
+    }
+
+    // position - результат findOrParent без совпадения; если дерево с тех пор менялось, место устарело
+    void attach(Position<T> position, Node<T> node) {
+        if (position.modCount != modCount) throw new ConcurrentModificationException();
+        Node<T> parent = position.node;
+        if (combiner != null) node.aggregate = extractor.apply(node.value);
+        if (parent == null)
+            setRoot(node);
+        else if (position.comparision < 0)
+            setLeft(parent, node);
+        else
+            setRight(parent, node);
+        size++;
+        modCount++;
+        fixUpward(parent, 1);
+    }
+
+    int modCount() {
+        return modCount;
     }
 
     @Override
     public boolean remove(Object o) {
-        T value = (T) o;
-        if (root == null || !contains(value)) return false;
-        Node<T> node = remove(root, value);
-        if (value == root.value) root = node;
+        TreeEvents.OperationEvent event = new TreeEvents.OperationEvent();
+        event.begin();
+        boolean removed = delete((T) o);
+        TreeEvents.commit(event, "remove", size);
+        return removed;
+    }
+
+    private boolean delete(T value) {
+        Comparator<? super T> comparator = this.comparator;
+        Node<T>[] path = this.path;
+        int depth = 0;
+        Node<T> current = root;
+        if (comparator == null) {
+            Comparable<? super T> key = (Comparable<? super T>) value;
+            while (current != null) {
+                path[depth++] = current;
+                int comparision = key.compareTo(current.value);
+                if (comparision == 0) break;
+                current = comparision < 0 ? current.left : current.right;
+            }
+        } else {
+            while (current != null) {
+                path[depth++] = current;
+                int comparision = comparator.compare(value, current.value);
+                if (comparision == 0) break;
+                current = comparision < 0 ? current.left : current.right;
+            }
+        }
+        if (METRICS) metrics.path(depth);
+        if (current == null) {
+            Arrays.fill(path, 0, depth, null);
+            return false;
+        }
+        int removed = depth - 1;
+        if (current.right == null) { // если правого поддерева нет, то на место узла встает левое поддерево
+            relink(removed, current, current.left);
+            path[removed] = null;
+            depth--;
+        } else { // иначе на место узла встает минимальный элемент правого поддерева
+            Node<T> min = current.right;
+            while (min.left != null) {
+                path[depth++] = min;
+                min = min.left;
+            }
+            if (depth - 1 > removed) { // иначе минимум - правый сын удаляемого узла и балансируется первым
+                setLeft(path[depth - 1], min.right);
+                setRight(min, current.right);
+            }
+            setLeft(min, current.left);
+            min.height = current.height;
+            min.size = current.size;
+            relink(removed, current, min);
+            path[removed] = min;
+        }
         size--;
+        modCount++;
+        fixPath(depth, -1);
         return true;
     }
 
-    private Node<T> add(Node<T> parent, T value) {
-        if (parent == null) {
-            return new Node<T>(value);
+    // балансировка по сохраненному пути снизу вверх; как только высота поддерева перестает меняться,
+    // выше остается только поправить размеры поддеревьев
+    private void fixPath(int depth, int sizeDelta) {
+        Node<T>[] path = this.path;
+        int i = depth - 1;
+        while (i >= 0) {
+            Node<T> node = path[i];
+            path[i--] = null;
+            int oldHeight = node.height;
+            Node<T> balanced = balance(node);
+            if (balanced != node) relink(i + 1, node, balanced);
+            if (balanced.height == oldHeight) break;
+        }
+        while (i >= 0) {
+            if (combiner != null) fixHeight(path[i]); // свертку выше надо пересчитать до самого корня
+            else path[i].size += sizeDelta;
+            path[i--] = null;
+        }
+    }
+
+    // удаление известного узла без спуска от корня: тот же алгоритм, что в remove, но путь вверх
+    // восстанавливается по ссылкам на родителя и ни одного сравнения ключей не делается
+    void removeNode(Node<T> node) {
+        Node<T> start; // самый нижний узел, высота которого могла измениться
+        if (node.right == null) {
+            start = node.parent;
+            replace(node, node.left);
+        } else {
+            Node<T> min = node.right;
+            while (min.left != null) min = min.left;
+            if (min.parent == node) start = min;
+            else {
+                start = min.parent;
+                setLeft(min.parent, min.right);
+                setRight(min, node.right);
+            }
+            setLeft(min, node.left);
+            min.height = node.height;
+            min.size = node.size;
+            replace(node, min);
+        }
+        node.left = node.right = node.parent = null;
+        size--;
+        modCount++;
+        fixUpward(start, -1);
+    }
+
+    // аналог fixPath для пути, который задан ссылками на родителя
+    private void fixUpward(Node<T> node, int sizeDelta) {
+        while (node != null) {
+            Node<T> parent = node.parent;
+            int oldHeight = node.height;
+            Node<T> balanced = balance(node);
+            if (balanced != node) replace(node, balanced, parent);
+            node = parent;
+            if (balanced.height == oldHeight) break;
         }
-        int comparision = parent.value.compareTo(value);
-        if (comparision > 0) {
-            parent.left = add(parent.left, value);
-        } else if (comparision < 0) {
-            parent.right = add(parent.right, value);
+        for (; node != null; node = node.parent) {
+            if (combiner != null) fixHeight(node);
+            else node.size += sizeDelta;
+        }
+    }
+
+    private void replace(Node<T> oldNode, Node<T> newNode) {
+        replace(oldNode, newNode, oldNode.parent);
+    }
+
+    // заменяет поддерево oldNode у родителя parent (или корень дерева); после поворота у oldNode уже другой родитель
+    private void replace(Node<T> oldNode, Node<T> newNode, Node<T> parent) {
+        if (parent == null)
+            setRoot(newNode);
+        else if (parent.left == oldNode)
+            setLeft(parent, newNode);
+        else
+            setRight(parent, newNode);
+    }
+
+    // заменяет поддерево path[index] у его родителя (или корень дерева)
+    private void relink(int index, Node<T> oldNode, Node<T> newNode) {
+        if (index == 0) {
+            setRoot(newNode);
+            return;
         }
-        fixHeight(parent);
-        return balance(parent);
+        Node<T> parent = path[index - 1];
+        if (parent.left == oldNode)
+            setLeft(parent, newNode);
+        else
+            setRight(parent, newNode);
+    }
+
+    // все изменения ссылок на детей идут через эти методы, чтобы ссылки на родителя не расходились с ними
+    private void setLeft(Node<T> node, Node<T> child) {
+        node.left = child;
+        if (child != null) child.parent = node;
+    }
+
+    private void setRight(Node<T> node, Node<T> child) {
+        node.right = child;
+        if (child != null) child.parent = node;
+    }
+
+    private void setRoot(Node<T> node) {
+        root = node;
+        if (node != null) node.parent = null;
     }
 
     private Node<T> balance(Node<T> toBalance) {
         int balanceFactor = balanceFactor(toBalance);
         fixHeight(toBalance);
         if (balanceFactor == 2) {
-            if (balanceFactor(toBalance.right) < 0) toBalance.right = rotateRight(toBalance.right);
+            if (balanceFactor(toBalance.right) < 0) setRight(toBalance, rotateRight(toBalance.right));
             toBalance = rotateLeft(toBalance);
         } else if (balanceFactor == -2) {
-            if (balanceFactor(toBalance.left) > 0) toBalance.left = rotateLeft(toBalance.left);
+            if (balanceFactor(toBalance.left) > 0) setLeft(toBalance, rotateLeft(toBalance.left));
             toBalance = rotateRight(toBalance);
         }
         return toBalance;
@@ -114,58 +432,167 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
         return node == null ? 0 : node.height;
     }
 
+    // повороты возвращают новый корень поддерева, перевешивает его вызывающий код
     private Node<T> rotateLeft(Node<T> pivot) {
-        boolean rootFlag = pivot.value == root.value; //  если вращаем корень, то он поменяется
+        if (METRICS) rotations++;
         Node<T> pivotRight = pivot.right;
-        pivot.right = pivotRight.left;
-        pivotRight.left = pivot;
+        pivotRight.parent = pivot.parent;
+        setRight(pivot, pivotRight.left);
+        setLeft(pivotRight, pivot);
         fixHeight(pivot);
         fixHeight(pivotRight);
-        if (rootFlag) root = pivotRight;
         return pivotRight;
     }
 
     private Node<T> rotateRight(Node<T> pivot) {
-        boolean rootFlag = false;//  если вращаем корень, то он поменяется
-        if (pivot.value == root.value) rootFlag = true;
+        if (METRICS) rotations++;
         Node<T> pivotLeft = pivot.left;
-        pivot.left = pivotLeft.right;
-        pivotLeft.right = pivot;
+        pivotLeft.parent = pivot.parent;
+        setLeft(pivot, pivotLeft.right);
+        setRight(pivotLeft, pivot);
         fixHeight(pivot);
         fixHeight(pivotLeft);
-        if (rootFlag) root = pivotLeft;
         return pivotLeft;
     }
 
+    private int size(Node<T> node) {
+        return node == null ? 0 : node.size;
+    }
+
     private void fixHeight(Node<T> toFix) { //высота ущла равна высоте наибольшего поддерева + 1
         int leftTreeH = height(toFix.left);
         int rightTreeH = height(toFix.right);
         toFix.height = (Math.max(leftTreeH, rightTreeH)) + 1;
+        toFix.size = size(toFix.left) + size(toFix.right) + 1; // размер поддерева пересчитывается вместе с высотой
+        if (combiner != null)
+            toFix.aggregate = combine(combine(aggregate(toFix.left), extractor.apply(toFix.value)), aggregate(toFix.right));
     }
 
-    private Node<T> removeMin(Node<T> current) {
-        if (current.left == null) return current.right;
-        current.left = removeMin(current.left);
-        return balance(current);
+    private Node<T> leaf(T value) {
+        Node<T> node = new Node<T>(value);
+        if (combiner != null) node.aggregate = extractor.apply(value);
+        return node;
     }
 
-    private Node<T> remove(Node<T> current, T value) {
-        if (current == null) return null;
-        if (value.compareTo(current.value) < 0)
-            current.left = remove(current.left, value);
-        else if (value.compareTo(current.value) > 0)
-            current.right = remove(current.right, value);
-        else {
-            Node<T> left = current.left;
-            Node<T> right = current.right;
-            current = null;
-            if (right == null) return left; // если правого поддерева нет, то присваиваем предку левое поддерево
-            Node<T> min = findMin(right);
-            min.right = removeMin(right);
-            min.left = left;
-            return balance(min);
+    private Object aggregate(Node<T> node) {
+        return node == null ? null : node.aggregate;
+    }
+
+    // null - пустая свертка
+    private Object combine(Object first, Object second) {
+        return first == null ? second : second == null ? first : combiner.apply(first, second);
+    }
+
+    /**
+     * Свертка всех элементов в порядке возрастания; null для пустого дерева.
+     * Доступна только у дерева, созданного с extractor и combiner.
+     */
+    public <A> A aggregate() {
+        if (combiner == null) throw new UnsupportedOperationException();
+        return (A) aggregate(root);
+    }
+
+    // свертка элементов между from и to (null - нет границы) за O(log n): ищется верхний узел диапазона,
+    // затем по пути к каждой границе берутся готовые свертки поддеревьев, целиком лежащих внутри
+    private Object aggregateRange(T from, boolean fromInclusive, T to, boolean toInclusive) {
+        Node<T> node = root;
+        while (node != null) {
+            int fromComparision = from == null ? 1 : compare(node.value, from);
+            if (fromComparision < 0 || fromComparision == 0 && !fromInclusive) {
+                node = node.right;
+                continue;
+            }
+            int toComparision = to == null ? -1 : compare(node.value, to);
+            if (toComparision > 0 || toComparision == 0 && !toInclusive) {
+                node = node.left;
+                continue;
+            }
+            break;
+        }
+        if (node == null) return null;
+        Object result = combine(aggregateFrom(node.left, from, fromInclusive), extractor.apply(node.value));
+        return combine(result, aggregateTo(node.right, to, toInclusive));
+    }
+
+    // свертка элементов поддерева, не меньших from (строго больших, если !inclusive)
+    private Object aggregateFrom(Node<T> node, T from, boolean inclusive) {
+        if (from == null) return aggregate(node);
+        Object result = null;
+        while (node != null) {
+            int comparision = compare(node.value, from);
+            if (comparision > 0 || inclusive && comparision == 0) {
+                result = combine(combine(extractor.apply(node.value), aggregate(node.right)), result);
+                node = node.left;
+            } else node = node.right;
+        }
+        return result;
+    }
+
+    // свертка элементов поддерева, не больших to (строго меньших, если !inclusive)
+    private Object aggregateTo(Node<T> node, T to, boolean inclusive) {
+        if (to == null) return aggregate(node);
+        Object result = null;
+        while (node != null) {
+            int comparision = compare(node.value, to);
+            if (comparision < 0 || inclusive && comparision == 0) {
+                result = combine(result, combine(aggregate(node.left), extractor.apply(node.value)));
+                node = node.right;
+            } else node = node.left;
+        }
+        return result;
+    }
+
+    // количество элементов меньше value (или не больше, если inclusive)
+    private int countLess(T value, boolean inclusive) {
+        int count = 0;
+        Node<T> current = root;
+        while (current != null) {
+            int comparision = compare(current.value, value);
+            if (comparision < 0 || inclusive && comparision == 0) {
+                count += size(current.left) + 1;
+                current = current.right;
+            } else current = current.left;
+        }
+        return count;
+    }
+
+    /**
+     * Позиция элемента в отсортированном порядке: количество элементов дерева, меньших value.
+     */
+    public int rank(T value) {
+        return countLess(value, false);
+    }
+
+    /**
+     * Элемент с заданной позицией в отсортированном порядке (нумерация с нуля).
+     */
+    public T select(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException();
+        return nodeAt(index).value;
+    }
+
+    private Node<T> nodeAt(int index) {
+        Node<T> current = root;
+        while (true) {
+            int leftSize = size(current.left);
+            if (index < leftSize)
+                current = current.left;
+            else if (index == leftSize)
+                return current;
+            else {
+                index -= leftSize + 1;
+                current = current.right;
+            }
+        }
+    }
+
+    // позиция узла в отсортированном порядке, считается по ссылкам на родителя без сравнений
+    private int rankOf(Node<T> node) {
+        int rank = size(node.left);
+        for (Node<T> parent = node.parent; parent != null; node = parent, parent = parent.parent) {
+            if (node == parent.right) rank += size(parent.left) + 1;
         }
-        return balance(current);
+        return rank;
     }
 
     private Node<T> findMin(Node<T> node) {
@@ -176,212 +603,459 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
         return root == null ? null : node.right == null ? node : findMax(node.right);
     }
 
-    private Node<T> highest(Deque<Node<T>> list) {
-        int height = -1;
-        Node<T> res = null;
-        for (Node<T> el : list)
-            if (el.height > height) {
-                height = el.height;
-                res = el;
+    // следующий узел в порядке возрастания: минимум правого поддерева или ближайший предок справа
+    private Node<T> successor(Node<T> node) {
+        if (node.right != null) {
+            node = node.right;
+            while (node.left != null) node = node.left;
+            return node;
+        }
+        Node<T> parent = node.parent;
+        while (parent != null && node == parent.right) {
+            node = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    private Node<T> predecessor(Node<T> node) {
+        if (node.left != null) {
+            node = node.left;
+            while (node.right != null) node = node.right;
+            return node;
+        }
+        Node<T> parent = node.parent;
+        while (parent != null && node == parent.left) {
+            node = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    // Навигация - один спуск от корня: узел, после которого поиск уходит в правое (левое) поддерево,
+    // становится кандидатом, и сравнивается только искомое значение с текущим узлом.
+
+    // наименьший узел не меньше value (строго больше, если !inclusive)
+    private Node<T> ceilingNode(T value, boolean inclusive) {
+        Comparator<? super T> comparator = this.comparator;
+        Node<T> best = null;
+        Node<T> current = root;
+        int steps = 0;
+        if (comparator == null) {
+            Comparable<? super T> key = (Comparable<? super T>) value;
+            while (current != null) {
+                if (METRICS) steps++;
+                int comparision = key.compareTo(current.value);
+                if (comparision < 0) {
+                    best = current;
+                    current = current.left;
+                } else if (comparision == 0 && inclusive) {
+                    best = current;
+                    break;
+                } else current = current.right;
+            }
+        } else {
+            while (current != null) {
+                if (METRICS) steps++;
+                int comparision = comparator.compare(value, current.value);
+                if (comparision < 0) {
+                    best = current;
+                    current = current.left;
+                } else if (comparision == 0 && inclusive) {
+                    best = current;
+                    break;
+                } else current = current.right;
+            }
+        }
+        if (METRICS) metrics.path(steps);
+        return best;
+    }
+
+    // наибольший узел не больше value (строго меньше, если !inclusive)
+    private Node<T> floorNode(T value, boolean inclusive) {
+        Comparator<? super T> comparator = this.comparator;
+        Node<T> best = null;
+        Node<T> current = root;
+        int steps = 0;
+        if (comparator == null) {
+            Comparable<? super T> key = (Comparable<? super T>) value;
+            while (current != null) {
+                if (METRICS) steps++;
+                int comparision = key.compareTo(current.value);
+                if (comparision > 0) {
+                    best = current;
+                    current = current.right;
+                } else if (comparision == 0 && inclusive) {
+                    best = current;
+                    break;
+                } else current = current.left;
             }
-        return res;
+        } else {
+            while (current != null) {
+                if (METRICS) steps++;
+                int comparision = comparator.compare(value, current.value);
+                if (comparision > 0) {
+                    best = current;
+                    current = current.right;
+                } else if (comparision == 0 && inclusive) {
+                    best = current;
+                    break;
+                } else current = current.left;
+            }
+        }
+        if (METRICS) metrics.path(steps);
+        return best;
     }
 
+    private static <T> T valueOf(Node<T> node) {
+        return node == null ? null : node.value;
+    }
+
+    // итератор хранит только следующий узел и шагает по ссылкам на родителя: без стека и аллокаций на шаг
     private class AVLIterator implements Iterator<T> {
-        Deque<Node<T>> stack = new LinkedList<>();
-        T lastReturned = null;
+        Node<T> next;
+        Node<T> lastReturned = null;
         boolean isDescending;
+        int expectedModCount = modCount;
 
         private AVLIterator(boolean isDescending) {
             this.isDescending = isDescending;
-            fillStacks(root);
+            next = isDescending ? findMax(root) : findMin(root);
         }
 
         @Override
         public boolean hasNext() {
-            return !stack.isEmpty();
+            return next != null;
         }
 
         @Override
         public T next() {
-            if (hasNext()) {
-                Node<T> toReturn = stack.pollLast();
-                if (!isDescending) {
-                    fillStacks(toReturn.right);
-                    lastReturned = toReturn.value;
-                    return toReturn.value;
-                } else {
-                    fillStacks(toReturn.left);
-                    lastReturned = toReturn.value;
-                    return toReturn.value;
-                }
-            } else throw new NoSuchElementException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (next == null) throw new NoSuchElementException();
+            lastReturned = next;
+            next = isDescending ? predecessor(next) : successor(next);
+            return lastReturned.value;
         }
 
-        private void fillStacks(Node<T> node) {
-            if (node != null) {
-                stack.add(node);
-                if (!isDescending)
-                    fillStacks(node.left);
-                else
-                    fillStacks(node.right);
-            }
+        @Override
+        public void remove() {
+            if (lastReturned == null) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            // удаление сохраняет узлы (минимум правого поддерева переносится целиком), поэтому next остается в дереве
+            removeNode(lastReturned);
+            expectedModCount = modCount;
+            lastReturned = null;
         }
+    }
 
-        private void fillStackAfterRemove(Node<T> node, T stop) {
-            if (node != null) {
-                if (!isDescending) {
-                    if (node.value.compareTo(stop) < 0) {
-                        fillStackAfterRemove(node.right, stop);
-                    } else {
-                        stack.add(node);
-                        fillStackAfterRemove(node.left, stop);
-                    }
-                } else {
-                    if (node.value.compareTo(stop) > 0) {
-                        fillStackAfterRemove(node.left, stop);
-                    } else {
-                        stack.add(node);
-                        fillStackAfterRemove(node.right, stop);
-                    }
-                }
+    /**
+     * Делится пополам по позиции в порядке обхода (середина находится по размерам поддеревьев за O(log n)),
+     * поэтому части всегда точного размера и parallelStream() нагружает все потоки равномерно.
+     */
+    private class AVLSpliterator implements Spliterator<T> {
+        Node<T> current; // следующий узел
+        int remaining; // сколько узлов осталось, начиная с current
+        final boolean isDescending;
+        final Comparator<? super T> order; // порядок обхода для SORTED
+        final int expectedModCount;
+
+        private AVLSpliterator(Node<T> current, int remaining, boolean isDescending, Comparator<? super T> order,
+                               int expectedModCount) {
+            this.current = current;
+            this.remaining = remaining;
+            this.isDescending = isDescending;
+            this.order = order;
+            this.expectedModCount = expectedModCount;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (action == null) throw new NullPointerException();
+            if (remaining == 0) return false;
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            T value = current.value;
+            current = --remaining == 0 ? null : isDescending ? predecessor(current) : successor(current);
+            action.accept(value);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            if (action == null) throw new NullPointerException();
+            Node<T> node = current;
+            for (int i = remaining; i > 0; i--) {
+                action.accept(node.value);
+                if (i > 1) node = isDescending ? predecessor(node) : successor(node);
             }
+            current = null;
+            remaining = 0;
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
         }
 
         @Override
-        public void remove() {
-            if (lastReturned != null) {
-                if (!stack.isEmpty()) {
-                    AVLTree.this.remove(lastReturned);
-                    stack.clear();
-                    T stop = lastReturned;
-                    lastReturned = null;
-                    fillStackAfterRemove(root, stop);
-                } else {
-                    AVLTree.this.remove(lastReturned);
-                    lastReturned = null;
-                }
-            } else throw new IllegalStateException();
+        public Spliterator<T> trySplit() {
+            if (remaining < 2) return null;
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            int half = remaining / 2;
+            int start = rankOf(current);
+            AVLSpliterator prefix = new AVLSpliterator(current, half, isDescending, order, expectedModCount);
+            current = nodeAt(isDescending ? start - half : start + half);
+            remaining -= half;
+            return prefix;
         }
-    }
 
-    @Override
-    public T lower(T t) {
-        if (root == null) return null;
-        Node<T> current = root;
-        T biggest = root.value.compareTo(t) >= 0 ? findMin(root).value : root.value;
-        T currentVal;
-        while (current != null) {
-            currentVal = current.value;
-            int compareToT = currentVal.compareTo(t);
-            if (compareToT < 0 && currentVal.compareTo(biggest) > 0) biggest = currentVal;
-            if (compareToT >= 0)
-                current = current.left;
-            else
-                current = current.right;
+        @Override
+        public long estimateSize() {
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | NONNULL;
+        }
+
+        @Override
+        public Comparator<? super T> getComparator() {
+            return order;
         }
-        if (biggest.compareTo(t) >= 0)
-            return null;
-        else
-            return biggest;
     }
 
     @Override
-    public T higher(T t) {
-        if (root == null) return null;
-        Node<T> current = root;
-        T least = root.value.compareTo(t) <= 0 ? findMax(root).value : root.value;
-        T currentVal;
-        while (current != null) {
-            currentVal = current.value;
-            int compareToT = currentVal.compareTo(t);
+    public Spliterator<T> spliterator() {
+        return new AVLSpliterator(findMin(root), size, false, comparator, modCount);
+    }
 
-            if (compareToT > 0 && currentVal.compareTo(least) < 0) least = currentVal;
-            if (compareToT > 0)
-                current = current.left;
-            else
-                current = current.right;
+    // ceilingNode(key, true), но поиск идет от узла start: подъем, пока поддерево не накроет key, затем спуск.
+    // Подъем останавливается на поддереве высоты порядка log d, где d - число элементов между start и ответом.
+    private Node<T> ceilingNear(Node<T> start, T key) {
+        int comparision = compare(key, start.value);
+        if (comparision == 0) return start;
+        Node<T> node = start;
+        Node<T> best = null;
+        if (comparision > 0) { // вверх, пока предок, в левом поддереве которого мы стоим, меньше key
+            for (Node<T> parent = node.parent; parent != null; node = parent, parent = parent.parent) {
+                if (node == parent.left && compare(key, parent.value) <= 0) {
+                    best = parent;
+                    break;
+                }
+            }
+        } else { // вверх, пока предок, в правом поддереве которого мы стоим, не меньше key
+            for (Node<T> parent = node.parent; parent != null; node = parent, parent = parent.parent) {
+                if (node == parent.right && compare(key, parent.value) > 0) break;
+            }
         }
-        if (least.compareTo(t) <= 0)
-            return null;
-        else
-            return least;
+        while (node != null) {
+            comparision = compare(key, node.value);
+            if (comparision < 0) {
+                best = node;
+                node = node.left;
+            } else if (comparision == 0) return node;
+            else node = node.right;
+        }
+        return best;
     }
 
-    @Override
-    public T floor(T t) {
-        if (root == null) return null;
-        if (t == null) return last();
+    // floorNode(key, true) с поиском от узла start, симметрично ceilingNear
+    private Node<T> floorNear(Node<T> start, T key) {
+        int comparision = compare(key, start.value);
+        if (comparision == 0) return start;
+        Node<T> node = start;
+        Node<T> best = null;
+        if (comparision < 0) {
+            for (Node<T> parent = node.parent; parent != null; node = parent, parent = parent.parent) {
+                if (node == parent.right && compare(key, parent.value) >= 0) {
+                    best = parent;
+                    break;
+                }
+            }
+        } else {
+            for (Node<T> parent = node.parent; parent != null; node = parent, parent = parent.parent) {
+                if (node == parent.left && compare(key, parent.value) < 0) break;
+            }
+        }
+        while (node != null) {
+            comparision = compare(key, node.value);
+            if (comparision > 0) {
+                best = node;
+                node = node.right;
+            } else if (comparision == 0) return node;
+            else node = node.left;
+        }
+        return best;
+    }
 
-        Node<T> current = root;
-        T biggest = root.value.compareTo(t) > 0 ? findMin(root).value : root.value;
-        T currentVal;
-        while (current != null) {
-            currentVal = current.value;
-            int compareToT = currentVal.compareTo(t);
+    /**
+     * Курсор для последовательных обращений с локальностью: seekNear ищет от текущей позиции за O(log d),
+     * где d - расстояние до цели, next и prev - амортизированно O(1). Позиция - элемент или null (за краем).
+     * Изменения дерева курсор переживает: после них следующий шаг ищет позицию заново от корня.
+     */
+    public Cursor cursor() {
+        return new Cursor(null, false, null, false, false);
+    }
 
-            if (compareToT <= 0 && currentVal.compareTo(biggest) > 0) biggest = currentVal;
+    public class Cursor {
+        // границы в порядке возрастания дерева (null - нет границы); порядок курсора обратный, если descending
+        private final T from;
+        private final boolean fromInclusive;
+        private final T to;
+        private final boolean toInclusive;
+        private final boolean descending;
+        private Node<T> current = null;
+        private int expectedModCount = modCount;
+
+        private Cursor(T from, boolean fromInclusive, T to, boolean toInclusive, boolean descending) {
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.to = to;
+            this.toInclusive = toInclusive;
+            this.descending = descending;
+        }
 
-            if (compareToT == 0 )
-                return currentVal;
-            else if (compareToT > 0)
-                current = current.left;
-            else
-                current = current.right;
+        /**
+         * Текущий элемент или null.
+         */
+        public T get() {
+            return current == null ? null : current.value;
+        }
+
+        /**
+         * Переход к первому в порядке курсора элементу, не предшествующему key; поиск от корня.
+         */
+        public T seek(T key) {
+            return moveTo(descending ? floorNode(key, true) : ceilingNode(key, true));
+        }
+
+        /**
+         * То же, что seek, но поиск начинается от текущей позиции.
+         */
+        public T seekNear(T key) {
+            if (current == null || modCount != expectedModCount) return seek(key);
+            return moveTo(descending ? floorNear(current, key) : ceilingNear(current, key));
+        }
+
+        /**
+         * Следующий в порядке курсора элемент; от позиции null - первый элемент.
+         */
+        public T next() {
+            Node<T> node;
+            if (current == null) node = start();
+            else if (modCount != expectedModCount)
+                node = descending ? floorNode(current.value, false) : ceilingNode(current.value, false);
+            else node = descending ? predecessor(current) : successor(current);
+            return moveTo(node);
+        }
+
+        /**
+         * Предыдущий в порядке курсора элемент; от позиции null - последний элемент.
+         */
+        public T prev() {
+            Node<T> node;
+            if (current == null) node = end();
+            else if (modCount != expectedModCount)
+                node = descending ? ceilingNode(current.value, false) : floorNode(current.value, false);
+            else node = descending ? successor(current) : predecessor(current);
+            if (node != null && isBeforeStart(node.value)) node = null;
+            return place(node);
+        }
+
+        // результат поиска, прижатый к диапазону: до начала - первый элемент, после конца - null
+        private T moveTo(Node<T> node) {
+            if (node != null && isBeforeStart(node.value)) node = start();
+            if (node != null && isAfterEnd(node.value)) node = null;
+            return place(node);
+        }
+
+        private T place(Node<T> node) {
+            current = node;
+            expectedModCount = modCount;
+            return node == null ? null : node.value;
+        }
+
+        private Node<T> start() {
+            if (descending) return to == null ? findMax(root) : floorNode(to, toInclusive);
+            return from == null ? findMin(root) : ceilingNode(from, fromInclusive);
+        }
+
+        private Node<T> end() {
+            Node<T> node;
+            if (descending) node = from == null ? findMin(root) : ceilingNode(from, fromInclusive);
+            else node = to == null ? findMax(root) : floorNode(to, toInclusive);
+            return node != null && isBeforeStart(node.value) ? null : node;
+        }
+
+        private boolean isBeforeStart(T value) {
+            return descending ? isAbove(value) : isBelow(value);
+        }
+
+        private boolean isAfterEnd(T value) {
+            return descending ? isBelow(value) : isAbove(value);
+        }
+
+        private boolean isBelow(T value) {
+            if (from == null) return false;
+            int comparision = compare(value, from);
+            return comparision < 0 || comparision == 0 && !fromInclusive;
+        }
+
+        private boolean isAbove(T value) {
+            if (to == null) return false;
+            int comparision = compare(value, to);
+            return comparision > 0 || comparision == 0 && !toInclusive;
         }
-        if (biggest.compareTo(t) > 0)
-            return null;
-        else
-            return biggest;
     }
 
     @Override
-    public T ceiling(T t) {
-        if (root == null) return null;
-        if (t == null) return first();
-        if (contains(t)) return t;
+    public T lower(T t) {
+        TreeEvents.OperationEvent event = new TreeEvents.OperationEvent();
+        event.begin();
+        T result = valueOf(floorNode(t, false));
+        TreeEvents.commit(event, "lower", size);
+        return result;
+    }
 
-        Node<T> current = root;
-        T least = root.value.compareTo(t) < 0 ? findMax(root).value : root.value;
-        T currentVal;
-        while (current != null) {
-            currentVal = current.value;
-            int compareToT = currentVal.compareTo(t);
+    @Override
+    public T higher(T t) {
+        TreeEvents.OperationEvent event = new TreeEvents.OperationEvent();
+        event.begin();
+        T result = valueOf(ceilingNode(t, false));
+        TreeEvents.commit(event, "higher", size);
+        return result;
+    }
 
-            if (compareToT >= 0 && currentVal.compareTo(least) < 0) least = currentVal;
-            if (compareToT==0)
-                return currentVal;
-            else if (compareToT > 0)
-                current = current.left;
-            else
-                current = current.right;
-        }
-        if (least.compareTo(t) < 0)
-            return null;
-        else
-            return least;
+    @Override
+    public T floor(T t) {
+        if (t == null) return valueOf(findMax(root));
+        TreeEvents.OperationEvent event = new TreeEvents.OperationEvent();
+        event.begin();
+        T result = valueOf(floorNode(t, true));
+        TreeEvents.commit(event, "floor", size);
+        return result;
+    }
+
+    @Override
+    public T ceiling(T t) {
+        if (t == null) return valueOf(findMin(root));
+        TreeEvents.OperationEvent event = new TreeEvents.OperationEvent();
+        event.begin();
+        T result = valueOf(ceilingNode(t, true));
+        TreeEvents.commit(event, "ceiling", size);
+        return result;
     }
 
     @Override
     public T pollFirst() {
-        try {
-            T val = first();
-            remove(val);
-            return val;
-        } catch (NoSuchElementException exc) {
-            return null;
-        }
+        Node<T> node = findMin(root);
+        if (node == null) return null;
+        removeNode(node);
+        return node.value;
     }
 
     @Override
     public T pollLast() {
-        try {
-            T val = last();
-            remove(val);
-            return val;
-        } catch (NoSuchElementException exc) {
-            return null;
-        }
+        Node<T> node = findMax(root);
+        if (node == null) return null;
+        removeNode(node);
+        return node.value;
     }
 
     @Override
@@ -406,7 +1080,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
     @NotNull
     @Override
-    public NavigableSet<T> descendingSet() {
+    public SubSet descendingSet() {
         return new SubSet(null, null, null, null, true);
     }
 
@@ -418,44 +1092,44 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
     @NotNull
     @Override
-    public NavigableSet<T> subSet(T t, boolean b, T e1, boolean b1) {
+    public SubSet subSet(T t, boolean b, T e1, boolean b1) {
         return new SubSet(t, b, e1, b1, false);
     }
 
     @NotNull
     @Override
-    public NavigableSet<T> headSet(T t, boolean b) {
+    public SubSet headSet(T t, boolean b) {
         return new SubSet(null, null, t, b, false);
     }
 
     @NotNull
     @Override
-    public NavigableSet<T> tailSet(T t, boolean b) {
+    public SubSet tailSet(T t, boolean b) {
         return new SubSet(t, b, null, null, false);
     }
 
     @NotNull
     @Override
-    public SortedSet<T> subSet(T t, T e1) {
+    public SubSet subSet(T t, T e1) {
         return new SubSet(t, true, e1, false, false);
     }
 
     @NotNull
     @Override
-    public SortedSet<T> headSet(T t) {
+    public SubSet headSet(T t) {
         return new SubSet(null, null, t, false, false);
     }
 
     @NotNull
     @Override
-    public SortedSet<T> tailSet(T t) {
+    public SubSet tailSet(T t) {
         return new SubSet(t, true, null, null, false);
     }
 
 
     @Override
     public Comparator<? super T> comparator() {
-        return (Comparator<T>) (o, t1) -> o.compareTo(t1);
+        return comparator;
     }
 
     @NotNull
@@ -490,20 +1164,51 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
 
     public boolean checkInvariant() {
-        return root == null || checkInvariant(root);
+        return root == null || root.parent == null && checkInvariant(root);
     }
 
+    // left и right читаются один раз: с повторными чтениями полей C2 (JDK 17, 21) при включенных метриках
+    // выносил загрузку right.height выше проверки right == null и падал с SIGSEGV
     private boolean checkInvariant(Node<T> node) {
         Node<T> left = node.left;
-        if (left != null && (left.value.compareTo(node.value) >= 0 || !checkInvariant(left))) return false;
         Node<T> right = node.right;
-        return right == null || right.value.compareTo(node.value) > 0 && checkInvariant(right);
+        if (left != null && left.parent != node || right != null && right.parent != node) return false;
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        if (node.height != Math.max(leftHeight, rightHeight) + 1 || Math.abs(rightHeight - leftHeight) > 1) return false;
+        if (node.size != size(left) + size(right) + 1) return false;
+        if (combiner != null && !Objects.equals(node.aggregate,
+                combine(combine(aggregate(left), extractor.apply(node.value)), aggregate(right)))) return false;
+        if (left != null && (compare(left.value, node.value) >= 0 || !checkInvariant(left))) return false;
+        return right == null || compare(right.value, node.value) > 0 && checkInvariant(right);
     }
 
     public int height() {
         return height(root);
     }
 
+    /**
+     * Снимок метрик дерева: повороты, сравнения, длины путей спуска. Доступен, только если JVM
+     * запущена с -Davltree.metrics=true.
+     */
+    public TreeMetrics metrics() {
+        if (!METRICS) throw new UnsupportedOperationException();
+        return metrics.snapshot(rotations);
+    }
+
+    long rotationCount() {
+        return rotations;
+    }
+
+    /**
+     * Включает для дерева периодическое событие JFR avltree.Statistics (размер, высота, частота поворотов)
+     * под заданным именем. Дерево не удерживается от сборки мусора.
+     */
+    public AVLTree<T> recordStatistics(String name) {
+        TreeEvents.monitor(this, name);
+        return this;
+    }
+
     @Override
     public boolean containsAll(Collection<?> collection) {
         for (Object element : collection) {
@@ -514,46 +1219,668 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
     @Override
     public boolean addAll(Collection<? extends T> collection) {
+        TreeEvents.BulkEvent event = new TreeEvents.BulkEvent();
+        event.begin();
         int oldSize = size;
+        boolean changed = bulkAdd(collection);
+        TreeEvents.commit(event, "addAll", collection.size(), oldSize, size);
+        return changed;
+    }
+
+    private boolean bulkAdd(Collection<? extends T> collection) {
+        if (root == null && isSortedLikeThis(collection)) {
+            buildFromSorted(collection.size(), collection.iterator());
+            return size > 0;
+        }
+        if (collection == this) return false;
+        int oldSize = size;
+        if (collection instanceof AVLTree && isSortedLikeThis(collection)) {
+            setRoot(union(((AVLTree<T>) collection).root, root));
+            size = size(root);
+            modCount++;
+            return size > oldSize;
+        }
+        if (collection.size() >= BATCH_THRESHOLD) {
+            addBatch((T[]) collection.toArray());
+            return size > oldSize;
+        }
         for (Object element : collection) {
             add((T) element);
         }
         return size > oldSize;
     }
 
+    // с какого размера неотсортированный пакет выгоднее сортировать и сливать, чем вставлять по одному
+    private static final int BATCH_THRESHOLD = 256;
+
+    // Пакетная вставка: сортировка (Arrays.parallelSort для больших пакетов делит работу на fork-join),
+    // удаление повторов, затем слияние с деревом. Слияние - линейный проход по дереву и пакету с
+    // перестройкой за O(n + m) или объединение через split/join за O(m log(n/m + 1)), что дешевле.
+    private void addBatch(T[] batch) {
+        Arrays.parallelSort(batch, comparator);
+        int count = 0;
+        for (T element : batch) {
+            if (count == 0 || compare(batch[count - 1], element) != 0) batch[count++] = element;
+        }
+        if (count == 0) return;
+        if (root == null) {
+            buildFromSorted(count, Arrays.asList(batch).subList(0, count).iterator());
+        } else if (preferRebuild(size, count)) {
+            List<T> merged = merge(batch, count);
+            buildFromSorted(merged.size(), merged.iterator());
+        } else {
+            Node<T> batchRoot = buildSubtree(count, Arrays.asList(batch).subList(0, count).iterator());
+            setRoot(union(batchRoot, root));
+            size = size(root);
+            modCount++;
+        }
+    }
+
+    // перестройка читает каждый узел дерева один раз, join - порядка log(n/m + 1) узлов на элемент пакета;
+    // поворотов и аллокаций при join больше, отсюда множитель 2
+    private static boolean preferRebuild(int treeSize, int batchSize) {
+        double joinCost = batchSize * (Math.log((double) treeSize / batchSize + 1) / Math.log(2) + 1);
+        return treeSize + batchSize <= 2 * joinCost;
+    }
+
+    // элементы дерева и первые count элементов пакета одним упорядоченным списком без повторов
+    private List<T> merge(T[] batch, int count) {
+        List<T> merged = new ArrayList<>(size + count);
+        int i = 0;
+        for (Node<T> node = findMin(root); node != null; node = successor(node)) {
+            while (i < count && compare(batch[i], node.value) < 0) merged.add(batch[i++]);
+            if (i < count && compare(batch[i], node.value) == 0) i++;
+            merged.add(node.value);
+        }
+        while (i < count) merged.add(batch[i++]);
+        return merged;
+    }
+
+    /**
+     * Добавление строго возрастающего массива. В пустое дерево элементы загружаются за O(n)
+     * сразу идеально сбалансированным деревом; если порядок нарушен - IllegalArgumentException.
+     */
+    public boolean addAllSorted(T[] sorted) {
+        for (int i = 1; i < sorted.length; i++) {
+            if (compare(sorted[i - 1], sorted[i]) >= 0) throw new IllegalArgumentException();
+        }
+        if (root != null) return addAll(Arrays.asList(sorted));
+        buildFromSorted(sorted.length, Arrays.asList(sorted).iterator());
+        return size > 0;
+    }
+
+    /**
+     * То же для строго возрастающей последовательности, которую выдает итератор. Длина заранее
+     * неизвестна, поэтому дерево строится по мере чтения, без промежуточной копии; в непустое дерево
+     * построенное вливается через split/join. При нарушении порядка дерево не меняется.
+     */
+    public boolean addAllSorted(Iterator<? extends T> sorted) {
+        Node<T> built = buildFromStream(sorted);
+        int oldSize = size;
+        setRoot(root == null ? built : union(built, root));
+        size = size(root);
+        modCount++;
+        return size > oldSize;
+    }
+
+    // Построение за O(n) по потоку неизвестной длины, как счет в двоичном счетчике: complete - последнее
+    // достроенное идеальное поддерево, в pending - узлы, ждущие правого поддерева той же высоты, что и
+    // левое (высоты убывают к вершине стека). В конце недостроенные узлы собираются join, это O(log n).
+    private Node<T> buildFromStream(Iterator<? extends T> sorted) {
+        Node<T>[] pending = (Node<T>[]) new Node[64];
+        int depth = 0;
+        Node<T> complete = null;
+        T previous = null;
+        boolean first = true;
+        while (sorted.hasNext()) {
+            T value = sorted.next();
+            if (first) {
+                compare(value, value); // проверка типа и null, как в TreeSet
+                first = false;
+            } else if (compare(previous, value) >= 0) {
+                throw new IllegalArgumentException();
+            }
+            previous = value;
+            Node<T> node = new Node<T>(value);
+            if (complete != null) {
+                setLeft(node, complete);
+                pending[depth++] = node;
+                complete = null;
+                continue;
+            }
+            fixHeight(node);
+            complete = node;
+            while (depth > 0 && pending[depth - 1].left.height == complete.height) {
+                Node<T> parent = pending[--depth];
+                setRight(parent, complete);
+                fixHeight(parent);
+                complete = parent;
+            }
+        }
+        while (depth > 0) {
+            Node<T> parent = pending[--depth];
+            complete = join(parent.left, parent, complete);
+        }
+        return complete;
+    }
+
+    private boolean isSortedLikeThis(Collection<?> collection) {
+        return collection instanceof SortedSet && Objects.equals(((SortedSet<?>) collection).comparator(), comparator);
+    }
+
+    private void buildFromSorted(int count, Iterator<? extends T> sorted) {
+        setRoot(buildSubtree(count, sorted));
+        size = count;
+        modCount++;
+    }
+
+    // симметричный обход: левая половина, корень, правая половина; высоты и размеры выставляются сразу
+    private Node<T> buildSubtree(int count, Iterator<? extends T> sorted) {
+        if (count == 0) return null;
+        int leftCount = (count - 1) / 2;
+        Node<T> left = buildSubtree(leftCount, sorted);
+        Node<T> node = new Node<T>(sorted.next()); // свертка считается в fixHeight ниже
+        setLeft(node, left);
+        setRight(node, buildSubtree(count - leftCount - 1, sorted));
+        fixHeight(node);
+        return node;
+    }
+
+    // Двоичный формат: заголовок (сигнатура, число ключей, CRC32 данных), затем ключи по возрастанию;
+    // ключам переменной длины предшествует их длина (int). Порядок байтов - big-endian.
+    private static final int MAGIC = 0x41564C54; // "AVLT"
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES;
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Записывает дерево с текущей позиции канала одним проходом по возрастанию. Контрольная сумма
+     * известна только в конце, поэтому заголовок дописывается по сохраненной позиции.
+     */
+    public void writeTo(FileChannel channel, KeyCodec<? super T> codec) throws IOException {
+        long start = channel.position();
+        channel.position(start + HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        CRC32 checksum = new CRC32();
+        int fixedSize = codec.fixedSize();
+        for (Node<T> node = findMin(root); node != null; node = successor(node)) {
+            int maxLength = fixedSize >= 0 ? fixedSize : codec.maxEncodedSize(node.value);
+            int needed = fixedSize >= 0 ? maxLength : maxLength + Integer.BYTES;
+            if (buffer.remaining() < needed) {
+                flush(channel, buffer, checksum);
+                if (buffer.capacity() < needed) buffer = ByteBuffer.allocateDirect(needed);
+            }
+            // длина ключа переменной длины вписывается перед ним после кодирования
+            int prefix = buffer.position();
+            if (fixedSize < 0) buffer.position(prefix + Integer.BYTES);
+            int position = buffer.position();
+            codec.encode(node.value, buffer);
+            int length = buffer.position() - position;
+            if (fixedSize >= 0 ? length != fixedSize : length > maxLength) throw new IllegalStateException(); // codec нарушил контракт
+            if (fixedSize < 0) buffer.putInt(prefix, length);
+        }
+        flush(channel, buffer, checksum);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putLong(size).putLong(checksum.getValue()).flip();
+        while (header.hasRemaining()) channel.write(header, start + header.position());
+    }
+
+    private static void flush(WritableByteChannel channel, ByteBuffer buffer, CRC32 checksum) throws IOException {
+        buffer.flip();
+        checksum.update(buffer.duplicate());
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Читает дерево, записанное writeTo, с текущей позиции файла. Если остаток файла помещается
+     * в один MappedByteBuffer, ключи декодируются прямо из отображенной памяти без копирования в буфер.
+     */
+    public static <T> AVLTree<T> readFrom(FileChannel channel, KeyCodec<T> codec, Comparator<? super T> comparator)
+            throws IOException {
+        long position = channel.position();
+        long remaining = channel.size() - position;
+        if (remaining > Integer.MAX_VALUE) {
+            KeyReader<T> reader = new KeyReader<>(ByteBuffer.allocateDirect(IO_BUFFER_SIZE).limit(0), channel, codec);
+            AVLTree<T> tree = read(reader, comparator);
+            channel.position(channel.position() - reader.buffer.remaining()); // вернуть непрочитанный остаток
+            return tree;
+        }
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, remaining);
+        AVLTree<T> tree = readFrom(mapped, codec, comparator);
+        channel.position(position + mapped.position());
+        return tree;
+    }
+
+    /**
+     * Чтение из потокового канала; канал может быть прочитан дальше конца дерева.
+     */
+    public static <T> AVLTree<T> readFrom(ReadableByteChannel channel, KeyCodec<T> codec, Comparator<? super T> comparator)
+            throws IOException {
+        return read(new KeyReader<>(ByteBuffer.allocateDirect(IO_BUFFER_SIZE).limit(0), channel, codec), comparator);
+    }
+
+    /**
+     * Чтение из буфера (например, отображенного в память файла) с его текущей позиции.
+     */
+    public static <T> AVLTree<T> readFrom(ByteBuffer buffer, KeyCodec<T> codec, Comparator<? super T> comparator)
+            throws IOException {
+        return read(new KeyReader<>(buffer, null, codec), comparator);
+    }
+
+    // ключи декодируются лениво прямо во время линейной постройки дерева, без промежуточного списка
+    private static <T> AVLTree<T> read(KeyReader<T> reader, Comparator<? super T> comparator) throws IOException {
+        reader.ensure(HEADER_SIZE);
+        ByteBuffer buffer = reader.buffer;
+        if (buffer.getInt() != MAGIC) throw new IOException("Not an AVLTree image");
+        long count = buffer.getLong();
+        long expectedChecksum = buffer.getLong();
+        if (count < 0 || count > Integer.MAX_VALUE) throw new IOException("Corrupted AVLTree image");
+        AVLTree<T> tree = new AVLTree<>(comparator);
+        reader.tree = tree;
+        try {
+            tree.buildFromSorted((int) count, reader);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (reader.checksum.getValue() != expectedChecksum) throw new IOException("AVLTree image checksum mismatch");
+        return tree;
+    }
+
+    private static class KeyReader<T> implements Iterator<T> {
+        private ByteBuffer buffer; // в режиме чтения: между position и limit - еще не разобранные байты
+        private final ReadableByteChannel channel; // null - все данные уже в буфере
+        private final KeyCodec<T> codec;
+        private final int fixedSize;
+        private final CRC32 checksum = new CRC32();
+        // порядок ключей проверяется по компаратору дерева: образ, записанный с другим порядком,
+        // прошел бы проверку CRC, но дал бы неправильное дерево
+        private AVLTree<T> tree;
+        private T previous;
+        private boolean first = true;
+
+        private KeyReader(ByteBuffer buffer, ReadableByteChannel channel, KeyCodec<T> codec) {
+            this.buffer = buffer;
+            this.channel = channel;
+            this.codec = codec;
+            this.fixedSize = codec.fixedSize();
+        }
+
+        // в буфере должно быть count байт; из канала дочитывается, остаток сдвигается в начало
+        private void ensure(int count) throws IOException {
+            if (buffer.remaining() >= count) return;
+            if (channel == null) throw new EOFException();
+            if (buffer.capacity() < count) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(count);
+                larger.put(buffer);
+                buffer = larger;
+            } else buffer.compact();
+            while (buffer.position() < count) {
+                if (channel.read(buffer) < 0) throw new EOFException();
+            }
+            buffer.flip();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return true; // число ключей задает buildSubtree
+        }
+
+        @Override
+        public T next() {
+            try {
+                int prefix = 0;
+                int length = fixedSize;
+                if (fixedSize < 0) {
+                    ensure(Integer.BYTES);
+                    length = buffer.getInt(buffer.position());
+                    if (length < 0) throw new IOException("Corrupted AVLTree image");
+                    prefix = Integer.BYTES;
+                }
+                ensure(prefix + length);
+                int start = buffer.position();
+                int limit = buffer.limit();
+                int end = start + prefix + length;
+                buffer.limit(end);
+                checksum.update(buffer);
+                buffer.position(start + prefix);
+                T key = codec.decode(buffer);
+                buffer.limit(limit).position(end);
+                if (!first && tree.compare(previous, key) >= 0)
+                    throw new IOException("AVLTree image keys are not in ascending order");
+                first = false;
+                previous = key;
+                return key;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
     @NotNull
     @Override
     public boolean retainAll(Collection<?> collection) {
+        TreeEvents.BulkEvent event = new TreeEvents.BulkEvent();
+        event.begin();
+        int oldSize = size;
+        boolean changed = bulkRetain(collection);
+        TreeEvents.commit(event, "retainAll", collection.size(), oldSize, size);
+        return changed;
+    }
+
+    private boolean bulkRetain(Collection<?> collection) {
         int oldSize = size;
+        if (collection == this) return false;
+        if (collection instanceof AVLTree && isSortedLikeThis(collection)) {
+            setRoot(intersection(((AVLTree<T>) collection).root, root));
+            size = size(root);
+            modCount++;
+            return oldSize > size;
+        }
         Set<Object> retain = new HashSet<>();
-        Set<Object> remove = new HashSet<>();
         for (Object element : collection) {
             if (contains(element)) retain.add(element);
         }
-
         Iterator<T> iterator = iterator();
         while (iterator.hasNext()) {
             T element = iterator.next();
             if (!retain.contains(element)) iterator.remove();
         }
-
-
         return oldSize > size;
     }
 
     @Override
     public boolean removeAll(Collection<?> collection) {
+        TreeEvents.BulkEvent event = new TreeEvents.BulkEvent();
+        event.begin();
+        int oldSize = size;
+        boolean changed = bulkRemove(collection);
+        TreeEvents.commit(event, "removeAll", collection.size(), oldSize, size);
+        return changed;
+    }
+
+    private boolean bulkRemove(Collection<?> collection) {
         int oldSize = size;
+        if (collection == this) {
+            clear();
+            return oldSize > 0;
+        }
+        if (collection instanceof AVLTree && isSortedLikeThis(collection)) {
+            setRoot(difference(root, ((AVLTree<T>) collection).root));
+            size = size(root);
+            modCount++;
+            return oldSize > size;
+        }
         for (Object element : collection) {
             remove(element);
         }
         return oldSize > size;
     }
 
+    /**
+     * Объединение с другим деревом; оба исходных дерева не меняются. Узлы не разделяются между деревьями
+     * (в них ссылка на родителя, высота и размер поддерева), поэтому в результате n + m новых узлов:
+     * деревья сливаются одним проходом и результат строится сразу сбалансированным, O(n + m) без поворотов.
+     */
+    public AVLTree<T> union(AVLTree<T> other) {
+        if (!isSortedLikeThis(other)) { // другой порядок: поэлементно, как addAll
+            AVLTree<T> result = copy();
+            result.addAll(other);
+            return result;
+        }
+        List<T> merged = new ArrayList<>(size + other.size);
+        Node<T> node = findMin(root);
+        Node<T> otherNode = other.findMin(other.root);
+        while (node != null && otherNode != null) {
+            int comparision = compare(node.value, otherNode.value);
+            if (comparision > 0) {
+                merged.add(otherNode.value);
+                otherNode = successor(otherNode);
+            } else {
+                merged.add(node.value);
+                node = successor(node);
+                if (comparision == 0) otherNode = successor(otherNode);
+            }
+        }
+        for (; node != null; node = successor(node)) merged.add(node.value);
+        for (; otherNode != null; otherNode = successor(otherNode)) merged.add(otherNode.value);
+        return sortedTree(merged);
+    }
+
+    /**
+     * Пересечение с другим деревом; оба исходных дерева не меняются. Элементы меньшего дерева (k штук)
+     * ищутся в большем (n) поиском с пальцем, O(k log(n/k + 1)); узлы создаются только для результата.
+     */
+    public AVLTree<T> intersect(AVLTree<T> other) {
+        if (!isSortedLikeThis(other)) {
+            AVLTree<T> result = copy();
+            result.retainAll(other);
+            return result;
+        }
+        List<T> common = new ArrayList<>(Math.min(size, other.size));
+        if (size <= other.size) {
+            Finger finger = new Finger(other.root);
+            for (Node<T> node = findMin(root); node != null; node = successor(node)) {
+                if (finger.find(node.value) != null) common.add(node.value);
+            }
+        } else {
+            Finger finger = new Finger(root);
+            for (Node<T> node = other.findMin(other.root); node != null; node = successor(node)) {
+                Node<T> found = finger.find(node.value);
+                if (found != null) common.add(found.value); // как retainAll: остаются элементы этого дерева
+            }
+        }
+        return sortedTree(common);
+    }
+
+    /**
+     * Разность this \ other; оба исходных дерева не меняются. Каждый из n элементов этого дерева ищется
+     * в other (m элементов) поиском с пальцем: O(n log(m/n + 1)), и не больше n новых узлов.
+     */
+    public AVLTree<T> difference(AVLTree<T> other) {
+        if (!isSortedLikeThis(other)) {
+            AVLTree<T> result = copy();
+            result.removeAll(other);
+            return result;
+        }
+        List<T> rest = new ArrayList<>(size);
+        Finger finger = new Finger(other.root);
+        for (Node<T> node = findMin(root); node != null; node = successor(node)) {
+            if (finger.find(node.value) == null) rest.add(node.value);
+        }
+        return sortedTree(rest);
+    }
+
+    // Поиск с пальцем для возрастающей серии ключей: спуск идет не от корня, а от наименьшего поддерева
+    // над предыдущей находкой, в диапазон которого попадает ключ. Серия из k поисков в дереве из n узлов
+    // стоит O(k log(n/k + 1)): подъем на высоту h переходит границу, которую возрастающая серия
+    // пересекает один раз, а таких границ на высоте h не больше n / 2^h. Дерево во время серии не меняется.
+    private final class Finger {
+        private Node<T> last; // узел, на котором закончился предыдущий поиск
+
+        private Finger(Node<T> root) {
+            this.last = root;
+        }
+
+        // узел, равный key, или null; key больше ключа предыдущего вызова
+        Node<T> find(T key) {
+            Node<T> current = last;
+            if (current == null) return null;
+            // нижняя граница диапазона уже не больше key, подниматься надо до верхней
+            for (Node<T> parent = current.parent; parent != null; current = parent, parent = parent.parent) {
+                if (current == parent.left) {
+                    int comparision = compare(parent.value, key);
+                    if (comparision == 0) return last = parent;
+                    if (comparision > 0) break;
+                }
+            }
+            while (true) {
+                int comparision = compare(current.value, key);
+                if (comparision == 0) return last = current;
+                Node<T> next = comparision > 0 ? current.left : current.right;
+                if (next == null) {
+                    last = current;
+                    return null;
+                }
+                current = next;
+            }
+        }
+    }
+
+    private AVLTree<T> emptyCopy() {
+        return combiner == null ? new AVLTree<>(comparator) : new AVLTree<>(comparator, extractor, combiner);
+    }
+
+    // дерево с тем же порядком и сверткой из возрастающего списка без повторов, O(k)
+    private AVLTree<T> sortedTree(List<T> sorted) {
+        AVLTree<T> result = emptyCopy();
+        result.buildFromSorted(sorted.size(), sorted.iterator());
+        return result;
+    }
+
+    private AVLTree<T> copy() {
+        AVLTree<T> result = emptyCopy();
+        result.root = copyOf(root);
+        result.size = size;
+        return result;
+    }
+
+    private Node<T> copyOf(Node<T> node) {
+        if (node == null) return null;
+        Node<T> copy = new Node<T>(node.value);
+        setLeft(copy, copyOf(node.left));
+        setRight(copy, copyOf(node.right));
+        fixHeight(copy); // свертку нельзя копировать: узлы могут прийти из дерева с другой сверткой
+        return copy;
+    }
+
+    // Теоретико-множественные операции через split/join, O(m log(n/m + 1)).
+    // Узлы другого дерева (other) только читаются, узлы этого дерева (node) переиспользуются.
+
+    private Node<T> union(Node<T> other, Node<T> node) {
+        if (other == null) return node;
+        if (node == null) return copyOf(other);
+        split(node, other.value);
+        Node<T> left = splitLeft;
+        Node<T> middle = splitFound != null ? splitFound : new Node<T>(other.value);
+        Node<T> right = splitRight;
+        return join(union(other.left, left), middle, union(other.right, right));
+    }
+
+    private Node<T> intersection(Node<T> other, Node<T> node) {
+        if (other == null || node == null) return null;
+        split(node, other.value);
+        Node<T> left = splitLeft;
+        Node<T> found = splitFound;
+        Node<T> right = splitRight;
+        left = intersection(other.left, left);
+        right = intersection(other.right, right);
+        return found != null ? join(left, found, right) : join(left, right);
+    }
+
+    private Node<T> difference(Node<T> node, Node<T> other) {
+        if (node == null || other == null) return node;
+        split(node, other.value);
+        Node<T> left = splitLeft;
+        Node<T> right = splitRight;
+        return join(difference(left, other.left), difference(right, other.right));
+    }
+
+    // результат split: элементы меньше value, узел равный value (или null) и элементы больше value
+    private Node<T> splitLeft;
+    private Node<T> splitFound;
+    private Node<T> splitRight;
+
+    private void split(Node<T> node, T value) {
+        if (node == null) {
+            splitLeft = splitFound = splitRight = null;
+            return;
+        }
+        int comparision = compare(node.value, value);
+        if (comparision == 0) {
+            splitLeft = node.left;
+            splitRight = node.right;
+            splitFound = node;
+        } else if (comparision > 0) {
+            split(node.left, value);
+            splitRight = join(splitRight, node, node.right);
+        } else {
+            split(node.right, value);
+            splitLeft = join(node.left, node, splitLeft);
+        }
+    }
+
+    // все элементы left меньше middle.value, все элементы right больше
+    private Node<T> join(Node<T> left, Node<T> middle, Node<T> right) {
+        if (height(left) > height(right) + 1) {
+            setRight(left, join(left.right, middle, right));
+            return balance(left);
+        }
+        if (height(right) > height(left) + 1) {
+            setLeft(right, join(left, middle, right.left));
+            return balance(right);
+        }
+        setLeft(middle, left);
+        setRight(middle, right);
+        fixHeight(middle);
+        return middle;
+    }
+
+    // то же без разделяющего элемента: им становится максимум левого дерева
+    private Node<T> join(Node<T> left, Node<T> right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        Node<T> max = left;
+        while (max.right != null) max = max.right;
+        return join(removeMax(left), max, right);
+    }
+
+    private Node<T> removeMax(Node<T> node) {
+        if (node.right == null) return node.left;
+        setRight(node, removeMax(node.right));
+        return balance(node);
+    }
+
+    /**
+     * Удаляет все элементы между from и to (null - без границы) за O(log n): дерево разрезается split
+     * по обеим границам, и крайние части склеиваются join. Возвращает количество удаленных элементов.
+     */
+    public int removeRange(T from, boolean fromInclusive, T to, boolean toInclusive) {
+        TreeEvents.BulkEvent event = new TreeEvents.BulkEvent();
+        event.begin();
+        int oldSize = size;
+        int removed = cutRange(from, fromInclusive, to, toInclusive);
+        TreeEvents.commit(event, "removeRange", removed, oldSize, size);
+        return removed;
+    }
+
+    private int cutRange(T from, boolean fromInclusive, T to, boolean toInclusive) {
+        if (from != null && to != null && compare(from, to) > 0) throw new IllegalArgumentException();
+        if (root == null) return 0;
+        Node<T> left = null;
+        Node<T> rest = root;
+        if (from != null) {
+            split(rest, from);
+            rest = splitRight;
+            left = fromInclusive || splitFound == null ? splitLeft : join(splitLeft, splitFound, null);
+        }
+        Node<T> right = null;
+        if (to != null) {
+            split(rest, to);
+            right = toInclusive || splitFound == null ? splitRight : join(null, splitFound, splitRight);
+        }
+        splitLeft = splitFound = splitRight = null;
+        int oldSize = size;
+        setRoot(join(left, right));
+        size = size(root);
+        if (size != oldSize) modCount++;
+        return oldSize - size;
+    }
+
     @Override
     public void clear() {
         size = 0;
         root = null;
+        modCount++;
     }
 
     @Override
@@ -567,7 +1894,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
     }
 
 
-    class SubSet implements NavigableSet<T> {
+    public class SubSet implements NavigableSet<T> {
         T from;
         T to;
         Boolean fromIncluded;
@@ -575,16 +1902,23 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         boolean descending;
 
+        // кэш крайних узлов диапазона, действителен пока modCount == boundsModCount
+        private Node<T> lowest;
+        private Node<T> highest;
+        private boolean hasLowest;
+        private boolean hasHighest;
+        private int boundsModCount = modCount;
+
         public SubSet(T from, Boolean fromIncluded, T to, Boolean toIncluded, boolean descending) {
             if (!descending) {
-                if (to == null || from == null || to.compareTo(from) > 0) {
+                if (to == null || from == null || compare(to, from) >= 0) {
                     this.from = from;
                     this.to = to;
                     this.fromIncluded = fromIncluded;
                     this.toIncluded = toIncluded;
                 } else throw new IllegalArgumentException();
             } else {
-                if (to == null || from == null || to.compareTo(from) < 0) {
+                if (to == null || from == null || compare(to, from) <= 0) {
                     this.from = to;
                     this.to = from;
                     this.fromIncluded = toIncluded;
@@ -594,14 +1928,10 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
             this.descending = descending;
         }
 
-        private int countSize() {
-            Iterator<T> iter = iterator();
-            int counter = 0;
-            while (iter.hasNext()) {
-                iter.next();
-                counter++;
-            }
-            return counter;
+        private int countSize() { // from всегда нижняя граница, to - верхняя, даже у убывающего представления
+            int above = to == null ? AVLTree.this.size : countLess(to, toIncluded);
+            int below = from == null ? 0 : countLess(from, !fromIncluded);
+            return Math.max(0, above - below);
         }
 
         @Override
@@ -611,7 +1941,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         @Override
         public boolean isEmpty() {
-            return countSize() == 0;
+            return startNode(false) == null;
         }
 
         @Override
@@ -624,157 +1954,89 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         @Override
         public T lower(T val) {
-            if (!descending)
-                return privLower(val);
-            else
-                return privHigher(val);
+            return valueOf(lowerNode(val, false));
         }
 
         @Override
         public T higher(T val) {
-            if (!descending)
-                return privHigher(val);
-            else
-                return privLower(val);
+            return valueOf(higherNode(val, false));
         }
 
         @Override
         public T floor(T val) {
-            if (contains(val)) {
-                return val;
-            }
-            if (!descending)
-                return privFloor(val);
-            else
-                return privCeiling(val);
+            return valueOf(lowerNode(val, true));
         }
 
         @Override
         public T ceiling(T val) {
-            if (contains(val)) {
-                return val;
-            }
-            if (!descending)
-                return privCeiling(val);
-            else
-                return privFloor(val);
+            return valueOf(higherNode(val, true));
         }
 
-        private T privLower(T val) {
-            int compare = to == null ? -1 : val.compareTo(to);
-            if (compare > 0) {
-                if (toIncluded != null && toIncluded)
-                    return AVLTree.this.floor(to);
-                else
-                    return AVLTree.this.lower(to);
-            } else if (compare == 0) {
-                return AVLTree.this.lower(to);
-            } else {
-                compare = from == null ? 1 : val.compareTo(from);
-                if (compare <= 0)
-                    return null;
-                else return AVLTree.this.lower(val);
-            }
+        // навигация в порядке представления: ближайший узел диапазона перед val (после val), одним спуском
+
+        Node<T> lowerNode(T val, boolean inclusive) {
+            return descending ? aboveNode(val, inclusive) : belowNode(val, inclusive);
         }
 
-        private T privFloor(T val) {
-            int compare = to == null ? -1 : val.compareTo(to);
-            if (compare >= 0) {
-                if (toIncluded != null && toIncluded)
-                    return AVLTree.this.floor(to);
-                else
-                    return AVLTree.this.lower(to);
-            } else {
-                compare = from == null ? 1 : val.compareTo(from);
-                if (compare < 0)
-                    return null;
-                else if (compare == 0 && fromIncluded != null && fromIncluded)
-                    return from;
-                else return AVLTree.this.lower(val);
-            }
+        Node<T> higherNode(T val, boolean inclusive) {
+            return descending ? belowNode(val, inclusive) : aboveNode(val, inclusive);
         }
 
-        private T privHigher(T val) {
-            int compare = from == null ? 1 : val.compareTo(from);
-            if (compare < 0) {
-                if (fromIncluded != null && fromIncluded)
-                    return AVLTree.this.ceiling(to);
-                else
-                    return AVLTree.this.higher(from);
-            } else if (compare == 0) {
-                return AVLTree.this.higher(from);
-            } else {
-                compare = to == null ? -1 : val.compareTo(to);
-                if (compare >= 0)
-                    return null;
-                else return AVLTree.this.higher(val);
-            }
+        // наибольший узел диапазона не больше val; если val выше диапазона, поиск идет от верхней границы
+        private Node<T> belowNode(T val, boolean inclusive) {
+            int comparision = to == null ? -1 : compare(val, to);
+            Node<T> node = comparision >= 0 ? floorNode(to, toIncluded && (comparision > 0 || inclusive))
+                    : floorNode(val, inclusive);
+            return node != null && isAboveFloor(node.value) ? node : null;
+        }
+
+        private Node<T> aboveNode(T val, boolean inclusive) {
+            int comparision = from == null ? 1 : compare(val, from);
+            Node<T> node = comparision <= 0 ? ceilingNode(from, fromIncluded && (comparision < 0 || inclusive))
+                    : ceilingNode(val, inclusive);
+            return node != null && isBelowCeil(node.value) ? node : null;
         }
 
+        Node<T> firstNode() {
+            return startNode(descending);
+        }
 
-        private T privCeiling(T val) {
-            int compare = from == null ? 1 : val.compareTo(from);
-            if (compare <= 0) {
-                if (fromIncluded != null && fromIncluded)
-                    return AVLTree.this.ceiling(from);
-                else
-                    return AVLTree.this.higher(from);
-            } else {
-                compare = to == null ? -1 : val.compareTo(to);
-                if (compare > 0)
-                    return null;
-                else {
-                    if (compare == 0 && toIncluded != null && toIncluded)
-                        return to;
-                    else return AVLTree.this.higher(val);
-                }
-            }
+        Node<T> lastNode() {
+            return startNode(!descending);
+        }
+
+        boolean inRange(T val) {
+            return isValid(val);
         }
 
         @Override
         public T first() {
-            if (countSize() == 0) throw new NoSuchElementException();
-            if (from == null && !descending)
-                return AVLTree.this.first();
-            else if (to == null && descending)
-                return AVLTree.this.last();
-            else if (!descending)
-                return ceiling(from);
-            else return privFloor(to);
+            Node<T> node = startNode(descending);
+            if (node == null) throw new NoSuchElementException();
+            return node.value;
         }
 
         @Override
         public T last() {
-            if (countSize() == 0) throw new NoSuchElementException();
-            if (to == null && !descending)
-                return AVLTree.this.last();
-            else if (from == null && descending)
-                return AVLTree.this.first();
-            else if (!descending)
-                return floor(to);
-            else return privCeiling(from);
+            Node<T> node = startNode(!descending);
+            if (node == null) throw new NoSuchElementException();
+            return node.value;
         }
 
         @Override
         public T pollFirst() {
-            try {
-                T val = first();
-                remove(val);
-                return val;
-            } catch (NoSuchElementException exc) {
-                return null;
-            }
+            return poll(startNode(descending));
         }
 
         @Override
         public T pollLast() {
-            try {
-                T val = floor(to);
-                remove(val);
-                return val;
-            } catch (NoSuchElementException exc) {
-                return null;
-            }
+            return poll(startNode(!descending));
+        }
+
+        private T poll(Node<T> node) {
+            if (node == null) return null;
+            removeNode(node);
+            return node.value;
         }
 
         @Override
@@ -782,6 +2044,27 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
             return new SubSetIterator(descending);
         }
 
+        // узлы диапазона в порядке представления (reverse - в обратном); remove удаляет узел из дерева
+        Iterator<Node<T>> nodeIterator(boolean reverse) {
+            SubSetIterator iterator = new SubSetIterator(descending != reverse);
+            return new Iterator<Node<T>>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public Node<T> next() {
+                    return iterator.nextNode();
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                }
+            };
+        }
+
         @Override
         public boolean add(T val) {
             if (isValid(val)) {
@@ -824,20 +2107,21 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         @NotNull
         @Override
-        public NavigableSet<T> descendingSet() {
-            return new SubSet(to, toIncluded, from, fromIncluded, !descending);
+        public SubSet descendingSet() { // границы хранятся по возрастанию, конструктор ждет их в порядке нового представления
+            if (descending) return new SubSet(from, fromIncluded, to, toIncluded, false);
+            return new SubSet(to, toIncluded, from, fromIncluded, true);
         }
 
         public boolean isInRange(T fromV, Boolean fromInc, T toV, Boolean toInc) {
             if (from != null && fromV != null) {
-                int fromComp = fromV.compareTo(from);
+                int fromComp = compare(fromV, from);
                 if (fromComp < 0)
                     return false;
                 else if ((fromComp == 0 && fromInc && !fromIncluded))
                     return false;
             }
             if (to != null && toV != null) {
-                int toComp = toV.compareTo(to);
+                int toComp = compare(toV, to);
                 if (toComp > 0)
                     return false;
                 else if (toComp == 0 && !toIncluded && toInc)
@@ -854,7 +2138,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         @NotNull
         @Override
-        public NavigableSet<T> subSet(T o, boolean b, T e1, boolean b1) {
+        public SubSet subSet(T o, boolean b, T e1, boolean b1) {
             boolean isInRange = !descending ? isInRange(o, b, e1, b1) : isInRange(e1, b1, o, b);
             if (isInRange)
                 return new SubSet(o, b, e1, b1, descending);
@@ -863,7 +2147,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         @NotNull
         @Override
-        public NavigableSet<T> headSet(T o, boolean b) {
+        public SubSet headSet(T o, boolean b) {
             boolean isInRange = !descending ? isInRange(null, null, o, b) : isInRange(o, b, null, null);
             if (isInRange) {
                 if (!descending)
@@ -875,7 +2159,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         @NotNull
         @Override
-        public NavigableSet<T> tailSet(T o, boolean b) {
+        public SubSet tailSet(T o, boolean b) {
             boolean isInRange = !descending ? isInRange(o, b, null, null) : isInRange(null, null, o, b);
             if (isInRange) {
                 if (!descending)
@@ -887,7 +2171,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         @NotNull
         @Override
-        public SortedSet<T> subSet(T o, T e1) {
+        public SubSet subSet(T o, T e1) {
             boolean isInRange = !descending ? isInRange(o, true, e1, false) : isInRange(e1, false, o, true);
             if (isInRange)
                 return new SubSet(o, true, e1, false, descending);
@@ -896,7 +2180,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         @NotNull
         @Override
-        public SortedSet<T> headSet(T o) {
+        public SubSet headSet(T o) {
             boolean isInRange = !descending ? isInRange(null, null, o, false) : isInRange(o, false, null, null);
             if (isInRange) {
                 if (!descending)
@@ -908,7 +2192,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         @NotNull
         @Override
-        public SortedSet<T> tailSet(T o) {
+        public SubSet tailSet(T o) {
             boolean isInRange = !descending ? isInRange(o, true, null, null) : isInRange(null, null, o, true);
             if (isInRange) {
                 if (!descending)
@@ -919,8 +2203,9 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
         }
 
         @Override
-        public Comparator comparator() {
-            return (Comparator<T>) (o, t1) -> o.compareTo(t1);
+        public Comparator<? super T> comparator() {
+            if (!descending) return comparator;
+            return comparator == null ? (Comparator<? super T>) Collections.reverseOrder() : Collections.reverseOrder(comparator);
         }
 
         @Override
@@ -976,11 +2261,11 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         @Override
         public void clear() {
-            Iterator<T> iter = iterator();
-            while (iter.hasNext()) {
-                iter.next();
-                iter.remove();
-            }
+            TreeEvents.BulkEvent event = new TreeEvents.BulkEvent();
+            event.begin();
+            int oldSize = AVLTree.this.size;
+            int removed = cutRange(from, fromIncluded != null && fromIncluded, to, toIncluded != null && toIncluded);
+            TreeEvents.commit(event, "SubSet.clear", removed, oldSize, AVLTree.this.size);
         }
 
         private boolean isValid(T val) {
@@ -992,7 +2277,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         private boolean isBelowCeil(T value) {
             if (to == null) return true;
-            int comparision = value.compareTo(to);
+            int comparision = compare(value, to);
             if (comparision == 0) {
                 if (toIncluded)
                     return true;
@@ -1004,7 +2289,7 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
 
         private boolean isAboveFloor(T value) {
             if (from == null) return true;
-            int comparision = value.compareTo(from);
+            int comparision = compare(value, from);
             if (comparision == 0) {
                 if (fromIncluded)
                     return true;
@@ -1014,112 +2299,94 @@ public class AVLTree<T extends Comparable<T>> implements NavigableSet<T> {
             else return false;
         }
 
-        private class SubSetIterator implements Iterator {
-            Deque<Node<T>> stack = new LinkedList<>();
-            T lastReturned = null;
+        // первый узел диапазона в порядке обхода или null, если диапазон пуст; каждый край ищется одним
+        // спуском с границей и запоминается до следующего структурного изменения дерева
+        private Node<T> startNode(boolean isDecsending) {
+            if (boundsModCount != modCount) {
+                hasLowest = hasHighest = false;
+                lowest = highest = null;
+                boundsModCount = modCount;
+            }
+            if (!isDecsending) {
+                if (!hasLowest) {
+                    Node<T> start = from == null ? findMin(root) : ceilingNode(from, fromIncluded);
+                    lowest = start != null && isBelowCeil(start.value) ? start : null;
+                    hasLowest = true;
+                }
+                return lowest;
+            }
+            if (!hasHighest) {
+                Node<T> start = to == null ? findMax(root) : floorNode(to, toIncluded);
+                highest = start != null && isAboveFloor(start.value) ? start : null;
+                hasHighest = true;
+            }
+            return highest;
+        }
+
+        /**
+         * Свертка элементов диапазона в порядке возрастания, O(log n); null для пустого диапазона.
+         */
+        public <A> A aggregate() {
+            if (combiner == null) throw new UnsupportedOperationException();
+            return (A) aggregateRange(from, fromIncluded != null && fromIncluded, to, toIncluded != null && toIncluded);
+        }
+
+        /**
+         * Курсор по элементам диапазона в порядке этого представления.
+         */
+        public Cursor cursor() {
+            return new Cursor(from, fromIncluded != null && fromIncluded, to, toIncluded != null && toIncluded, descending);
+        }
+
+        @Override
+        public Spliterator<T> spliterator() {
+            int count = countSize();
+            return new AVLSpliterator(count == 0 ? null : startNode(descending), count, descending, comparator(), modCount);
+        }
+
+        private class SubSetIterator implements Iterator<T> {
+            Node<T> next;
+            Node<T> lastReturned = null;
             boolean isDecsending;
+            int expectedModCount = modCount;
 
             private SubSetIterator(boolean isDecsending) {
                 this.isDecsending = isDecsending;
-                if (root != null) {
-                    if (!isDecsending) {
-                        if (isValid(root.value))
-                            fillStack(root);
-                        else if (!isBelowCeil(root.value)) {
-                            fillStack(root.left);
-                        } else {
-                            fillStack(root.right);
-                        }
-                    } else {
-                        if (isValid(root.value))
-                            fillStack(root);
-                        else if (isBelowCeil(root.value)) {
-                            fillStack(root.right);
-                        } else {
-                            fillStack(root.left);
-                        }
-                    }
-                }
+                next = startNode(isDecsending);
             }
 
-            private void fillStackAfterRemove(Node<T> node, T stop) {
-                if (node != null) {
-                    if (!isDecsending) {
-                        if (node.value.compareTo(stop) <= 0) {
-                            fillStackAfterRemove(node.right, stop);
-                            return;
-                        }
-                        if (isBelowCeil(node.value)) stack.add(node);
-                        fillStackAfterRemove(node.left, stop);
-                    } else {
-                        if (node.value.compareTo(stop) >= 0) {
-                            fillStackAfterRemove(node.left, stop);
-                            return;
-                        }
-                        if (isAboveFloor(node.value)) stack.add(node);
-                        fillStackAfterRemove(node.right, stop);
-                    }
-                }
+            // конец диапазона: дальше по порядку обхода элементов представления нет
+            private void checkBound() {
+                if (next != null && !(isDecsending ? isAboveFloor(next.value) : isBelowCeil(next.value)))
+                    next = null;
             }
 
             @Override
             public boolean hasNext() {
-                return !stack.isEmpty();
+                return next != null;
             }
 
             @Override
             public T next() {
-                if (hasNext()) {
-                    Node<T> toReturn = stack.pollLast();
-                    if (!isDecsending) {
-                        if (isBelowCeil(toReturn.value)) fillStack(toReturn.right);
-                        lastReturned = toReturn.value;
-                        return toReturn.value;
-                    } else {
-                        if (isAboveFloor(toReturn.value)) fillStack(toReturn.left);
-                        lastReturned = toReturn.value;
-                        return toReturn.value;
-                    }
-                } else {
-                    throw new NoSuchElementException();
-                }
+                return nextNode().value;
             }
 
-            private void fillStack(Node<T> node) {
-                if (node != null) {
-                    if (!isDecsending) {
-                        if (!isAboveFloor(node.value)) {
-                            fillStack(node.right);
-                            return;
-                        }
-                        if (isBelowCeil(node.value)) stack.add(node);
-                        fillStack(node.left);
-                    } else {
-                        if (!isBelowCeil(node.value)) {
-                            fillStack(node.left);
-                            return;
-                        }
-                        if (isAboveFloor(node.value)) stack.add(node);
-                        fillStack(node.right);
-                    }
-                }
+            private Node<T> nextNode() {
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                if (next == null) throw new NoSuchElementException();
+                lastReturned = next;
+                next = isDecsending ? predecessor(next) : successor(next);
+                checkBound();
+                return lastReturned;
             }
 
             @Override
             public void remove() {
-                if (lastReturned != null) {
-                    if (!stack.isEmpty()) {
-                        AVLTree.this.remove(lastReturned);
-                        Node<T> start = highest(stack);
-                        stack.clear();
-                        T stop = lastReturned;
-                        lastReturned = null;
-                        fillStackAfterRemove(start, stop);
-                    } else {
-                        AVLTree.this.remove(lastReturned);
-                        lastReturned = null;
-                    }
-                } else throw new IllegalStateException();
+                if (lastReturned == null) throw new IllegalStateException();
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                removeNode(lastReturned);
+                expectedModCount = modCount;
+                lastReturned = null;
             }
         }
     }
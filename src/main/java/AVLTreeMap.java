@@ -0,0 +1,423 @@
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Отображение на движке AVLTree: узел дерева сам является записью (Entry - подкласс AVLTree.Node со
+ * значением), так что на пару ключ-значение приходится один объект, а поиск идет по голому ключу.
+ * Повороты, ссылки на родителя и размеры поддеревьев - те же, что у AVLTree, а диапазоны и обратный
+ * порядок берутся у AVLTree.SubSet: subMap, headMap, tailMap и descendingMap - это отображения над тем же
+ * деревом с другим представлением ключей. put, computeIfAbsent и merge укладываются в один спуск.
+ */
+public class AVLTreeMap<K, V> extends AbstractMap<K, V> implements NavigableMap<K, V> {
+    private final KeyTree<K> tree;
+    private final AVLTree<K>.SubSet keys; // границы и порядок этого представления; у самого отображения без границ
+    private EntrySet entrySet;
+
+    static final class Entry<K, V> extends AVLTree.Node<K> implements Map.Entry<K, V> {
+        private V mapping;
+
+        private Entry(K key, V mapping) {
+            super(key);
+            this.mapping = mapping;
+        }
+
+        @Override
+        public K getKey() {
+            return value;
+        }
+
+        @Override
+        public V getValue() {
+            return mapping;
+        }
+
+        @Override
+        public V setValue(V mapping) {
+            V old = this.mapping;
+            this.mapping = mapping;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            return Objects.equals(value, entry.getKey()) && Objects.equals(mapping, entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(value) ^ Objects.hashCode(mapping);
+        }
+
+        @Override
+        public String toString() {
+            return value + "=" + mapping;
+        }
+    }
+
+    // дерево ключей: узлы создает только отображение, поэтому добавление через набор ключей запрещено
+    private static final class KeyTree<K> extends AVLTree<K> {
+        private KeyTree(Comparator<? super K> comparator) {
+            super(comparator);
+        }
+
+        @Override
+        public boolean add(K value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends K> collection) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean addAllSorted(K[] sorted) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean addAllSorted(Iterator<? extends K> sorted) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public AVLTreeMap() {
+        this((Comparator<? super K>) null);
+    }
+
+    // порядок задается компаратором; null - естественный порядок ключей
+    public AVLTreeMap(Comparator<? super K> comparator) {
+        this.tree = new KeyTree<>(comparator);
+        this.keys = tree.new SubSet(null, false, null, false, false);
+    }
+
+    public AVLTreeMap(Map<? extends K, ? extends V> map) {
+        this(map instanceof SortedMap ? ((SortedMap<K, ? extends V>) map).comparator() : null);
+        putAll(map);
+    }
+
+    private AVLTreeMap(KeyTree<K> tree, AVLTree<K>.SubSet keys) {
+        this.tree = tree;
+        this.keys = keys;
+    }
+
+    private Entry<K, V> entry(Object key) {
+        K k = (K) key;
+        if (!keys.inRange(Objects.requireNonNull(k))) return null;
+        return (Entry<K, V>) tree.find(k);
+    }
+
+    private void checkRange(K key) {
+        if (!keys.inRange(Objects.requireNonNull(key))) throw new IllegalArgumentException();
+    }
+
+    private static <K, V> Map.Entry<K, V> snapshot(AVLTree.Node<K> node) {
+        if (node == null) return null;
+        Entry<K, V> entry = (Entry<K, V>) node;
+        return new SimpleImmutableEntry<>(entry.value, entry.mapping);
+    }
+
+    private static <K> K key(AVLTree.Node<K> node) {
+        if (node == null) throw new NoSuchElementException();
+        return node.value;
+    }
+
+    private static <K> K keyOrNull(AVLTree.Node<K> node) {
+        return node == null ? null : node.value;
+    }
+
+    @Override
+    public int size() {
+        return keys.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return entry(key) != null;
+    }
+
+    @Override
+    public V get(Object key) {
+        Entry<K, V> entry = entry(key);
+        return entry == null ? null : entry.mapping;
+    }
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        Entry<K, V> entry = entry(key);
+        return entry == null ? defaultValue : entry.mapping;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        checkRange(key);
+        AVLTree.Position<K> position = tree.findOrParent(key);
+        if (position.found()) return ((Entry<K, V>) position.node).setValue(value);
+        tree.attach(position, new Entry<>(key, value));
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        Entry<K, V> entry = entry(key);
+        if (entry == null) return null;
+        tree.removeNode(entry); // без второго спуска: путь вверх известен по ссылкам на родителя
+        return entry.mapping;
+    }
+
+    // Функция вызывается между спуском и вставкой; если она изменила дерево, найденное место
+    // устарело - ConcurrentModificationException, как у TreeMap (attach проверяет это сам).
+
+    @Override
+    public V computeIfAbsent(K key, @NotNull Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        checkRange(key);
+        AVLTree.Position<K> position = tree.findOrParent(key);
+        Entry<K, V> entry = position.found() ? (Entry<K, V>) position.node : null;
+        if (entry != null && entry.mapping != null) return entry.mapping;
+        V value = mappingFunction.apply(key);
+        if (tree.modCount() != position.modCount) throw new ConcurrentModificationException();
+        if (value == null) return null;
+        if (entry != null)
+            entry.mapping = value;
+        else
+            tree.attach(position, new Entry<>(key, value));
+        return value;
+    }
+
+    @Override
+    public V merge(K key, @NotNull V value, @NotNull BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        checkRange(key);
+        AVLTree.Position<K> position = tree.findOrParent(key);
+        if (!position.found()) {
+            tree.attach(position, new Entry<>(key, value));
+            return value;
+        }
+        Entry<K, V> entry = (Entry<K, V>) position.node;
+        if (entry.mapping == null) {
+            entry.mapping = value;
+            return value;
+        }
+        V merged = remappingFunction.apply(entry.mapping, value);
+        if (tree.modCount() != position.modCount) throw new ConcurrentModificationException();
+        if (merged == null)
+            tree.removeNode(entry);
+        else
+            entry.mapping = merged;
+        return merged;
+    }
+
+    @Override
+    public void clear() {
+        keys.clear();
+    }
+
+    @Override
+    public Map.Entry<K, V> lowerEntry(K key) {
+        return snapshot(keys.lowerNode(key, false));
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return keyOrNull(keys.lowerNode(key, false));
+    }
+
+    @Override
+    public Map.Entry<K, V> floorEntry(K key) {
+        return snapshot(keys.lowerNode(key, true));
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return keyOrNull(keys.lowerNode(key, true));
+    }
+
+    @Override
+    public Map.Entry<K, V> ceilingEntry(K key) {
+        return snapshot(keys.higherNode(key, true));
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return keyOrNull(keys.higherNode(key, true));
+    }
+
+    @Override
+    public Map.Entry<K, V> higherEntry(K key) {
+        return snapshot(keys.higherNode(key, false));
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return keyOrNull(keys.higherNode(key, false));
+    }
+
+    @Override
+    public Map.Entry<K, V> firstEntry() {
+        return snapshot(keys.firstNode());
+    }
+
+    @Override
+    public Map.Entry<K, V> lastEntry() {
+        return snapshot(keys.lastNode());
+    }
+
+    @Override
+    public K firstKey() {
+        return key(keys.firstNode());
+    }
+
+    @Override
+    public K lastKey() {
+        return key(keys.lastNode());
+    }
+
+    @Override
+    public Map.Entry<K, V> pollFirstEntry() {
+        return poll(keys.firstNode());
+    }
+
+    @Override
+    public Map.Entry<K, V> pollLastEntry() {
+        return poll(keys.lastNode());
+    }
+
+    private Map.Entry<K, V> poll(AVLTree.Node<K> node) {
+        if (node == null) return null;
+        Map.Entry<K, V> result = snapshot(node);
+        tree.removeNode(node);
+        return result;
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return keys.comparator();
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<K> keySet() {
+        return keys;
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return keys;
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return keys.descendingSet();
+    }
+
+    @NotNull
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) entrySet = new EntrySet();
+        return entrySet;
+    }
+
+    @Override
+    public NavigableMap<K, V> descendingMap() {
+        return new AVLTreeMap<>(tree, keys.descendingSet());
+    }
+
+    @Override
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return new AVLTreeMap<>(tree, keys.subSet(fromKey, fromInclusive, toKey, toInclusive));
+    }
+
+    @Override
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+        return new AVLTreeMap<>(tree, keys.headSet(toKey, inclusive));
+    }
+
+    @Override
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        return new AVLTreeMap<>(tree, keys.tailSet(fromKey, inclusive));
+    }
+
+    @NotNull
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    public boolean checkInvariant() {
+        return tree.checkInvariant();
+    }
+
+    // записи - сами узлы дерева: setValue у записи из итератора меняет отображение
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+        @NotNull
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            Iterator<AVLTree.Node<K>> nodes = keys.nodeIterator(false);
+            return new Iterator<Map.Entry<K, V>>() {
+                @Override
+                public boolean hasNext() {
+                    return nodes.hasNext();
+                }
+
+                @Override
+                public Map.Entry<K, V> next() {
+                    return (Entry<K, V>) nodes.next();
+                }
+
+                @Override
+                public void remove() {
+                    nodes.remove();
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            Entry<K, V> node = entry(entry.getKey());
+            return node != null && Objects.equals(node.mapping, entry.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!contains(o)) return false;
+            tree.removeNode(entry(((Map.Entry<?, ?>) o).getKey()));
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return AVLTreeMap.this.size();
+        }
+
+        @Override
+        public void clear() {
+            AVLTreeMap.this.clear();
+        }
+    }
+}
@@ -0,0 +1,520 @@
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.*;
+
+/**
+ * АВЛ-дерево без объектов-узлов: левый и правый сын, высота, размер поддерева и ключ узла хранятся
+ * в параллельных массивах и адресуются номером ячейки. Освобожденные ячейки переиспользуются через список свободных.
+ * В режиме offHeap ссылки и высоты лежат в direct-буферах вне кучи, в куче остается только массив ключей.
+ */
+public class ArenaAVLTree<T extends Comparable<T>> extends AbstractSet<T> implements RankedSet<T> {
+    private static final int NIL = 0; // ячейка 0 не используется: ее высота 0, ссылки на нее - пустые
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final boolean offHeap;
+    private Object[] keys;
+    private IntBuffer left;
+    private IntBuffer right;
+    private IntBuffer height;
+    private IntBuffer sizes; // количество узлов в поддереве, включая сам узел
+    private int root = NIL;
+    private int size = 0;
+    private int modCount = 0; // счетчик структурных изменений для fail-fast итераторов
+    private int used = 1; // ячейки [1, used) хотя бы раз выдавались
+    private int free = NIL; // голова списка свободных ячеек, связанного через left
+    // путь от корня при вставке и удалении; высота АВЛ-дерева из 2^31 узлов меньше 64
+    private final int[] path = new int[64];
+
+    public ArenaAVLTree() {
+        this(DEFAULT_CAPACITY, false);
+    }
+
+    public ArenaAVLTree(int initialCapacity, boolean offHeap) {
+        if (initialCapacity < 0) throw new IllegalArgumentException();
+        this.offHeap = offHeap;
+        allocateArena(Math.max(initialCapacity + 1, 2));
+    }
+
+    private void allocateArena(int capacity) {
+        keys = new Object[capacity];
+        left = newBuffer(capacity);
+        right = newBuffer(capacity);
+        height = newBuffer(capacity);
+        sizes = newBuffer(capacity);
+    }
+
+    private IntBuffer newBuffer(int capacity) {
+        if (offHeap)
+            return ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+        return IntBuffer.allocate(capacity);
+    }
+
+    private IntBuffer grow(IntBuffer old, int capacity) {
+        IntBuffer grown = newBuffer(capacity);
+        old.clear();
+        grown.put(old);
+        grown.clear();
+        return grown;
+    }
+
+    private int allocate(T key) {
+        int node;
+        if (free != NIL) {
+            node = free;
+            free = left.get(node);
+        } else {
+            if (used == keys.length) {
+                int capacity = keys.length * 2;
+                if (capacity < 0 || offHeap && capacity > Integer.MAX_VALUE / Integer.BYTES) throw new OutOfMemoryError();
+                keys = Arrays.copyOf(keys, capacity);
+                left = grow(left, capacity);
+                right = grow(right, capacity);
+                height = grow(height, capacity);
+                sizes = grow(sizes, capacity);
+            }
+            node = used++;
+        }
+        keys[node] = key;
+        left.put(node, NIL);
+        right.put(node, NIL);
+        height.put(node, 1);
+        sizes.put(node, 1);
+        return node;
+    }
+
+    private void release(int node) {
+        keys[node] = null;
+        left.put(node, free);
+        free = node;
+    }
+
+    private T key(int node) {
+        return (T) keys[node];
+    }
+
+    private int height(int node) {
+        return height.get(node);
+    }
+
+    private int size(int node) {
+        return sizes.get(node);
+    }
+
+    private void fixHeight(int node) {
+        int leftNode = left.get(node);
+        int rightNode = right.get(node);
+        height.put(node, Math.max(height.get(leftNode), height.get(rightNode)) + 1);
+        sizes.put(node, sizes.get(leftNode) + sizes.get(rightNode) + 1); // размер пересчитывается вместе с высотой
+    }
+
+    private int rotateLeft(int pivot) {
+        int pivotRight = right.get(pivot);
+        right.put(pivot, left.get(pivotRight));
+        left.put(pivotRight, pivot);
+        fixHeight(pivot);
+        fixHeight(pivotRight);
+        return pivotRight;
+    }
+
+    private int rotateRight(int pivot) {
+        int pivotLeft = left.get(pivot);
+        left.put(pivot, right.get(pivotLeft));
+        right.put(pivotLeft, pivot);
+        fixHeight(pivot);
+        fixHeight(pivotLeft);
+        return pivotLeft;
+    }
+
+    private int balance(int node) {
+        int balanceFactor = height(right.get(node)) - height(left.get(node));
+        fixHeight(node);
+        if (balanceFactor == 2) {
+            int child = right.get(node);
+            if (height(right.get(child)) < height(left.get(child))) right.put(node, rotateRight(child));
+            return rotateLeft(node);
+        } else if (balanceFactor == -2) {
+            int child = left.get(node);
+            if (height(left.get(child)) < height(right.get(child))) left.put(node, rotateLeft(child));
+            return rotateRight(node);
+        }
+        return node;
+    }
+
+    private void relink(int index, int oldNode, int newNode) {
+        if (index == 0) {
+            root = newNode;
+            return;
+        }
+        int parent = path[index - 1];
+        if (left.get(parent) == oldNode)
+            left.put(parent, newNode);
+        else
+            right.put(parent, newNode);
+    }
+
+    // балансировка по сохраненному пути снизу вверх до первого уровня, где высота не изменилась;
+    // выше него меняются только размеры поддеревьев
+    private void fixPath(int depth, int sizeDelta) {
+        int i = depth - 1;
+        while (i >= 0) {
+            int node = path[i];
+            int oldHeight = height(node);
+            int balanced = balance(node);
+            if (balanced != node) relink(i, node, balanced);
+            i--;
+            if (height(balanced) == oldHeight) break;
+        }
+        for (; i >= 0; i--) sizes.put(path[i], size(path[i]) + sizeDelta);
+    }
+
+    @Override
+    public boolean add(T value) {
+        Objects.requireNonNull(value); // в пустом дереве сравнения нет, а null сломал бы все следующие
+        if (root == NIL) {
+            root = allocate(value);
+            size++;
+            modCount++;
+            return true;
+        }
+        int depth = 0;
+        int current = root;
+        while (true) {
+            path[depth++] = current;
+            int comparision = key(current).compareTo(value);
+            if (comparision == 0) return false;
+            int next = comparision > 0 ? left.get(current) : right.get(current);
+            if (next == NIL) {
+                int node = allocate(value); // может заменить буферы, поэтому до обращения к left/right
+                if (comparision > 0)
+                    left.put(current, node);
+                else
+                    right.put(current, node);
+                break;
+            }
+            current = next;
+        }
+        size++;
+        modCount++;
+        fixPath(depth, 1);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        T value = (T) o;
+        int depth = 0;
+        int current = root;
+        while (current != NIL) {
+            path[depth++] = current;
+            int comparision = key(current).compareTo(value);
+            if (comparision == 0) break;
+            current = comparision > 0 ? left.get(current) : right.get(current);
+        }
+        if (current == NIL) return false;
+        int removed = depth - 1;
+        if (right.get(current) == NIL) { // если правого поддерева нет, то на место узла встает левое поддерево
+            relink(removed, current, left.get(current));
+            depth--;
+        } else { // иначе на место узла встает минимальный элемент правого поддерева
+            int min = right.get(current);
+            while (left.get(min) != NIL) {
+                path[depth++] = min;
+                min = left.get(min);
+            }
+            if (depth - 1 > removed) {
+                left.put(path[depth - 1], right.get(min));
+                right.put(min, right.get(current));
+            }
+            left.put(min, left.get(current));
+            height.put(min, height(current));
+            sizes.put(min, size(current));
+            relink(removed, current, min);
+            path[removed] = min;
+        }
+        release(current);
+        size--;
+        modCount++;
+        fixPath(depth, -1);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        T value = (T) o;
+        int current = root;
+        while (current != NIL) {
+            int comparision = key(current).compareTo(value);
+            if (comparision == 0) return true;
+            current = comparision > 0 ? left.get(current) : right.get(current);
+        }
+        return false;
+    }
+
+    @Override
+    public int countLess(T value, boolean inclusive) {
+        int count = 0;
+        int current = root;
+        while (current != NIL) {
+            int comparision = key(current).compareTo(value);
+            if (comparision < 0 || inclusive && comparision == 0) {
+                count += size(left.get(current)) + 1;
+                current = right.get(current);
+            } else current = left.get(current);
+        }
+        return count;
+    }
+
+    // навигация: один спуск с запоминанием лучшего кандидата, NIL - подходящего элемента нет
+
+    private int lowerNode(T value, boolean inclusive) {
+        int best = NIL;
+        int current = root;
+        while (current != NIL) {
+            int comparision = key(current).compareTo(value);
+            if (comparision < 0 || inclusive && comparision == 0) {
+                best = current;
+                if (comparision == 0) break;
+                current = right.get(current);
+            } else current = left.get(current);
+        }
+        return best;
+    }
+
+    private int higherNode(T value, boolean inclusive) {
+        int best = NIL;
+        int current = root;
+        while (current != NIL) {
+            int comparision = key(current).compareTo(value);
+            if (comparision > 0 || inclusive && comparision == 0) {
+                best = current;
+                if (comparision == 0) break;
+                current = left.get(current);
+            } else current = right.get(current);
+        }
+        return best;
+    }
+
+    private int extremeNode(boolean max) {
+        int current = root;
+        if (current == NIL) return NIL;
+        for (int next = max ? right.get(current) : left.get(current); next != NIL;
+             next = max ? right.get(current) : left.get(current)) {
+            current = next;
+        }
+        return current;
+    }
+
+    @Override
+    public T lower(T value) {
+        return key(lowerNode(value, false));
+    }
+
+    @Override
+    public T floor(T value) {
+        return key(lowerNode(value, true));
+    }
+
+    @Override
+    public T ceiling(T value) {
+        return key(higherNode(value, true));
+    }
+
+    @Override
+    public T higher(T value) {
+        return key(higherNode(value, false));
+    }
+
+    @Override
+    public T first() {
+        if (size == 0) throw new NoSuchElementException();
+        return key(extremeNode(false));
+    }
+
+    @Override
+    public T last() {
+        if (size == 0) throw new NoSuchElementException();
+        return key(extremeNode(true));
+    }
+
+    @Override
+    public T pollFirst() {
+        if (size == 0) return null;
+        T value = key(extremeNode(false));
+        remove(value);
+        return value;
+    }
+
+    @Override
+    public T pollLast() {
+        if (size == 0) return null;
+        T value = key(extremeNode(true));
+        remove(value);
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        // массивы остаются прежнего размера, как у ArrayList: заново заполненное дерево не растет с нуля
+        Arrays.fill(keys, 1, used, null);
+        root = NIL;
+        size = 0;
+        used = 1;
+        free = NIL;
+        modCount++;
+    }
+
+    public int height() {
+        return height(root);
+    }
+
+    int capacity() {
+        return keys.length - 1;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public boolean checkInvariant() {
+        return root == NIL || checkInvariant(root, null, null);
+    }
+
+    private boolean checkInvariant(int node, T low, T high) {
+        T value = key(node);
+        if (low != null && value.compareTo(low) <= 0 || high != null && value.compareTo(high) >= 0) return false;
+        int leftNode = left.get(node);
+        int rightNode = right.get(node);
+        if (height(node) != Math.max(height(leftNode), height(rightNode)) + 1) return false;
+        if (size(node) != size(leftNode) + size(rightNode) + 1) return false;
+        if (Math.abs(height(rightNode) - height(leftNode)) > 1) return false;
+        return (leftNode == NIL || checkInvariant(leftNode, low, value))
+                && (rightNode == NIL || checkInvariant(rightNode, value, high));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return new ArenaIterator(false);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> descendingIterator() {
+        return new ArenaIterator(true);
+    }
+
+    @Override
+    public Comparator<? super T> comparator() {
+        return null;
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> descendingSet() {
+        return SubSetView.descending(this);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive) {
+        return SubSetView.range(this, true, fromElement, fromInclusive, true, toElement, toInclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> headSet(T toElement, boolean inclusive) {
+        return SubSetView.range(this, false, null, false, true, toElement, inclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> tailSet(T fromElement, boolean inclusive) {
+        return SubSetView.range(this, true, fromElement, inclusive, false, null, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> headSet(T toElement) {
+        return headSet(toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> tailSet(T fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    // обход со стеком номеров ячеек; высота АВЛ-дерева меньше 64, так что стек не переполняется
+    private class ArenaIterator implements Iterator<T> {
+        private final int[] stack = new int[64];
+        private int depth = 0;
+        private final boolean descending;
+        private T lastReturned = null;
+        private int expectedModCount = modCount;
+
+        private ArenaIterator(boolean descending) {
+            this.descending = descending;
+            pushEdge(root);
+        }
+
+        private void pushEdge(int node) {
+            while (node != NIL) {
+                stack[depth++] = node;
+                node = descending ? right.get(node) : left.get(node);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        @Override
+        public T next() {
+            // после изменения ячейки в стеке могли освободиться или перейти к другим ключам
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (depth == 0) throw new NoSuchElementException();
+            int node = stack[--depth];
+            pushEdge(descending ? left.get(node) : right.get(node));
+            lastReturned = key(node);
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            ArenaAVLTree.this.remove(lastReturned);
+            expectedModCount = modCount;
+            depth = 0; // после перебалансировки стек строится заново от корня
+            int current = root;
+            while (current != NIL) {
+                int comparision = key(current).compareTo(lastReturned);
+                if (descending ? comparision < 0 : comparision > 0) {
+                    stack[depth++] = current;
+                    current = descending ? right.get(current) : left.get(current);
+                } else current = descending ? left.get(current) : right.get(current);
+            }
+            lastReturned = null;
+        }
+    }
+}
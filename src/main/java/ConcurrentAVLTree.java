@@ -0,0 +1,728 @@
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Потокобезопасное АВЛ-дерево по схеме Bronson, Casper, Chafi, Olukotun "A Practical Concurrent Binary Search
+ * Tree" (PPoPP 2010). У каждого узла своя версия и свой монитор, общей блокировки нет.
+ * Читатели не блокируют: спуск идет "из рук в руки" - запоминается версия ребенка, затем проверяется, что
+ * версия родителя не изменилась. Если ребенок сейчас сжимается поворотом, читатель ждет конца поворота,
+ * если сменилась версия родителя - повторяет шаг уровнем выше.
+ * Писатели блокируют только изменяемые узлы (родителя и ребенка, при поворотах - до четырех узлов), всегда
+ * сверху вниз. Удаление узла с двумя детьми только снимает с него признак присутствия: узел остается
+ * маршрутом, пока у него не останется одного ребенка, после чего его вырезает балансировка.
+ * Итераторы, size() и clear() слабо согласованы, как у ConcurrentSkipListSet.
+ */
+public class ConcurrentAVLTree<T extends Comparable<T>> extends AbstractSet<T> implements NavigableSet<T> {
+    // режимы поиска
+    private static final int EXACT = 0;
+    private static final int LOWER = 1;
+    private static final int FLOOR = 2;
+    private static final int CEILING = 3;
+    private static final int HIGHER = 4;
+    private static final int FIRST = 5;
+    private static final int LAST = 6;
+
+    // версия узла: бит вырезанного узла, бит идущего поворота и счетчик поворотов, уменьшивших поддерево
+    private static final long UNLINKED = 1;
+    private static final long SHRINKING = 2;
+    private static final long SHRINK_COUNT = 4;
+    // сколько раз читатель проверяет версию, прежде чем ждать поворот на мониторе узла
+    private static final int SPIN_COUNT = 100;
+
+    // результаты attemptUpdate
+    private static final int UNCHANGED = 0;
+    private static final int CHANGED = 1;
+    private static final int AGAIN = 2;
+
+    // результаты nodeCondition, кроме них - новая высота узла
+    private static final int UNLINK_REQUIRED = -1;
+    private static final int REBALANCE_REQUIRED = -2;
+    private static final int NOTHING_REQUIRED = -3;
+
+    // корень дерева - правый ребенок rootHolder; сам rootHolder не сравнивается, не сжимается и не вырезается
+    private final Node<T> rootHolder = new Node<>(null, null);
+    private final Node<T> retry = new Node<>(null, null); // признак спуска, который нужно повторить
+    // меняется после линеаризации add/remove, поэтому точен только без одновременных изменений
+    private final AtomicInteger size = new AtomicInteger();
+
+    private static final class Node<T> {
+        private final T value;
+        private volatile boolean present; // false - узел-маршрут: значение удалено, узел еще нужен для поиска
+        private volatile int height;
+        private volatile long version;
+        private volatile Node<T> parent;
+        private volatile Node<T> left;
+        private volatile Node<T> right;
+
+        private Node(T value, Node<T> parent) {
+            this.value = value;
+            this.parent = parent;
+            this.present = value != null;
+            this.height = value == null ? 0 : 1;
+        }
+    }
+
+    private static boolean isUnlinked(long version) {
+        return (version & UNLINKED) != 0;
+    }
+
+    private static boolean isShrinkingOrUnlinked(long version) {
+        return (version & (UNLINKED | SHRINKING)) != 0;
+    }
+
+    private static long beginShrink(long version) {
+        return version | SHRINKING;
+    }
+
+    private static long endShrink(long version) {
+        return version + SHRINK_COUNT;
+    }
+
+    private static void waitUntilShrinkCompleted(Node<?> node, long version) {
+        if ((version & SHRINKING) == 0) return;
+        for (int i = 0; i < SPIN_COUNT; i++) {
+            if (node.version != version) return;
+            Thread.onSpinWait();
+        }
+        synchronized (node) { // поворот идет под монитором узла, вход дождется его конца
+        }
+    }
+
+    private static int height(Node<?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    // чтение
+
+    private Node<T> locate(T value, int mode) {
+        while (true) {
+            Node<T> result = attemptLocate(value, mode, rootHolder, rootHolder.version, null);
+            if (result != retry) return result;
+        }
+    }
+
+    // спуск от node, версия которого nodeVersion уже проверена родителем; best - лучший кандидат выше по пути
+    private Node<T> attemptLocate(T value, int mode, Node<T> node, long nodeVersion, Node<T> best) {
+        boolean toRight = true;
+        if (node != rootHolder) {
+            if (mode == FIRST || mode == LAST) {
+                best = node;
+                toRight = mode == LAST;
+            } else {
+                int comparision = value.compareTo(node.value);
+                if (comparision == 0 && (mode == EXACT || mode == FLOOR || mode == CEILING)) return node;
+                toRight = comparision > 0 || comparision == 0 && mode == HIGHER;
+                if (toRight ? mode == LOWER || mode == FLOOR : mode == HIGHER || mode == CEILING) best = node;
+            }
+        }
+        while (true) {
+            Node<T> child = toRight ? node.right : node.left;
+            if (child == null) return node.version == nodeVersion ? best : retry;
+            long childVersion = child.version;
+            if (isShrinkingOrUnlinked(childVersion)) {
+                waitUntilShrinkCompleted(child, childVersion);
+                if (node.version != nodeVersion) return retry;
+            } else if (child != (toRight ? node.right : node.left)) {
+                if (node.version != nodeVersion) return retry;
+            } else {
+                if (node.version != nodeVersion) return retry;
+                Node<T> result = attemptLocate(value, mode, child, childVersion, best);
+                if (result != retry) return result;
+            }
+        }
+    }
+
+    // найденный узел-маршрут пропускается: поиск продолжается за его ключом в ту же сторону
+    private T navigate(T value, int mode) {
+        while (true) {
+            Node<T> node = locate(value, mode);
+            if (node == null) return null;
+            if (node.present) return node.value;
+            value = node.value;
+            mode = mode == LOWER || mode == FLOOR || mode == LAST ? LOWER : HIGHER;
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        Node<T> node = locate((T) Objects.requireNonNull(o), EXACT);
+        return node != null && node.present;
+    }
+
+    @Override
+    public T lower(T value) {
+        return navigate(Objects.requireNonNull(value), LOWER);
+    }
+
+    @Override
+    public T floor(T value) {
+        return navigate(Objects.requireNonNull(value), FLOOR);
+    }
+
+    @Override
+    public T ceiling(T value) {
+        return navigate(Objects.requireNonNull(value), CEILING);
+    }
+
+    @Override
+    public T higher(T value) {
+        return navigate(Objects.requireNonNull(value), HIGHER);
+    }
+
+    @Override
+    public T first() {
+        T value = navigate(null, FIRST);
+        if (value == null) throw new NoSuchElementException();
+        return value;
+    }
+
+    @Override
+    public T last() {
+        T value = navigate(null, LAST);
+        if (value == null) throw new NoSuchElementException();
+        return value;
+    }
+
+    // изменение
+
+    @Override
+    public boolean add(T value) {
+        return update(Objects.requireNonNull(value), true);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return update((T) Objects.requireNonNull(o), false);
+    }
+
+    // извлеченный элемент был крайним в момент поиска; удалить его мог успеть другой поток - тогда ищем снова
+    @Override
+    public T pollFirst() {
+        return poll(FIRST);
+    }
+
+    @Override
+    public T pollLast() {
+        return poll(LAST);
+    }
+
+    private T poll(int mode) {
+        while (true) {
+            T value = navigate(null, mode);
+            if (value == null || remove(value)) return value;
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (T value = navigate(null, FIRST); value != null; value = navigate(value, HIGHER)) remove(value);
+    }
+
+    @Override
+    public int size() {
+        return Math.max(0, size.get());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return navigate(null, FIRST) == null;
+    }
+
+    public int height() {
+        return height(rootHolder.right);
+    }
+
+    private boolean update(T value, boolean insert) {
+        while (true) {
+            int result = attemptUpdate(value, insert, null, rootHolder, rootHolder.version);
+            if (result == AGAIN) continue;
+            if (result == UNCHANGED) return false;
+            if (insert) size.incrementAndGet();
+            else size.decrementAndGet();
+            return true;
+        }
+    }
+
+    // спуск писателя устроен так же, как attemptLocate; parent - родитель node (null для rootHolder)
+    private int attemptUpdate(T value, boolean insert, Node<T> parent, Node<T> node, long nodeVersion) {
+        int comparision = node == rootHolder ? 1 : value.compareTo(node.value);
+        if (comparision == 0) return attemptNodeUpdate(insert, parent, node);
+        while (true) {
+            Node<T> child = comparision < 0 ? node.left : node.right;
+            if (node.version != nodeVersion) return AGAIN;
+            if (child == null) {
+                if (!insert) return UNCHANGED;
+                Node<T> damaged;
+                synchronized (node) {
+                    if (node.version != nodeVersion) return AGAIN;
+                    if ((comparision < 0 ? node.left : node.right) != null) continue; // место заняли, шаг заново
+                    Node<T> leaf = new Node<>(value, node);
+                    if (comparision < 0)
+                        node.left = leaf;
+                    else
+                        node.right = leaf;
+                    damaged = fixHeightLocked(node);
+                }
+                fixHeightAndRebalance(damaged);
+                return CHANGED;
+            }
+            long childVersion = child.version;
+            if (isShrinkingOrUnlinked(childVersion)) {
+                waitUntilShrinkCompleted(child, childVersion);
+            } else if (child == (comparision < 0 ? node.left : node.right)) {
+                if (node.version != nodeVersion) return AGAIN;
+                int result = attemptUpdate(value, insert, node, child, childVersion);
+                if (result != AGAIN) return result;
+            }
+        }
+    }
+
+    // ключ найден в node; AGAIN - node успели вырезать или перестроить, родитель повторяет шаг
+    private int attemptNodeUpdate(boolean insert, Node<T> parent, Node<T> node) {
+        if (insert) {
+            if (node.present) return UNCHANGED;
+            synchronized (node) {
+                if (isUnlinked(node.version)) return AGAIN;
+                if (node.present) return UNCHANGED;
+                node.present = true;
+            }
+            return CHANGED;
+        }
+        if (!node.present) return UNCHANGED;
+        if (node.left == null || node.right == null) {
+            Node<T> damaged;
+            synchronized (parent) {
+                if (isUnlinked(parent.version) || node.parent != parent) return AGAIN;
+                synchronized (node) {
+                    if (!node.present) return UNCHANGED;
+                    if (!attemptUnlinkLocked(parent, node)) return AGAIN;
+                }
+                damaged = fixHeightLocked(parent);
+            }
+            fixHeightAndRebalance(damaged);
+        } else {
+            synchronized (node) {
+                if (isUnlinked(node.version) || node.left == null || node.right == null) return AGAIN;
+                if (!node.present) return UNCHANGED;
+                node.present = false; // узел остается маршрутом
+            }
+        }
+        return CHANGED;
+    }
+
+    // parent и node заблокированы; false - node уже не ребенок parent или у него два ребенка
+    private boolean attemptUnlinkLocked(Node<T> parent, Node<T> node) {
+        Node<T> parentLeft = parent.left;
+        Node<T> parentRight = parent.right;
+        if (parentLeft != node && parentRight != node) return false;
+        Node<T> left = node.left;
+        Node<T> right = node.right;
+        if (left != null && right != null) return false;
+        Node<T> splice = left != null ? left : right;
+        node.present = false; // до отцепления, чтобы вставший на node читатель не увидел значение после удаления
+        if (parentLeft == node)
+            parent.left = splice;
+        else
+            parent.right = splice;
+        reparent(splice, parent);
+        node.version = UNLINKED;
+        return true;
+    }
+
+    // Ссылку на родителя меняют только под монитором самого узла, и тут же читают его высоту. Поток, который
+    // меняет высоту child под тем же монитором, либо успеет до переноса (и высота учтется), либо после
+    // увидит нового родителя и пойдет чинить его, а не старого.
+    private static <T> int reparent(Node<T> child, Node<T> parent) {
+        if (child == null) return 0;
+        synchronized (child) {
+            child.parent = parent;
+            return child.height;
+        }
+    }
+
+    // Балансировка. Поток, изменивший узел, отвечает за его починку: высоту чинит под монитором узла,
+    // повороты и вырезание маршрутов - под мониторами родителя и узла. Каждый шаг возвращает следующий
+    // поврежденный узел, за который поток еще отвечает, или null. Вывод "чинить нечего" делается только
+    // под монитором узла: поворот мог записать высоту по устаревшей высоте ребенка. Если поворот оставил
+    // поврежденным узел ниже своей вершины, вершина и ее родитель проверяются еще раз после его починки.
+
+    private int nodeCondition(Node<T> node) {
+        Node<T> left = node.left;
+        Node<T> right = node.right;
+        if ((left == null || right == null) && !node.present) return UNLINK_REQUIRED;
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        int newHeight = Math.max(leftHeight, rightHeight) + 1;
+        int balanceFactor = rightHeight - leftHeight;
+        if (balanceFactor < -1 || balanceFactor > 1) return REBALANCE_REQUIRED;
+        return node.height != newHeight ? newHeight : NOTHING_REQUIRED;
+    }
+
+    private void fixHeightAndRebalance(Node<T> node) {
+        ArrayDeque<Node<T>> pending = null;
+        while (true) {
+            if (node == null || node == rootHolder || isUnlinked(node.version)) {
+                if (pending == null || pending.isEmpty()) return;
+                node = pending.pop();
+                continue;
+            }
+            int condition = nodeCondition(node);
+            Node<T> damaged = node;
+            if (condition != UNLINK_REQUIRED && condition != REBALANCE_REQUIRED) {
+                synchronized (node) {
+                    damaged = fixHeightLocked(node);
+                }
+            } else {
+                Node<T> parent = node.parent;
+                synchronized (parent) {
+                    if (!isUnlinked(parent.version) && node.parent == parent) {
+                        synchronized (node) {
+                            damaged = rebalanceLocked(parent, node);
+                            if (node.parent != parent && damaged != null) { // был поворот, node теперь ниже его вершины
+                                if (pending == null) pending = new ArrayDeque<>();
+                                pending.push(parent);
+                                pending.push(node.parent);
+                            }
+                        }
+                    }
+                }
+            }
+            node = damaged;
+        }
+    }
+
+    private Node<T> fixHeightLocked(Node<T> node) {
+        if (node == rootHolder) return null;
+        int condition = nodeCondition(node);
+        switch (condition) {
+            case REBALANCE_REQUIRED:
+            case UNLINK_REQUIRED:
+                return node;
+            case NOTHING_REQUIRED:
+                return null;
+            default:
+                node.height = condition;
+                return node.parent;
+        }
+    }
+
+    // parent и node заблокированы
+    private Node<T> rebalanceLocked(Node<T> parent, Node<T> node) {
+        Node<T> left = node.left;
+        Node<T> right = node.right;
+        if ((left == null || right == null) && !node.present)
+            return attemptUnlinkLocked(parent, node) ? fixHeightLocked(parent) : node;
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        int newHeight = Math.max(leftHeight, rightHeight) + 1;
+        int balanceFactor = rightHeight - leftHeight;
+        if (balanceFactor < -1) return rebalanceToRight(parent, node, left, rightHeight);
+        if (balanceFactor > 1) return rebalanceToLeft(parent, node, right, leftHeight);
+        if (newHeight != node.height) {
+            node.height = newHeight;
+            return fixHeightLocked(parent);
+        }
+        return null;
+    }
+
+    // левое поддерево выше на 2: поворот вправо, при перевесе left.right - двойной
+    private Node<T> rebalanceToRight(Node<T> parent, Node<T> node, Node<T> left, int rightHeight) {
+        synchronized (left) {
+            if (left.height - rightHeight <= 1) return node; // высоту уже поменяли, условие пересчитается
+            Node<T> leftRight = left.right;
+            int leftLeftHeight = height(left.left);
+            int leftRightHeight = height(leftRight);
+            if (leftLeftHeight >= leftRightHeight)
+                return rotateRight(parent, node, left, rightHeight, leftLeftHeight, leftRight);
+            if (leftLeftHeight == 0 && !left.present) {
+                // left - лишний маршрут с одним ребенком; после двойного поворота он и node остались бы
+                // поврежденными одновременно, поэтому left вырезается сразу, а node пересчитывается заново
+                attemptUnlinkLocked(node, left);
+                return node;
+            }
+            synchronized (leftRight) {
+                if (leftLeftHeight >= leftRight.height)
+                    return rotateRight(parent, node, left, rightHeight, leftLeftHeight, leftRight);
+                return rotateRightOverLeft(parent, node, left, rightHeight, leftLeftHeight, leftRight);
+            }
+        }
+    }
+
+    private Node<T> rebalanceToLeft(Node<T> parent, Node<T> node, Node<T> right, int leftHeight) {
+        synchronized (right) {
+            if (right.height - leftHeight <= 1) return node;
+            Node<T> rightLeft = right.left;
+            int rightRightHeight = height(right.right);
+            int rightLeftHeight = height(rightLeft);
+            if (rightRightHeight >= rightLeftHeight)
+                return rotateLeft(parent, node, right, leftHeight, rightRightHeight, rightLeft);
+            if (rightRightHeight == 0 && !right.present) {
+                attemptUnlinkLocked(node, right);
+                return node;
+            }
+            synchronized (rightLeft) {
+                if (rightRightHeight >= rightLeft.height)
+                    return rotateLeft(parent, node, right, leftHeight, rightRightHeight, rightLeft);
+                return rotateLeftOverRight(parent, node, right, leftHeight, rightRightHeight, rightLeft);
+            }
+        }
+    }
+
+    // Повороты. Сжимающийся узел помечается в версии, пока ссылки переставляются: читатель, стоящий
+    // на нем, мог бы не найти ключ, ушедший вверх. Возвращают самый глубокий еще поврежденный узел.
+
+    private Node<T> rotateRight(Node<T> parent, Node<T> node, Node<T> left, int rightHeight,
+                                int leftLeftHeight, Node<T> leftRight) {
+        long nodeVersion = node.version;
+        Node<T> parentLeft = parent.left;
+        node.version = beginShrink(nodeVersion);
+        node.left = leftRight;
+        int leftRightHeight = reparent(leftRight, node);
+        left.right = node;
+        node.parent = left;
+        if (parentLeft == node)
+            parent.left = left;
+        else
+            parent.right = left;
+        left.parent = parent;
+        int nodeHeight = Math.max(leftRightHeight, rightHeight) + 1;
+        node.height = nodeHeight;
+        left.height = Math.max(leftLeftHeight, nodeHeight) + 1;
+        node.version = endShrink(nodeVersion);
+
+        int nodeBalance = rightHeight - leftRightHeight;
+        if (nodeBalance < -1 || nodeBalance > 1) return node;
+        if ((leftRight == null || rightHeight == 0) && !node.present) return node;
+        int leftBalance = nodeHeight - leftLeftHeight;
+        if (leftBalance < -1 || leftBalance > 1) return left;
+        if (leftLeftHeight == 0 && !left.present) return left;
+        return fixHeightLocked(parent);
+    }
+
+    private Node<T> rotateLeft(Node<T> parent, Node<T> node, Node<T> right, int leftHeight,
+                               int rightRightHeight, Node<T> rightLeft) {
+        long nodeVersion = node.version;
+        Node<T> parentLeft = parent.left;
+        node.version = beginShrink(nodeVersion);
+        node.right = rightLeft;
+        int rightLeftHeight = reparent(rightLeft, node);
+        right.left = node;
+        node.parent = right;
+        if (parentLeft == node)
+            parent.left = right;
+        else
+            parent.right = right;
+        right.parent = parent;
+        int nodeHeight = Math.max(leftHeight, rightLeftHeight) + 1;
+        node.height = nodeHeight;
+        right.height = Math.max(nodeHeight, rightRightHeight) + 1;
+        node.version = endShrink(nodeVersion);
+
+        int nodeBalance = rightLeftHeight - leftHeight;
+        if (nodeBalance < -1 || nodeBalance > 1) return node;
+        if ((rightLeft == null || leftHeight == 0) && !node.present) return node;
+        int rightBalance = rightRightHeight - nodeHeight;
+        if (rightBalance < -1 || rightBalance > 1) return right;
+        if (rightRightHeight == 0 && !right.present) return right;
+        return fixHeightLocked(parent);
+    }
+
+    private Node<T> rotateRightOverLeft(Node<T> parent, Node<T> node, Node<T> left, int rightHeight,
+                                        int leftLeftHeight, Node<T> leftRight) {
+        long nodeVersion = node.version;
+        long leftVersion = left.version;
+        Node<T> parentLeft = parent.left;
+        Node<T> leftRightLeft = leftRight.left;
+        Node<T> leftRightRight = leftRight.right;
+        node.version = beginShrink(nodeVersion);
+        left.version = beginShrink(leftVersion);
+        node.left = leftRightRight;
+        int leftRightRightHeight = reparent(leftRightRight, node);
+        left.right = leftRightLeft;
+        int leftRightLeftHeight = reparent(leftRightLeft, left);
+        leftRight.left = left;
+        left.parent = leftRight;
+        leftRight.right = node;
+        node.parent = leftRight;
+        if (parentLeft == node)
+            parent.left = leftRight;
+        else
+            parent.right = leftRight;
+        leftRight.parent = parent;
+        int nodeHeight = Math.max(leftRightRightHeight, rightHeight) + 1;
+        node.height = nodeHeight;
+        int leftHeight = Math.max(leftLeftHeight, leftRightLeftHeight) + 1;
+        left.height = leftHeight;
+        leftRight.height = Math.max(leftHeight, nodeHeight) + 1;
+        node.version = endShrink(nodeVersion);
+        left.version = endShrink(leftVersion);
+
+        int nodeBalance = rightHeight - leftRightRightHeight;
+        if (nodeBalance < -1 || nodeBalance > 1) return node;
+        if ((leftRightRight == null || rightHeight == 0) && !node.present) return node;
+        int leftBalance = leftRightLeftHeight - leftLeftHeight;
+        if (leftBalance < -1 || leftBalance > 1) return left;
+        if ((leftLeftHeight == 0 || leftRightLeft == null) && !left.present) return left;
+        int leftRightBalance = nodeHeight - leftHeight;
+        if (leftRightBalance < -1 || leftRightBalance > 1) return leftRight;
+        return fixHeightLocked(parent);
+    }
+
+    private Node<T> rotateLeftOverRight(Node<T> parent, Node<T> node, Node<T> right, int leftHeight,
+                                        int rightRightHeight, Node<T> rightLeft) {
+        long nodeVersion = node.version;
+        long rightVersion = right.version;
+        Node<T> parentLeft = parent.left;
+        Node<T> rightLeftLeft = rightLeft.left;
+        Node<T> rightLeftRight = rightLeft.right;
+        node.version = beginShrink(nodeVersion);
+        right.version = beginShrink(rightVersion);
+        node.right = rightLeftLeft;
+        int rightLeftLeftHeight = reparent(rightLeftLeft, node);
+        right.left = rightLeftRight;
+        int rightLeftRightHeight = reparent(rightLeftRight, right);
+        rightLeft.right = right;
+        right.parent = rightLeft;
+        rightLeft.left = node;
+        node.parent = rightLeft;
+        if (parentLeft == node)
+            parent.left = rightLeft;
+        else
+            parent.right = rightLeft;
+        rightLeft.parent = parent;
+        int nodeHeight = Math.max(leftHeight, rightLeftLeftHeight) + 1;
+        node.height = nodeHeight;
+        int rightHeight = Math.max(rightLeftRightHeight, rightRightHeight) + 1;
+        right.height = rightHeight;
+        rightLeft.height = Math.max(nodeHeight, rightHeight) + 1;
+        node.version = endShrink(nodeVersion);
+        right.version = endShrink(rightVersion);
+
+        int nodeBalance = rightLeftLeftHeight - leftHeight;
+        if (nodeBalance < -1 || nodeBalance > 1) return node;
+        if ((rightLeftLeft == null || leftHeight == 0) && !node.present) return node;
+        int rightBalance = rightRightHeight - rightLeftRightHeight;
+        if (rightBalance < -1 || rightBalance > 1) return right;
+        if ((rightRightHeight == 0 || rightLeftRight == null) && !right.present) return right;
+        int rightLeftBalance = rightHeight - nodeHeight;
+        if (rightLeftBalance < -1 || rightLeftBalance > 1) return rightLeft;
+        return fixHeightLocked(parent);
+    }
+
+    // проверки рассчитаны на дерево без одновременных изменений
+
+    public boolean checkInvariant() {
+        Node<T> root = rootHolder.right;
+        if (root == null) return size.get() == 0;
+        return checkInvariant(root, rootHolder, null, null) && countPresent(root) == size.get();
+    }
+
+    private boolean checkInvariant(Node<T> node, Node<T> parent, T low, T high) {
+        if (node.parent != parent || isShrinkingOrUnlinked(node.version)) return false;
+        if (low != null && node.value.compareTo(low) <= 0 || high != null && node.value.compareTo(high) >= 0)
+            return false;
+        if (node.height != Math.max(height(node.left), height(node.right)) + 1) return false;
+        if (Math.abs(height(node.right) - height(node.left)) > 1) return false;
+        if (!node.present && (node.left == null || node.right == null)) return false; // лишний маршрут
+        return (node.left == null || checkInvariant(node.left, node, low, node.value))
+                && (node.right == null || checkInvariant(node.right, node, node.value, high));
+    }
+
+    private int countPresent(Node<T> node) {
+        if (node == null) return 0;
+        return countPresent(node.left) + (node.present ? 1 : 0) + countPresent(node.right);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return new StepIterator(false);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> descendingIterator() {
+        return new StepIterator(true);
+    }
+
+    @Override
+    public Comparator<? super T> comparator() {
+        return null;
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> descendingSet() {
+        return SubSetView.descending(this);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive) {
+        return SubSetView.range(this, true, fromElement, fromInclusive, true, toElement, toInclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> headSet(T toElement, boolean inclusive) {
+        return SubSetView.range(this, false, null, false, true, toElement, inclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> tailSet(T fromElement, boolean inclusive) {
+        return SubSetView.range(this, true, fromElement, inclusive, false, null, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> headSet(T toElement) {
+        return headSet(toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> tailSet(T fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    // слабо согласованный итератор: каждый шаг - отдельный поиск следующего элемента
+    private class StepIterator implements Iterator<T> {
+        private final boolean descending;
+        private T next;
+        private T lastReturned = null;
+
+        private StepIterator(boolean descending) {
+            this.descending = descending;
+            next = navigate(null, descending ? LAST : FIRST);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (next == null) throw new NoSuchElementException();
+            lastReturned = next;
+            next = navigate(next, descending ? LOWER : HIGHER);
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) throw new IllegalStateException();
+            ConcurrentAVLTree.this.remove(lastReturned);
+            lastReturned = null;
+        }
+    }
+}
@@ -0,0 +1,580 @@
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Внешнее АВЛ-дерево с «толстыми» листьями: ключи лежат только в листьях, отсортированными массивами
+ * до leafCapacity элементов, а внутренние узлы хранят лишь разделитель (ключи левого поддерева меньше
+ * разделителя, правого - не меньше). Балансируются только внутренние узлы, которых в leafCapacity/2
+ * и более раз меньше, чем ключей, поэтому поиск проходит короткий путь по узлам и заканчивается двоичным
+ * поиском в одном непрерывном массиве. Листья связаны в двусвязный список для обхода и навигации.
+ * Переполненный лист делится пополам, лист, в котором осталось меньше четверти, сливается с соседом
+ * или забирает у него часть ключей.
+ */
+public class FatLeafAVLTree<T> extends AbstractSet<T> implements RankedSet<T> {
+    private static final int DEFAULT_LEAF_CAPACITY = 64;
+
+    private final Comparator<? super T> comparator; // null - естественный порядок
+    private final int leafCapacity;
+    private final int minLeafSize;
+    private Node root;
+    private Leaf head; // крайние листья списка
+    private Leaf tail;
+    private int size = 0;
+    private int modCount = 0; // счетчик структурных изменений для fail-fast итераторов
+    // внутренние узлы на пути от корня к листу; высота АВЛ-дерева из 2^31 узлов меньше 64
+    private final Inner[] path = new FatLeafAVLTree.Inner[64];
+
+    private static class Node {
+        int height; // у листа 1
+        int count; // ключей в поддереве; у листа - занятых ячеек массива
+    }
+
+    private final class Inner extends Node {
+        private T separator;
+        private Node left;
+        private Node right;
+
+        private Inner(Node left, Node right, T separator) {
+            this.left = left;
+            this.right = right;
+            this.separator = separator;
+            this.height = Math.max(left.height, right.height) + 1;
+            this.count = left.count + right.count;
+        }
+    }
+
+    private final class Leaf extends Node {
+        private final Object[] keys = new Object[leafCapacity];
+        private Leaf prev;
+        private Leaf next;
+
+        private Leaf() {
+            this.height = 1;
+        }
+
+        private T key(int index) {
+            return (T) keys[index];
+        }
+    }
+
+    public FatLeafAVLTree() {
+        this(null, DEFAULT_LEAF_CAPACITY);
+    }
+
+    public FatLeafAVLTree(Comparator<? super T> comparator) {
+        this(comparator, DEFAULT_LEAF_CAPACITY);
+    }
+
+    // размер листа - компромисс между длиной пути по узлам и сдвигом массива при вставке; разумно 16..128
+    public FatLeafAVLTree(Comparator<? super T> comparator, int leafCapacity) {
+        if (leafCapacity < 4) throw new IllegalArgumentException();
+        this.comparator = comparator;
+        this.leafCapacity = leafCapacity;
+        this.minLeafSize = leafCapacity / 4;
+        clear();
+    }
+
+    // отсортированный набор загружается за линейное время: листья заполняются на три четверти
+    public FatLeafAVLTree(SortedSet<T> sorted) {
+        this(sorted.comparator(), DEFAULT_LEAF_CAPACITY);
+        int n = sorted.size();
+        if (n == 0) return;
+        // ключи делятся между листьями поровну, так что и последний лист заполнен не меньше чем наполовину
+        int leafCount = (n + leafCapacity * 3 / 4 - 1) / (leafCapacity * 3 / 4);
+        List<Leaf> leaves = new ArrayList<>(leafCount);
+        Leaf leaf = head;
+        leaves.add(leaf);
+        for (T value : sorted) {
+            Objects.requireNonNull(value);
+            if (leaf.count == n / leafCount + (leaves.size() <= n % leafCount ? 1 : 0)) {
+                Leaf next = new Leaf();
+                leaf.next = next;
+                next.prev = leaf;
+                leaves.add(next);
+                leaf = next;
+            }
+            leaf.keys[leaf.count++] = value;
+        }
+        tail = leaf;
+        size = n;
+        root = build(leaves, 0, leaves.size());
+    }
+
+    private Node build(List<Leaf> leaves, int from, int to) {
+        if (to - from == 1) return leaves.get(from);
+        int middle = (from + to + 1) >>> 1;
+        return new Inner(build(leaves, from, middle), build(leaves, middle, to), leaves.get(middle).key(0));
+    }
+
+    private int compare(T first, T second) {
+        return comparator == null ? ((Comparable<T>) first).compareTo(second) : comparator.compare(first, second);
+    }
+
+    private int search(Leaf leaf, T value) {
+        return Arrays.binarySearch(leaf.keys, 0, leaf.count, value, (Comparator<Object>) comparator);
+    }
+
+    // спуск к листу, в котором лежит (или должен лежать) value; внутренние узлы пути - в path[0..depth)
+    private int depth;
+
+    private Leaf descend(T value) {
+        depth = 0;
+        Node node = root;
+        if (comparator == null) {
+            Comparable<? super T> key = (Comparable<? super T>) value;
+            while (node instanceof FatLeafAVLTree.Inner) {
+                Inner inner = (Inner) node;
+                path[depth++] = inner;
+                node = key.compareTo(inner.separator) < 0 ? inner.left : inner.right;
+            }
+        } else {
+            while (node instanceof FatLeafAVLTree.Inner) {
+                Inner inner = (Inner) node;
+                path[depth++] = inner;
+                node = comparator.compare(value, inner.separator) < 0 ? inner.left : inner.right;
+            }
+        }
+        return (Leaf) node;
+    }
+
+    private static int height(Node node) {
+        return node.height;
+    }
+
+    private void fixHeight(Inner node) {
+        node.height = Math.max(height(node.left), height(node.right)) + 1;
+        node.count = node.left.count + node.right.count;
+    }
+
+    // у поворачиваемых узлов высота не меньше 2, значит это внутренние узлы;
+    // разделители при поворотах не меняются
+    private Inner rotateLeft(Inner pivot) {
+        Inner pivotRight = (Inner) pivot.right;
+        pivot.right = pivotRight.left;
+        pivotRight.left = pivot;
+        fixHeight(pivot);
+        fixHeight(pivotRight);
+        return pivotRight;
+    }
+
+    private Inner rotateRight(Inner pivot) {
+        Inner pivotLeft = (Inner) pivot.left;
+        pivot.left = pivotLeft.right;
+        pivotLeft.right = pivot;
+        fixHeight(pivot);
+        fixHeight(pivotLeft);
+        return pivotLeft;
+    }
+
+    private Inner balance(Inner node) {
+        int balanceFactor = height(node.right) - height(node.left);
+        fixHeight(node);
+        if (balanceFactor == 2) {
+            Inner child = (Inner) node.right;
+            if (height(child.right) < height(child.left)) node.right = rotateRight(child);
+            return rotateLeft(node);
+        } else if (balanceFactor == -2) {
+            Inner child = (Inner) node.left;
+            if (height(child.left) < height(child.right)) node.left = rotateLeft(child);
+            return rotateRight(node);
+        }
+        return node;
+    }
+
+    private void relink(int index, Node oldNode, Node newNode) {
+        if (index == 0) {
+            root = newNode;
+            return;
+        }
+        Inner parent = path[index - 1];
+        if (parent.left == oldNode)
+            parent.left = newNode;
+        else
+            parent.right = newNode;
+    }
+
+    // балансировка по сохраненному пути снизу вверх до первого уровня, где высота не изменилась
+    private void fixPath(int depth) {
+        for (int i = depth - 1; i >= 0; i--) {
+            Inner node = path[i];
+            int oldHeight = node.height;
+            Inner balanced = balance(node);
+            if (balanced != node) relink(i, node, balanced);
+            if (balanced.height == oldHeight) break;
+        }
+    }
+
+    @Override
+    public boolean add(T value) {
+        Objects.requireNonNull(value);
+        Leaf leaf = descend(value);
+        int index = search(leaf, value);
+        if (index >= 0) return false;
+        index = -index - 1;
+        for (int i = 0; i < depth; i++) path[i].count++;
+        if (leaf.count == leafCapacity) { // полный лист делится пополам, над ними встает новый внутренний узел
+            Leaf right = new Leaf();
+            int half = leafCapacity / 2;
+            right.count = leafCapacity - half;
+            System.arraycopy(leaf.keys, half, right.keys, 0, right.count);
+            Arrays.fill(leaf.keys, half, leafCapacity, null);
+            leaf.count = half;
+            right.next = leaf.next;
+            right.prev = leaf;
+            if (leaf.next != null) leaf.next.prev = right; else tail = right;
+            leaf.next = right;
+            // ключ встает не в начало правого листа, так что его первый ключ годится в разделители
+            if (index > half)
+                insert(right, index - half, value);
+            else
+                insert(leaf, index, value);
+            relink(depth, leaf, new Inner(leaf, right, right.key(0)));
+            fixPath(depth);
+        } else insert(leaf, index, value);
+        size++;
+        modCount++;
+        return true;
+    }
+
+    private void insert(Leaf leaf, int index, T value) {
+        System.arraycopy(leaf.keys, index, leaf.keys, index + 1, leaf.count - index);
+        leaf.keys[index] = value;
+        leaf.count++;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        T value = (T) o;
+        Leaf leaf = descend(value);
+        int index = search(leaf, value);
+        if (index < 0) return false;
+        for (int i = 0; i < depth; i++) path[i].count--;
+        System.arraycopy(leaf.keys, index + 1, leaf.keys, index, leaf.count - index - 1);
+        leaf.keys[--leaf.count] = null;
+        size--;
+        modCount++;
+        if (depth > 0 && leaf.count < minLeafSize) rebalanceLeaf(leaf);
+        return true;
+    }
+
+    // сосед по списку - крайний лист соседнего поддерева, так что разделитель между ними хранит родитель;
+    // ключи переходят только внутри родителя, поэтому размеры меняются лишь на пути от него к соседу
+    private void rebalanceLeaf(Leaf leaf) {
+        Inner parent = path[depth - 1];
+        boolean isLeft = parent.left == leaf;
+        Leaf neighbour = isLeft ? leaf.next : leaf.prev;
+        if (leaf.count + neighbour.count <= leafCapacity) { // слияние: лист и родитель уходят из дерева
+            addCount(isLeft ? parent.right : parent.left, neighbour, isLeft, leaf.count);
+            if (isLeft) {
+                System.arraycopy(neighbour.keys, 0, neighbour.keys, leaf.count, neighbour.count);
+                System.arraycopy(leaf.keys, 0, neighbour.keys, 0, leaf.count);
+            } else System.arraycopy(leaf.keys, 0, neighbour.keys, neighbour.count, leaf.count);
+            neighbour.count += leaf.count;
+            if (leaf.prev != null) leaf.prev.next = leaf.next; else head = leaf.next;
+            if (leaf.next != null) leaf.next.prev = leaf.prev; else tail = leaf.prev;
+            relink(depth - 1, parent, isLeft ? parent.right : parent.left);
+            fixPath(depth - 1);
+            return;
+        }
+        int moved = (neighbour.count - leaf.count) / 2; // иначе ключи делятся поровну
+        addCount(isLeft ? parent.right : parent.left, neighbour, isLeft, -moved);
+        if (isLeft) {
+            System.arraycopy(neighbour.keys, 0, leaf.keys, leaf.count, moved);
+            System.arraycopy(neighbour.keys, moved, neighbour.keys, 0, neighbour.count - moved);
+            Arrays.fill(neighbour.keys, neighbour.count - moved, neighbour.count, null);
+            parent.separator = neighbour.key(0);
+        } else {
+            System.arraycopy(leaf.keys, 0, leaf.keys, moved, leaf.count);
+            System.arraycopy(neighbour.keys, neighbour.count - moved, leaf.keys, 0, moved);
+            Arrays.fill(neighbour.keys, neighbour.count - moved, neighbour.count, null);
+            parent.separator = leaf.key(0);
+        }
+        leaf.count += moved;
+        neighbour.count -= moved;
+    }
+
+    // размеры внутренних узлов от node до крайнего листа neighbour (сам лист не трогается)
+    private void addCount(Node node, Leaf neighbour, boolean leftmost, int delta) {
+        while (node != neighbour) {
+            Inner inner = (Inner) node;
+            inner.count += delta;
+            node = leftmost ? inner.left : inner.right;
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        T value = (T) o;
+        return search(descend(value), value) >= 0;
+    }
+
+    @Override
+    public int countLess(T value, boolean inclusive) {
+        int count = 0;
+        Node node = root;
+        while (node instanceof FatLeafAVLTree.Inner) {
+            Inner inner = (Inner) node;
+            if (compare(value, inner.separator) < 0) {
+                node = inner.left;
+            } else {
+                count += inner.left.count;
+                node = inner.right;
+            }
+        }
+        int index = search((Leaf) node, value);
+        return count + (index < 0 ? -index - 1 : inclusive ? index + 1 : index);
+    }
+
+    // навигация: спуск к листу и двоичный поиск; если в листе подходящего ключа нет, он первый/последний
+    // в соседнем листе (все непустые, кроме единственного листа-корня)
+
+    private T lowerKey(T value, boolean inclusive) {
+        Leaf leaf = descend(value);
+        int index = search(leaf, value);
+        if (index >= 0 && inclusive) return leaf.key(index);
+        index = index >= 0 ? index - 1 : -index - 2;
+        if (index >= 0) return leaf.key(index);
+        return leaf.prev == null ? null : leaf.prev.key(leaf.prev.count - 1);
+    }
+
+    private T higherKey(T value, boolean inclusive) {
+        Leaf leaf = descend(value);
+        int index = search(leaf, value);
+        if (index >= 0 && inclusive) return leaf.key(index);
+        index = index >= 0 ? index + 1 : -index - 1;
+        if (index < leaf.count) return leaf.key(index);
+        return leaf.next == null ? null : leaf.next.key(0);
+    }
+
+    @Override
+    public T lower(T value) {
+        return lowerKey(value, false);
+    }
+
+    @Override
+    public T floor(T value) {
+        return lowerKey(value, true);
+    }
+
+    @Override
+    public T ceiling(T value) {
+        return higherKey(value, true);
+    }
+
+    @Override
+    public T higher(T value) {
+        return higherKey(value, false);
+    }
+
+    @Override
+    public T first() {
+        if (size == 0) throw new NoSuchElementException();
+        return head.key(0);
+    }
+
+    @Override
+    public T last() {
+        if (size == 0) throw new NoSuchElementException();
+        return tail.key(tail.count - 1);
+    }
+
+    @Override
+    public T pollFirst() {
+        if (size == 0) return null;
+        T value = first();
+        remove(value);
+        return value;
+    }
+
+    @Override
+    public T pollLast() {
+        if (size == 0) return null;
+        T value = last();
+        remove(value);
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        Leaf leaf = new Leaf();
+        root = leaf;
+        head = leaf;
+        tail = leaf;
+        size = 0;
+        modCount++;
+    }
+
+    public int height() {
+        return height(root);
+    }
+
+    int leafCapacity() {
+        return leafCapacity;
+    }
+
+    public boolean checkInvariant() {
+        List<Leaf> leaves = new ArrayList<>();
+        if (!checkInvariant(root, null, null, leaves)) return false;
+        int count = 0;
+        for (int i = 0; i < leaves.size(); i++) {
+            Leaf leaf = leaves.get(i);
+            if (leaf.prev != (i == 0 ? null : leaves.get(i - 1))) return false;
+            if (leaf.next != (i == leaves.size() - 1 ? null : leaves.get(i + 1))) return false;
+            if (leaves.size() > 1 && leaf.count < minLeafSize) return false;
+            count += leaf.count;
+        }
+        return count == size && head == leaves.get(0) && tail == leaves.get(leaves.size() - 1);
+    }
+
+    // low - включительная нижняя граница, high - исключающая верхняя
+    private boolean checkInvariant(Node node, T low, T high, List<Leaf> leaves) {
+        if (node instanceof FatLeafAVLTree.Leaf) {
+            Leaf leaf = (Leaf) node;
+            leaves.add(leaf);
+            if (leaf.height != 1) return false;
+            for (int i = 0; i < leaf.count; i++) {
+                T value = leaf.key(i);
+                if (low != null && compare(value, low) < 0 || high != null && compare(value, high) >= 0) return false;
+                if (i > 0 && compare(leaf.key(i - 1), value) >= 0) return false;
+            }
+            for (int i = leaf.count; i < leafCapacity; i++) {
+                if (leaf.keys[i] != null) return false;
+            }
+            return true;
+        }
+        Inner inner = (Inner) node;
+        if (inner.height != Math.max(height(inner.left), height(inner.right)) + 1) return false;
+        if (inner.count != inner.left.count + inner.right.count) return false;
+        if (Math.abs(height(inner.right) - height(inner.left)) > 1) return false;
+        return checkInvariant(inner.left, low, inner.separator, leaves)
+                && checkInvariant(inner.right, inner.separator, high, leaves);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return new LeafIterator(false);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> descendingIterator() {
+        return new LeafIterator(true);
+    }
+
+    @Override
+    public Comparator<? super T> comparator() {
+        return comparator;
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> descendingSet() {
+        return SubSetView.descending(this);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive) {
+        return SubSetView.range(this, true, fromElement, fromInclusive, true, toElement, toInclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> headSet(T toElement, boolean inclusive) {
+        return SubSetView.range(this, false, null, false, true, toElement, inclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> tailSet(T fromElement, boolean inclusive) {
+        return SubSetView.range(this, true, fromElement, inclusive, false, null, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> headSet(T toElement) {
+        return headSet(toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> tailSet(T fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    // обход по списку листьев: позиция - лист и номер ключа в нем
+    private class LeafIterator implements Iterator<T> {
+        private Leaf leaf;
+        private int index;
+        private final boolean descending;
+        private T lastReturned = null;
+        private int expectedModCount = modCount;
+
+        private LeafIterator(boolean descending) {
+            this.descending = descending;
+            leaf = descending ? tail : head;
+            index = descending ? leaf.count - 1 : 0;
+            skipExhausted();
+        }
+
+        // переход в соседний лист, если текущий пройден
+        private void skipExhausted() {
+            if (descending) {
+                if (index < 0 && leaf.prev != null) {
+                    leaf = leaf.prev;
+                    index = leaf.count - 1;
+                }
+            } else if (index >= leaf.count && leaf.next != null) {
+                leaf = leaf.next;
+                index = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return descending ? index >= 0 : index < leaf.count;
+        }
+
+        @Override
+        public T next() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (!hasNext()) throw new NoSuchElementException();
+            lastReturned = leaf.key(index);
+            index += descending ? -1 : 1;
+            skipExhausted();
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            FatLeafAVLTree.this.remove(lastReturned);
+            // листья могли слиться или обменяться ключами, поэтому позиция ищется заново
+            leaf = descend(lastReturned);
+            index = -search(leaf, lastReturned) - 1;
+            if (descending) index--;
+            skipExhausted();
+            lastReturned = null;
+            expectedModCount = modCount;
+        }
+    }
+}
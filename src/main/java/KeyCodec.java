@@ -0,0 +1,118 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Двоичное представление ключей для сохранения дерева (AVLTree.writeTo / readFrom).
+ * Ключи фиксированной длины пишутся подряд, ключи переменной длины дерево предваряет длиной.
+ */
+public interface KeyCodec<T> {
+
+    /**
+     * Длина любого закодированного ключа в байтах или -1, если длина у ключей разная.
+     */
+    int fixedSize();
+
+    /**
+     * Верхняя граница длины закодированного ключа; у ключей фиксированной длины равна fixedSize().
+     */
+    int maxEncodedSize(T key);
+
+    /**
+     * Пишет ключ с текущей позиции буфера, не больше maxEncodedSize(key) байт. Точную длину ключа
+     * переменной длины дерево берет по сдвигу позиции, так что ключ кодируется один раз.
+     */
+    void encode(T key, ByteBuffer buffer);
+
+    /**
+     * Читает ключ с текущей позиции; для ключей переменной длины лимит буфера стоит сразу после ключа.
+     */
+    T decode(ByteBuffer buffer);
+
+    KeyCodec<Integer> INTEGER = new KeyCodec<>() {
+        @Override
+        public int fixedSize() {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public int maxEncodedSize(Integer key) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void encode(Integer key, ByteBuffer buffer) {
+            buffer.putInt(key);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    };
+
+    KeyCodec<Long> LONG = new KeyCodec<>() {
+        @Override
+        public int fixedSize() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public int maxEncodedSize(Long key) {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void encode(Long key, ByteBuffer buffer) {
+            buffer.putLong(key);
+        }
+
+        @Override
+        public Long decode(ByteBuffer buffer) {
+            return buffer.getLong();
+        }
+    };
+
+    // строки в UTF-8
+    KeyCodec<String> STRING = new KeyCodec<>() {
+        @Override
+        public int fixedSize() {
+            return -1;
+        }
+
+        // символ UTF-16 дает не больше трех байт UTF-8, суррогатная пара из двух символов - четыре
+        @Override
+        public int maxEncodedSize(String key) {
+            return key.length() * 3;
+        }
+
+        // кодирование прямо в буфер, без промежуточного массива; одиночный суррогат
+        // заменяется на '?', как в String.getBytes
+        @Override
+        public void encode(String key, ByteBuffer buffer) {
+            int length = key.length();
+            for (int i = 0; i < length; i++) {
+                char c = key.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+                } else if (!Character.isSurrogate(c)) {
+                    buffer.put((byte) (0xe0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3f)).put((byte) (0x80 | c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(key.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, key.charAt(++i));
+                    buffer.put((byte) (0xf0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3f))
+                            .put((byte) (0x80 | codePoint >> 6 & 0x3f)).put((byte) (0x80 | codePoint & 0x3f));
+                } else {
+                    buffer.put((byte) '?');
+                }
+            }
+        }
+
+        @Override
+        public String decode(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+}
@@ -0,0 +1,616 @@
+import java.util.*;
+
+/**
+ * АВЛ-дерево ключей long без упаковки в Long. Повторяет навигацию NavigableSet
+ * (floor, ceiling, lower, higher, headSet, tailSet, pollFirst); поиск и навигация не выделяют память.
+ * Если подходящего ключа нет, навигационные методы возвращают noEntryKey, заданный в конструкторе.
+ */
+public class LongAVLTree {
+
+    private Node root;
+    private int size = 0;
+    private int modCount = 0; // счетчик структурных изменений для fail-fast итераторов
+    private final long noEntryKey;
+    // путь от корня при вставке и удалении; высота АВЛ-дерева из 2^31 узлов меньше 64
+    private final Node[] path = new Node[64];
+
+    private static class Node {
+        private final long key;
+        private int height;
+        private int size; // количество узлов в поддереве, включая сам узел
+        private Node left;
+        private Node right;
+
+        private Node(long key) {
+            this.key = key;
+            this.height = 1;
+            this.size = 1;
+        }
+    }
+
+    public LongAVLTree() {
+        this(Long.MIN_VALUE);
+    }
+
+    public LongAVLTree(long noEntryKey) {
+        this.noEntryKey = noEntryKey;
+    }
+
+    public long getNoEntryKey() {
+        return noEntryKey;
+    }
+
+    public boolean contains(long key) {
+        Node current = root;
+        while (current != null) {
+            if (key < current.key)
+                current = current.left;
+            else if (key > current.key)
+                current = current.right;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    public boolean add(long key) {
+        if (root == null) {
+            root = new Node(key);
+            size++;
+            modCount++;
+            return true;
+        }
+        Node[] path = this.path;
+        int depth = 0;
+        Node current = root;
+        while (true) {
+            path[depth++] = current;
+            if (key < current.key) {
+                if (current.left == null) {
+                    current.left = new Node(key);
+                    break;
+                }
+                current = current.left;
+            } else if (key > current.key) {
+                if (current.right == null) {
+                    current.right = new Node(key);
+                    break;
+                }
+                current = current.right;
+            } else {
+                Arrays.fill(path, 0, depth, null);
+                return false;
+            }
+        }
+        size++;
+        modCount++;
+        fixPath(depth, 1);
+        return true;
+    }
+
+    public boolean remove(long key) {
+        Node[] path = this.path;
+        int depth = 0;
+        Node current = root;
+        while (current != null) {
+            path[depth++] = current;
+            if (key == current.key) break;
+            current = key < current.key ? current.left : current.right;
+        }
+        if (current == null) {
+            Arrays.fill(path, 0, depth, null);
+            return false;
+        }
+        unlink(depth);
+        return true;
+    }
+
+    // удаление узла path[depth - 1]: путь от корня до него уже записан поиском или итератором
+    private void unlink(int depth) {
+        Node[] path = this.path;
+        int removed = depth - 1;
+        Node current = path[removed];
+        if (current.right == null) { // если правого поддерева нет, то на место узла встает левое поддерево
+            relink(removed, current, current.left);
+            path[removed] = null;
+            depth--;
+        } else { // иначе на место узла встает минимальный элемент правого поддерева
+            Node min = current.right;
+            while (min.left != null) {
+                path[depth++] = min;
+                min = min.left;
+            }
+            if (depth - 1 > removed) {
+                path[depth - 1].left = min.right;
+                min.right = current.right;
+            }
+            min.left = current.left;
+            min.height = current.height;
+            min.size = current.size;
+            relink(removed, current, min);
+            path[removed] = min;
+        }
+        size--;
+        modCount++;
+        fixPath(depth, -1);
+    }
+
+    // балансировка по сохраненному пути снизу вверх до первого уровня, где высота не изменилась
+    private void fixPath(int depth, int sizeDelta) {
+        Node[] path = this.path;
+        int i = depth - 1;
+        while (i >= 0) {
+            Node node = path[i];
+            path[i--] = null;
+            int oldHeight = node.height;
+            Node balanced = balance(node);
+            if (balanced != node) relink(i + 1, node, balanced);
+            if (balanced.height == oldHeight) break;
+        }
+        while (i >= 0) {
+            path[i].size += sizeDelta;
+            path[i--] = null;
+        }
+    }
+
+    private void relink(int index, Node oldNode, Node newNode) {
+        if (index == 0) {
+            root = newNode;
+            return;
+        }
+        Node parent = path[index - 1];
+        if (parent.left == oldNode)
+            parent.left = newNode;
+        else
+            parent.right = newNode;
+    }
+
+    private Node balance(Node toBalance) {
+        int balanceFactor = height(toBalance.right) - height(toBalance.left);
+        fixHeight(toBalance);
+        if (balanceFactor == 2) {
+            if (height(toBalance.right.right) < height(toBalance.right.left))
+                toBalance.right = rotateRight(toBalance.right);
+            toBalance = rotateLeft(toBalance);
+        } else if (balanceFactor == -2) {
+            if (height(toBalance.left.right) > height(toBalance.left.left))
+                toBalance.left = rotateLeft(toBalance.left);
+            toBalance = rotateRight(toBalance);
+        }
+        return toBalance;
+    }
+
+    private Node rotateLeft(Node pivot) {
+        Node pivotRight = pivot.right;
+        pivot.right = pivotRight.left;
+        pivotRight.left = pivot;
+        fixHeight(pivot);
+        fixHeight(pivotRight);
+        return pivotRight;
+    }
+
+    private Node rotateRight(Node pivot) {
+        Node pivotLeft = pivot.left;
+        pivot.left = pivotLeft.right;
+        pivotLeft.right = pivot;
+        fixHeight(pivot);
+        fixHeight(pivotLeft);
+        return pivotLeft;
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static void fixHeight(Node toFix) {
+        toFix.height = Math.max(height(toFix.left), height(toFix.right)) + 1;
+        toFix.size = size(toFix.left) + size(toFix.right) + 1;
+    }
+
+    // навигация: один спуск с запоминанием лучшего кандидата
+
+    private Node lowerNode(long key) {
+        Node best = null;
+        Node current = root;
+        while (current != null) {
+            if (current.key < key) {
+                best = current;
+                current = current.right;
+            } else current = current.left;
+        }
+        return best;
+    }
+
+    private Node floorNode(long key) {
+        Node best = null;
+        Node current = root;
+        while (current != null) {
+            if (current.key < key) {
+                best = current;
+                current = current.right;
+            } else if (current.key > key)
+                current = current.left;
+            else
+                return current;
+        }
+        return best;
+    }
+
+    private Node higherNode(long key) {
+        Node best = null;
+        Node current = root;
+        while (current != null) {
+            if (current.key > key) {
+                best = current;
+                current = current.left;
+            } else current = current.right;
+        }
+        return best;
+    }
+
+    private Node ceilingNode(long key) {
+        Node best = null;
+        Node current = root;
+        while (current != null) {
+            if (current.key > key) {
+                best = current;
+                current = current.left;
+            } else if (current.key < key)
+                current = current.right;
+            else
+                return current;
+        }
+        return best;
+    }
+
+    private Node minNode() {
+        Node current = root;
+        if (current != null) while (current.left != null) current = current.left;
+        return current;
+    }
+
+    private Node maxNode() {
+        Node current = root;
+        if (current != null) while (current.right != null) current = current.right;
+        return current;
+    }
+
+    private long keyOrNoEntry(Node node) {
+        return node == null ? noEntryKey : node.key;
+    }
+
+    // количество ключей меньше key (или не больше, если inclusive)
+    private int countLess(long key, boolean inclusive) {
+        int count = 0;
+        Node current = root;
+        while (current != null) {
+            if (current.key < key || inclusive && current.key == key) {
+                count += size(current.left) + 1;
+                current = current.right;
+            } else current = current.left;
+        }
+        return count;
+    }
+
+    public long lower(long key) {
+        return keyOrNoEntry(lowerNode(key));
+    }
+
+    public long floor(long key) {
+        return keyOrNoEntry(floorNode(key));
+    }
+
+    public long higher(long key) {
+        return keyOrNoEntry(higherNode(key));
+    }
+
+    public long ceiling(long key) {
+        return keyOrNoEntry(ceilingNode(key));
+    }
+
+    public long first() {
+        if (size == 0) throw new NoSuchElementException();
+        return minNode().key;
+    }
+
+    public long last() {
+        if (size == 0) throw new NoSuchElementException();
+        return maxNode().key;
+    }
+
+    public long pollFirst() {
+        if (size == 0) return noEntryKey;
+        long key = minNode().key;
+        remove(key);
+        return key;
+    }
+
+    public long pollLast() {
+        if (size == 0) return noEntryKey;
+        long key = maxNode().key;
+        remove(key);
+        return key;
+    }
+
+    public int rank(long key) {
+        return countLess(key, false);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        root = null;
+        size = 0;
+        modCount++;
+    }
+
+    public int height() {
+        return height(root);
+    }
+
+    public PrimitiveIterator.OfLong iterator() {
+        return new KeyIterator(null, false);
+    }
+
+    public PrimitiveIterator.OfLong descendingIterator() {
+        return new KeyIterator(null, true);
+    }
+
+    public long[] toArray() {
+        long[] keys = new long[size];
+        PrimitiveIterator.OfLong iterator = iterator();
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = iterator.nextLong();
+        }
+        return keys;
+    }
+
+    public SubSet subSet(long from, boolean fromInclusive, long to, boolean toInclusive) {
+        if (from > to) throw new IllegalArgumentException();
+        return new SubSet(true, from, fromInclusive, true, to, toInclusive);
+    }
+
+    public SubSet headSet(long to, boolean inclusive) {
+        return new SubSet(false, 0, false, true, to, inclusive);
+    }
+
+    public SubSet tailSet(long from, boolean inclusive) {
+        return new SubSet(true, from, inclusive, false, 0, false);
+    }
+
+    public boolean checkInvariant() {
+        return root == null || checkInvariant(root, false, 0, false, 0);
+    }
+
+    private boolean checkInvariant(Node node, boolean hasLow, long low, boolean hasHigh, long high) {
+        if (hasLow && node.key <= low || hasHigh && node.key >= high) return false;
+        if (node.height != Math.max(height(node.left), height(node.right)) + 1) return false;
+        if (node.size != size(node.left) + size(node.right) + 1) return false;
+        if (Math.abs(height(node.right) - height(node.left)) > 1) return false;
+        return (node.left == null || checkInvariant(node.left, hasLow, low, true, node.key))
+                && (node.right == null || checkInvariant(node.right, true, node.key, hasHigh, high));
+    }
+
+    /**
+     * Представление диапазона ключей исходного дерева. Изменения видны в обе стороны.
+     */
+    public class SubSet {
+        private final boolean hasFrom;
+        private final long from;
+        private final boolean fromInclusive;
+        private final boolean hasTo;
+        private final long to;
+        private final boolean toInclusive;
+
+        private SubSet(boolean hasFrom, long from, boolean fromInclusive, boolean hasTo, long to, boolean toInclusive) {
+            this.hasFrom = hasFrom;
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.hasTo = hasTo;
+            this.to = to;
+            this.toInclusive = toInclusive;
+        }
+
+        private boolean isAboveFloor(long key) {
+            return !hasFrom || key > from || key == from && fromInclusive;
+        }
+
+        private boolean isBelowCeil(long key) {
+            return !hasTo || key < to || key == to && toInclusive;
+        }
+
+        private boolean isValid(long key) {
+            return isAboveFloor(key) && isBelowCeil(key);
+        }
+
+        private Node lowestNode() {
+            return !hasFrom ? minNode() : fromInclusive ? ceilingNode(from) : higherNode(from);
+        }
+
+        private Node highestNode() {
+            return !hasTo ? maxNode() : toInclusive ? floorNode(to) : lowerNode(to);
+        }
+
+        private long keyInRange(Node node) {
+            return node != null && isValid(node.key) ? node.key : noEntryKey;
+        }
+
+        public boolean contains(long key) {
+            return isValid(key) && LongAVLTree.this.contains(key);
+        }
+
+        public boolean add(long key) {
+            if (!isValid(key)) throw new IllegalArgumentException();
+            return LongAVLTree.this.add(key);
+        }
+
+        public boolean remove(long key) {
+            return isValid(key) && LongAVLTree.this.remove(key);
+        }
+
+        public long lower(long key) {
+            return keyInRange(isBelowCeil(key) ? lowerNode(key) : highestNode());
+        }
+
+        public long floor(long key) {
+            return keyInRange(isBelowCeil(key) ? floorNode(key) : highestNode());
+        }
+
+        public long higher(long key) {
+            return keyInRange(isAboveFloor(key) ? higherNode(key) : lowestNode());
+        }
+
+        public long ceiling(long key) {
+            return keyInRange(isAboveFloor(key) ? ceilingNode(key) : lowestNode());
+        }
+
+        public long first() {
+            Node node = lowestNode();
+            if (node == null || !isBelowCeil(node.key)) throw new NoSuchElementException();
+            return node.key;
+        }
+
+        public long last() {
+            Node node = highestNode();
+            if (node == null || !isAboveFloor(node.key)) throw new NoSuchElementException();
+            return node.key;
+        }
+
+        public long pollFirst() {
+            Node node = lowestNode();
+            if (node == null || !isBelowCeil(node.key)) return noEntryKey;
+            long key = node.key;
+            LongAVLTree.this.remove(key);
+            return key;
+        }
+
+        public long pollLast() {
+            Node node = highestNode();
+            if (node == null || !isAboveFloor(node.key)) return noEntryKey;
+            long key = node.key;
+            LongAVLTree.this.remove(key);
+            return key;
+        }
+
+        public int size() {
+            int above = !hasTo ? size : countLess(to, toInclusive);
+            int below = !hasFrom ? 0 : countLess(from, !fromInclusive);
+            return Math.max(0, above - below);
+        }
+
+        public boolean isEmpty() {
+            Node node = lowestNode();
+            return node == null || !isBelowCeil(node.key);
+        }
+
+        public PrimitiveIterator.OfLong iterator() {
+            return new KeyIterator(this, false);
+        }
+
+        public PrimitiveIterator.OfLong descendingIterator() {
+            return new KeyIterator(this, true);
+        }
+    }
+
+    // Обход хранит полный путь от корня до следующего узла (высота АВЛ-дерева меньше 64), поэтому
+    // remove() удаляет узел по уже известному пути, без поиска от корня. bounds == null - все дерево.
+    private class KeyIterator implements PrimitiveIterator.OfLong {
+        private final Node[] stack = new Node[64];
+        private int depth = 0; // stack[depth - 1] - следующий узел; 0 - обход закончен
+        private final SubSet bounds;
+        private final boolean descending;
+        private Node lastReturned;
+        private int expectedModCount = modCount;
+
+        private KeyIterator(SubSet bounds, boolean descending) {
+            this.bounds = bounds;
+            this.descending = descending;
+            if (bounds == null)
+                seek(false, 0, false);
+            else if (descending)
+                seek(bounds.hasTo, bounds.to, bounds.toInclusive);
+            else
+                seek(bounds.hasFrom, bounds.from, bounds.fromInclusive);
+        }
+
+        // спуск к первому в порядке обхода узлу не раньше start; путь обрезается на нем
+        private void seek(boolean hasStart, long start, boolean inclusive) {
+            depth = 0;
+            int found = 0;
+            Node current = root;
+            while (current != null) {
+                stack[depth++] = current;
+                long key = current.key;
+                if (!hasStart || (descending ? key < start : key > start) || inclusive && key == start) {
+                    found = depth;
+                    current = descending ? current.right : current.left;
+                } else current = descending ? current.left : current.right;
+            }
+            Arrays.fill(stack, found, depth, null);
+            depth = found;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (depth == 0) return false;
+            long key = stack[depth - 1].key;
+            return bounds == null || (descending ? bounds.isAboveFloor(key) : bounds.isBelowCeil(key));
+        }
+
+        @Override
+        public long nextLong() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (!hasNext()) throw new NoSuchElementException();
+            Node node = stack[depth - 1];
+            Node child = descending ? node.left : node.right;
+            if (child != null) { // следующий - крайний узел поддерева по ходу обхода
+                for (; child != null; child = descending ? child.right : child.left) stack[depth++] = child;
+            } else { // иначе подъем до предка, от которого путь ушел против хода обхода
+                do {
+                    child = stack[--depth];
+                    stack[depth] = null;
+                } while (depth > 0 && (descending ? stack[depth - 1].left : stack[depth - 1].right) == child);
+            }
+            lastReturned = node;
+            return node.key;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            Node removed = lastReturned;
+            lastReturned = null;
+            Node next = depth == 0 ? null : stack[depth - 1];
+            // Путь до возвращенного узла: если обход ушел в его поддерево, узел лежит на пути к следующему;
+            // иначе он - крайний узел поддерева следующего против хода обхода (или всего дерева).
+            int length = depth;
+            if ((descending ? removed.left : removed.right) != null) {
+                while (stack[length - 1] != removed) length--;
+            } else {
+                Node current = next == null ? root : descending ? next.right : next.left;
+                for (; current != null; current = descending ? current.left : current.right) stack[length++] = current;
+            }
+            System.arraycopy(stack, 0, path, 0, length);
+            Arrays.fill(stack, 0, Math.max(length, depth), null);
+            unlink(length);
+            expectedModCount = modCount;
+            // узлы при удалении перевешиваются, а не копируются, так что следующий узел остался тем же;
+            // повороты могли изменить путь к нему, поэтому путь строится заново
+            if (next == null)
+                depth = 0;
+            else
+                seek(true, next.key, true);
+        }
+    }
+}
@@ -0,0 +1,723 @@
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * АВЛ-дерево в отображенном в память файле: узлы - записи фиксированной длины (левый и правый сын,
+ * высота, ключ фиксированной длины через KeyCodec), адресуемые номером, как в ArenaAVLTree. Файл растет
+ * сегментами, каждый отображается отдельно, так что уже выданные буферы при росте не перемапливаются.
+ * <p>
+ * Согласованность после сбоя: sync() сбрасывает данные через force() и фиксирует новую версию заголовка.
+ * Узлы, попавшие в зафиксированную версию, до следующего sync() не перезаписываются: изменения копируют
+ * путь от корня (как в PersistentAVLTree), а освобожденные узлы переиспользуются только после фиксации.
+ * Поэтому при открытии после сбоя файл всегда содержит дерево последнего sync(). Это верно только для
+ * одного писателя, поэтому open() берет на файл исключительную блокировку до close().
+ */
+public class MappedAVLTree<T> extends AbstractSet<T> implements NavigableSet<T>, Closeable {
+    private static final int NIL = 0; // запись 0 не используется: ее высота 0, ссылки на нее - пустые
+    private static final int MAGIC = 0x41564C4D; // "AVLM"
+
+    // заголовок хранится в двух слотах, запись идет в слот с четностью версии: недописанный слот
+    // не проходит проверку CRC, и при открытии берется другой
+    private static final int SLOT_SIZE = 64;
+    private static final int DATA_OFFSET = 4096;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int KEY_SIZE_OFFSET = 4;
+    private static final int GENERATION_OFFSET = 8;
+    private static final int ROOT_OFFSET = 16;
+    private static final int SIZE_OFFSET = 20;
+    private static final int USED_OFFSET = 24;
+    private static final int FREE_OFFSET = 28;
+    private static final int CHECKSUM_OFFSET = 32;
+
+    // запись узла
+    private static final int LEFT = 0;
+    private static final int RIGHT = 4;
+    private static final int HEIGHT = 8;
+    private static final int NEXT_FREE = 12; // звено списка свободных; при повторной выдаче записи не меняется
+    private static final int STAMP = 16; // версия, в которой запись была записана
+    private static final int KEY = 24;
+
+    static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final KeyCodec<T> codec;
+    private final Comparator<? super T> comparator; // null - естественный порядок
+    private final int recordSize;
+    private final int recordsPerSegment;
+    private final long segmentSize;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    private long generation; // последняя зафиксированная версия; новые записи получают generation + 1
+    private int root = NIL;
+    private int size = 0;
+    private int used = 1; // записи [1, used) хотя бы раз выдавались
+    private int free = NIL; // голова зафиксированного списка свободных записей
+    private int modCount = 0; // счетчик структурных изменений для fail-fast итераторов
+    // освобожденные записи текущей версии (можно выдавать сразу) и записи зафиксированного дерева,
+    // ставшие ненужными (можно выдавать только после sync)
+    private int[] reusable = new int[16];
+    private int reusableCount = 0;
+    private int[] pending = new int[16];
+    private int pendingCount = 0;
+    // путь от корня при вставке и удалении; высота АВЛ-дерева из 2^31 узлов меньше 64
+    private final int[] path = new int[64];
+
+    private MappedAVLTree(FileChannel channel, KeyCodec<T> codec, Comparator<? super T> comparator, long segmentSize)
+            throws IOException {
+        this.channel = channel;
+        this.codec = codec;
+        this.comparator = comparator;
+        this.recordSize = KEY + codec.fixedSize();
+        this.recordsPerSegment = (int) Math.min(Integer.MAX_VALUE, segmentSize / recordSize);
+        this.segmentSize = (long) recordsPerSegment * recordSize;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET);
+    }
+
+    /**
+     * Открывает дерево в файле или создает новое. Ключи должны иметь фиксированную длину, а порядок
+     * (comparator) - совпадать с тем, с которым дерево записывалось.
+     */
+    public static <T> MappedAVLTree<T> open(Path file, KeyCodec<T> codec, Comparator<? super T> comparator)
+            throws IOException {
+        return open(file, codec, comparator, DEFAULT_SEGMENT_SIZE);
+    }
+
+    static <T> MappedAVLTree<T> open(Path file, KeyCodec<T> codec, Comparator<? super T> comparator, long segmentSize)
+            throws IOException {
+        if (codec.fixedSize() <= 0 || segmentSize < KEY + codec.fixedSize()) throw new IllegalArgumentException();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            // второй экземпляр затирал бы при sync() слоты заголовка первого; блокировка снимается с закрытием канала
+            boolean locked;
+            try {
+                locked = channel.tryLock() != null;
+            } catch (OverlappingFileLockException e) {
+                locked = false; // файл уже открыт в этой JVM
+            }
+            if (!locked) throw new IOException("MappedAVLTree file is already open: " + file);
+            boolean created = channel.size() == 0;
+            MappedAVLTree<T> tree = new MappedAVLTree<>(channel, codec, comparator, segmentSize);
+            if (created)
+                tree.commit();
+            else
+                tree.load();
+            return tree;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void load() throws IOException {
+        int slot = -1;
+        for (int i = 0; i < 2; i++) {
+            int base = i * SLOT_SIZE;
+            if (header.getInt(base + MAGIC_OFFSET) != MAGIC || header.getLong(base + CHECKSUM_OFFSET) != slotChecksum(base))
+                continue;
+            if (slot < 0 || header.getLong(base + GENERATION_OFFSET) > header.getLong(slot + GENERATION_OFFSET)) slot = base;
+        }
+        if (slot < 0) throw new IOException("Not a MappedAVLTree file");
+        if (header.getInt(slot + KEY_SIZE_OFFSET) != codec.fixedSize()) throw new IOException("Key size mismatch");
+        generation = header.getLong(slot + GENERATION_OFFSET);
+        root = header.getInt(slot + ROOT_OFFSET);
+        size = header.getInt(slot + SIZE_OFFSET);
+        used = header.getInt(slot + USED_OFFSET);
+        free = header.getInt(slot + FREE_OFFSET);
+        mapSegments(used);
+    }
+
+    private long slotChecksum(int base) {
+        CRC32 checksum = new CRC32();
+        checksum.update(header.duplicate().limit(base + CHECKSUM_OFFSET).position(base));
+        return checksum.getValue();
+    }
+
+    // записывает следующую версию заголовка; данные, на которые он ссылается, должны быть уже сброшены
+    private void commit() throws IOException {
+        int base = (int) ((generation + 1) & 1) * SLOT_SIZE;
+        header.putInt(base + MAGIC_OFFSET, MAGIC);
+        header.putInt(base + KEY_SIZE_OFFSET, codec.fixedSize());
+        header.putLong(base + GENERATION_OFFSET, generation + 1);
+        header.putInt(base + ROOT_OFFSET, root);
+        header.putInt(base + SIZE_OFFSET, size);
+        header.putInt(base + USED_OFFSET, used);
+        header.putInt(base + FREE_OFFSET, free);
+        header.putLong(base + CHECKSUM_OFFSET, slotChecksum(base));
+        mapSegments(used);
+        header.force();
+        generation++;
+    }
+
+    /**
+     * Точка синхронизации: после возврата текущее состояние переживет сбой процесса или системы.
+     */
+    public void sync() throws IOException {
+        for (MappedByteBuffer segment : segments) segment.force();
+        commit();
+        if (reusableCount + pendingCount == 0) return;
+        modCount++; // освобожденные записи снова выдаются, номера в стеке итератора могут стать чужими
+        // освобожденные записи больше не нужны ни одной зафиксированной версии; их звенья пишутся
+        // после фиксации и сами фиксируются второй версией (сбой между ними лишь теряет эти записи)
+        for (int i = 0; i < reusableCount; i++) pushFree(reusable[i]);
+        for (int i = 0; i < pendingCount; i++) pushFree(pending[i]);
+        reusableCount = 0;
+        pendingCount = 0;
+        for (MappedByteBuffer segment : segments) segment.force();
+        commit();
+    }
+
+    private void pushFree(int node) {
+        segment(node).putInt(offset(node) + NEXT_FREE, free);
+        free = node;
+    }
+
+    /**
+     * sync() и закрытие файла.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void mapSegments(int records) throws IOException {
+        int count = (int) ((records + (long) recordsPerSegment - 1) / recordsPerSegment);
+        if (count <= segments.length) return;
+        int mapped = segments.length;
+        segments = Arrays.copyOf(segments, count);
+        for (int i = mapped; i < count; i++)
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, DATA_OFFSET + i * segmentSize, segmentSize);
+    }
+
+    private MappedByteBuffer segment(int node) {
+        return segments[node / recordsPerSegment];
+    }
+
+    private int offset(int node) {
+        return node % recordsPerSegment * recordSize;
+    }
+
+    private int left(int node) {
+        return segment(node).getInt(offset(node) + LEFT);
+    }
+
+    private int right(int node) {
+        return segment(node).getInt(offset(node) + RIGHT);
+    }
+
+    private int height(int node) {
+        return segment(node).getInt(offset(node) + HEIGHT);
+    }
+
+    private void setLeft(int node, int child) {
+        segment(node).putInt(offset(node) + LEFT, child);
+    }
+
+    private void setRight(int node, int child) {
+        segment(node).putInt(offset(node) + RIGHT, child);
+    }
+
+    private T key(int node) {
+        if (node == NIL) return null;
+        ByteBuffer segment = segment(node);
+        segment.position(offset(node) + KEY);
+        return codec.decode(segment);
+    }
+
+    private int compare(T first, T second) {
+        return comparator == null ? ((Comparable<T>) first).compareTo(second) : comparator.compare(first, second);
+    }
+
+    // запись текущей версии можно менять на месте
+    private boolean isFresh(int node) {
+        return segment(node).getLong(offset(node) + STAMP) == generation + 1;
+    }
+
+    private int allocate() {
+        int node;
+        if (reusableCount > 0) {
+            node = reusable[--reusableCount];
+        } else if (free != NIL) {
+            node = free;
+            free = segment(node).getInt(offset(node) + NEXT_FREE);
+        } else {
+            if (used == Integer.MAX_VALUE) throw new OutOfMemoryError();
+            try {
+                mapSegments(used + 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            node = used++;
+        }
+        segment(node).putLong(offset(node) + STAMP, generation + 1);
+        return node;
+    }
+
+    private int allocate(T key) {
+        int node = allocate();
+        ByteBuffer segment = segment(node);
+        int offset = offset(node);
+        segment.putInt(offset + LEFT, NIL);
+        segment.putInt(offset + RIGHT, NIL);
+        segment.putInt(offset + HEIGHT, 1);
+        segment.position(offset + KEY);
+        codec.encode(key, segment);
+        return node;
+    }
+
+    private void release(int node) {
+        if (isFresh(node))
+            reusable = push(reusable, reusableCount++, node);
+        else
+            pending = push(pending, pendingCount++, node);
+    }
+
+    private static int[] push(int[] stack, int index, int node) {
+        if (index == stack.length) stack = Arrays.copyOf(stack, index * 2);
+        stack[index] = node;
+        return stack;
+    }
+
+    // узел, который можно менять: сам узел, если он записан в текущей версии, иначе его копия;
+    // ссылку на копию вызывающий обязан записать в родителя
+    private int writable(int node) {
+        if (isFresh(node)) return node;
+        int copy = allocate();
+        ByteBuffer source = segment(node);
+        ByteBuffer target = segment(copy);
+        int from = offset(node);
+        int to = offset(copy);
+        for (int i = 0; i < recordSize; i++) {
+            if (i == NEXT_FREE) i = KEY; // звено списка и версию не копируем
+            target.put(to + i, source.get(from + i));
+        }
+        release(node);
+        return copy;
+    }
+
+    private void fixHeight(int node) {
+        segment(node).putInt(offset(node) + HEIGHT, Math.max(height(left(node)), height(right(node))) + 1);
+    }
+
+    private int rotateLeft(int pivot) {
+        pivot = writable(pivot);
+        int pivotRight = writable(right(pivot));
+        setRight(pivot, left(pivotRight));
+        setLeft(pivotRight, pivot);
+        fixHeight(pivot);
+        fixHeight(pivotRight);
+        return pivotRight;
+    }
+
+    private int rotateRight(int pivot) {
+        pivot = writable(pivot);
+        int pivotLeft = writable(left(pivot));
+        setLeft(pivot, right(pivotLeft));
+        setRight(pivotLeft, pivot);
+        fixHeight(pivot);
+        fixHeight(pivotLeft);
+        return pivotLeft;
+    }
+
+    // node уже доступен для записи
+    private int balance(int node) {
+        int balanceFactor = height(right(node)) - height(left(node));
+        fixHeight(node);
+        if (balanceFactor == 2) {
+            int child = right(node);
+            if (height(right(child)) < height(left(child))) setRight(node, rotateRight(child));
+            return rotateLeft(node);
+        } else if (balanceFactor == -2) {
+            int child = left(node);
+            if (height(left(child)) < height(right(child))) setLeft(node, rotateLeft(child));
+            return rotateRight(node);
+        }
+        return node;
+    }
+
+    private void relink(int index, int oldNode, int newNode) {
+        if (index == 0) {
+            root = newNode;
+            return;
+        }
+        int parent = path[index - 1];
+        if (left(parent) == oldNode)
+            setLeft(parent, newNode);
+        else
+            setRight(parent, newNode);
+    }
+
+    // копирование пути сверху вниз: после него все узлы path[0..depth) можно менять
+    private void makeWritable(int depth) {
+        for (int i = 0; i < depth; i++) {
+            int node = writable(path[i]);
+            if (node != path[i]) {
+                relink(i, path[i], node);
+                path[i] = node;
+            }
+        }
+    }
+
+    // балансировка по сохраненному пути снизу вверх до первого уровня, где высота не изменилась
+    private void fixPath(int depth) {
+        for (int i = depth - 1; i >= 0; i--) {
+            int node = path[i];
+            int oldHeight = height(node);
+            int balanced = balance(node);
+            if (balanced != node) relink(i, node, balanced);
+            if (height(balanced) == oldHeight) break;
+        }
+    }
+
+    @Override
+    public boolean add(T value) {
+        Objects.requireNonNull(value);
+        if (root == NIL) {
+            root = allocate(value);
+            size++;
+            modCount++;
+            return true;
+        }
+        int depth = 0;
+        int current = root;
+        int comparision;
+        while (true) {
+            path[depth++] = current;
+            comparision = compare(key(current), value);
+            if (comparision == 0) return false;
+            int next = comparision > 0 ? left(current) : right(current);
+            if (next == NIL) break;
+            current = next;
+        }
+        makeWritable(depth);
+        int node = allocate(value);
+        if (comparision > 0)
+            setLeft(path[depth - 1], node);
+        else
+            setRight(path[depth - 1], node);
+        size++;
+        modCount++;
+        fixPath(depth);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        T value = (T) o;
+        int depth = 0;
+        int current = root;
+        while (current != NIL) {
+            path[depth++] = current;
+            int comparision = compare(key(current), value);
+            if (comparision == 0) break;
+            current = comparision > 0 ? left(current) : right(current);
+        }
+        if (current == NIL) return false;
+        int removed = depth - 1;
+        if (right(current) != NIL) {
+            for (int min = right(current); min != NIL; min = left(min)) path[depth++] = min;
+        }
+        makeWritable(depth);
+        current = path[removed];
+        if (depth - 1 == removed) { // если правого поддерева нет, то на место узла встает левое поддерево
+            relink(removed, current, left(current));
+            depth--;
+        } else { // иначе на место узла встает минимальный элемент правого поддерева
+            int min = path[--depth];
+            if (depth - 1 > removed) {
+                setLeft(path[depth - 1], right(min));
+                setRight(min, right(current));
+            }
+            setLeft(min, left(current));
+            segment(min).putInt(offset(min) + HEIGHT, height(current));
+            relink(removed, current, min);
+            path[removed] = min;
+        }
+        release(current);
+        size--;
+        modCount++;
+        fixPath(depth);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        T value = (T) o;
+        int current = root;
+        while (current != NIL) {
+            int comparision = compare(key(current), value);
+            if (comparision == 0) return true;
+            current = comparision > 0 ? left(current) : right(current);
+        }
+        return false;
+    }
+
+    // навигация: один спуск с запоминанием лучшего кандидата, NIL - подходящего элемента нет
+
+    private int lowerNode(T value, boolean inclusive) {
+        int best = NIL;
+        int current = root;
+        while (current != NIL) {
+            int comparision = compare(key(current), value);
+            if (comparision < 0 || inclusive && comparision == 0) {
+                best = current;
+                if (comparision == 0) break;
+                current = right(current);
+            } else current = left(current);
+        }
+        return best;
+    }
+
+    private int higherNode(T value, boolean inclusive) {
+        int best = NIL;
+        int current = root;
+        while (current != NIL) {
+            int comparision = compare(key(current), value);
+            if (comparision > 0 || inclusive && comparision == 0) {
+                best = current;
+                if (comparision == 0) break;
+                current = left(current);
+            } else current = right(current);
+        }
+        return best;
+    }
+
+    private int extremeNode(boolean max) {
+        int current = root;
+        if (current == NIL) return NIL;
+        for (int next = max ? right(current) : left(current); next != NIL; next = max ? right(current) : left(current)) {
+            current = next;
+        }
+        return current;
+    }
+
+    @Override
+    public T lower(T value) {
+        return key(lowerNode(value, false));
+    }
+
+    @Override
+    public T floor(T value) {
+        return key(lowerNode(value, true));
+    }
+
+    @Override
+    public T ceiling(T value) {
+        return key(higherNode(value, true));
+    }
+
+    @Override
+    public T higher(T value) {
+        return key(higherNode(value, false));
+    }
+
+    @Override
+    public T first() {
+        if (size == 0) throw new NoSuchElementException();
+        return key(extremeNode(false));
+    }
+
+    @Override
+    public T last() {
+        if (size == 0) throw new NoSuchElementException();
+        return key(extremeNode(true));
+    }
+
+    @Override
+    public T pollFirst() {
+        if (size == 0) return null;
+        T value = key(extremeNode(false));
+        remove(value);
+        return value;
+    }
+
+    @Override
+    public T pollLast() {
+        if (size == 0) return null;
+        T value = key(extremeNode(true));
+        remove(value);
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // все узлы освобождаются обходом; записи зафиксированного дерева станут свободными после sync()
+    @Override
+    public void clear() {
+        if (root == NIL) return;
+        int[] stack = new int[height(root) + 1];
+        int depth = 0;
+        stack[depth++] = root;
+        while (depth > 0) {
+            int node = stack[--depth];
+            if (left(node) != NIL) stack[depth++] = left(node);
+            if (right(node) != NIL) stack[depth++] = right(node);
+            release(node);
+        }
+        root = NIL;
+        size = 0;
+        modCount++;
+    }
+
+    public int height() {
+        return height(root);
+    }
+
+    // число записей, когда-либо выданных в файле
+    int capacity() {
+        return used - 1;
+    }
+
+    public boolean checkInvariant() {
+        return root == NIL || checkInvariant(root, null, null);
+    }
+
+    private boolean checkInvariant(int node, T low, T high) {
+        T value = key(node);
+        if (low != null && compare(value, low) <= 0 || high != null && compare(value, high) >= 0) return false;
+        int leftNode = left(node);
+        int rightNode = right(node);
+        if (height(node) != Math.max(height(leftNode), height(rightNode)) + 1) return false;
+        if (Math.abs(height(rightNode) - height(leftNode)) > 1) return false;
+        return (leftNode == NIL || checkInvariant(leftNode, low, value))
+                && (rightNode == NIL || checkInvariant(rightNode, value, high));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return new MappedIterator(false);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> descendingIterator() {
+        return new MappedIterator(true);
+    }
+
+    @Override
+    public Comparator<? super T> comparator() {
+        return comparator;
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> descendingSet() {
+        return SubSetView.descending(this);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive) {
+        return SubSetView.range(this, true, fromElement, fromInclusive, true, toElement, toInclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> headSet(T toElement, boolean inclusive) {
+        return SubSetView.range(this, false, null, false, true, toElement, inclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> tailSet(T fromElement, boolean inclusive) {
+        return SubSetView.range(this, true, fromElement, inclusive, false, null, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> headSet(T toElement) {
+        return headSet(toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> tailSet(T fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    // обход со стеком номеров записей; высота АВЛ-дерева меньше 64, так что стек не переполняется
+    private class MappedIterator implements Iterator<T> {
+        private final int[] stack = new int[64];
+        private int depth = 0;
+        private final boolean descending;
+        private T lastReturned = null;
+        private int expectedModCount = modCount;
+
+        private MappedIterator(boolean descending) {
+            this.descending = descending;
+            pushEdge(root);
+        }
+
+        private void pushEdge(int node) {
+            while (node != NIL) {
+                stack[depth++] = node;
+                node = descending ? right(node) : left(node);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        @Override
+        public T next() {
+            // после изменения или sync() записи в стеке могли освободиться или перейти к другим ключам
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (depth == 0) throw new NoSuchElementException();
+            int node = stack[--depth];
+            pushEdge(descending ? left(node) : right(node));
+            lastReturned = key(node);
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) throw new IllegalStateException();
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            MappedAVLTree.this.remove(lastReturned);
+            expectedModCount = modCount;
+            depth = 0; // после перебалансировки (и копирования пути) стек строится заново от корня
+            int current = root;
+            while (current != NIL) {
+                int comparision = compare(key(current), lastReturned);
+                if (descending ? comparision < 0 : comparision > 0) {
+                    stack[depth++] = current;
+                    current = descending ? right(current) : left(current);
+                } else current = descending ? left(current) : right(current);
+            }
+            lastReturned = null;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * АВЛ-дерево на неизменяемых узлах: add и remove копируют только путь от корня до измененного узла
+ * (O(log n) новых узлов), остальные поддеревья разделяются между версиями. snapshot() за O(1) возвращает
+ * замороженную версию дерева, которую можно читать из любого потока без блокировок, пока писатель
+ * публикует новые корни. Изменения сериализуются, чтение блокировок не берет.
+ */
+public class PersistentAVLTree<T extends Comparable<T>> extends AbstractSet<T> implements RankedSet<T> {
+    private volatile Node<T> root;
+    private final boolean frozen;
+
+    private static final class Node<T> {
+        private final T value;
+        private final Node<T> left;
+        private final Node<T> right;
+        private final int height;
+        private final int size; // количество узлов в поддереве, включая сам узел
+
+        private Node(T value, Node<T> left, Node<T> right) {
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    public PersistentAVLTree() {
+        this(null, false);
+    }
+
+    private PersistentAVLTree(Node<T> root, boolean frozen) {
+        this.root = root;
+        this.frozen = frozen;
+    }
+
+    /**
+     * Неизменяемая копия текущей версии дерева, O(1): копия разделяет все узлы с деревом.
+     */
+    public PersistentAVLTree<T> snapshot() {
+        return new PersistentAVLTree<>(root, true);
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private static int height(Node<?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private void checkWritable() {
+        if (frozen) throw new UnsupportedOperationException();
+    }
+
+    // новый узел с балансировкой; поворот тоже создает новые узлы вместо изменения старых
+    private Node<T> balance(T value, Node<T> left, Node<T> right) {
+        int balanceFactor = height(right) - height(left);
+        if (balanceFactor == 2) {
+            if (height(right.left) > height(right.right)) {
+                Node<T> middle = right.left;
+                return new Node<>(middle.value, new Node<>(value, left, middle.left),
+                        new Node<>(right.value, middle.right, right.right));
+            }
+            return new Node<>(right.value, new Node<>(value, left, right.left), right.right);
+        } else if (balanceFactor == -2) {
+            if (height(left.right) > height(left.left)) {
+                Node<T> middle = left.right;
+                return new Node<>(middle.value, new Node<>(left.value, left.left, middle.left),
+                        new Node<>(value, middle.right, right));
+            }
+            return new Node<>(left.value, left.left, new Node<>(value, left.right, right));
+        }
+        return new Node<>(value, left, right);
+    }
+
+    // возвращает тот же узел, если value уже есть в поддереве
+    private Node<T> insert(Node<T> node, T value) {
+        if (node == null) return new Node<>(value, null, null);
+        int comparision = node.value.compareTo(value);
+        if (comparision > 0) {
+            Node<T> left = insert(node.left, value);
+            return left == node.left ? node : balance(node.value, left, node.right);
+        } else if (comparision < 0) {
+            Node<T> right = insert(node.right, value);
+            return right == node.right ? node : balance(node.value, node.left, right);
+        }
+        return node;
+    }
+
+    // возвращает тот же узел, если value в поддереве нет
+    private Node<T> delete(Node<T> node, T value) {
+        if (node == null) return null;
+        int comparision = node.value.compareTo(value);
+        if (comparision > 0) {
+            Node<T> left = delete(node.left, value);
+            return left == node.left ? node : balance(node.value, left, node.right);
+        } else if (comparision < 0) {
+            Node<T> right = delete(node.right, value);
+            return right == node.right ? node : balance(node.value, node.left, right);
+        }
+        if (node.left == null) return node.right;
+        if (node.right == null) return node.left;
+        Node<T> min = node.right;
+        while (min.left != null) min = min.left;
+        return balance(min.value, node.left, deleteMin(node.right));
+    }
+
+    private Node<T> deleteMin(Node<T> node) {
+        if (node.left == null) return node.right;
+        return balance(node.value, deleteMin(node.left), node.right);
+    }
+
+    @Override
+    public synchronized boolean add(T value) {
+        checkWritable();
+        Objects.requireNonNull(value);
+        Node<T> current = root;
+        Node<T> updated = insert(current, value);
+        if (updated == current) return false;
+        root = updated;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        checkWritable();
+        Node<T> current = root;
+        Node<T> updated = delete(current, (T) Objects.requireNonNull(o));
+        if (updated == current) return false;
+        root = updated;
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        checkWritable();
+        root = null;
+    }
+
+    @Override
+    public synchronized T pollFirst() {
+        checkWritable();
+        Node<T> min = extreme(root, false);
+        if (min == null) return null;
+        root = delete(root, min.value);
+        return min.value;
+    }
+
+    @Override
+    public synchronized T pollLast() {
+        checkWritable();
+        Node<T> max = extreme(root, true);
+        if (max == null) return null;
+        root = delete(root, max.value);
+        return max.value;
+    }
+
+    // чтение: корень читается один раз, дальше спуск идет по неизменяемой версии
+
+    @Override
+    public boolean contains(Object o) {
+        T value = (T) o;
+        Node<T> current = root;
+        while (current != null) {
+            int comparision = current.value.compareTo(value);
+            if (comparision == 0) return true;
+            current = comparision > 0 ? current.left : current.right;
+        }
+        return false;
+    }
+
+    private T lowerValue(T value, boolean inclusive) {
+        T best = null;
+        Node<T> current = root;
+        while (current != null) {
+            int comparision = current.value.compareTo(value);
+            if (comparision == 0 && inclusive) return current.value;
+            if (comparision < 0) {
+                best = current.value;
+                current = current.right;
+            } else current = current.left;
+        }
+        return best;
+    }
+
+    private T higherValue(T value, boolean inclusive) {
+        T best = null;
+        Node<T> current = root;
+        while (current != null) {
+            int comparision = current.value.compareTo(value);
+            if (comparision == 0 && inclusive) return current.value;
+            if (comparision > 0) {
+                best = current.value;
+                current = current.left;
+            } else current = current.right;
+        }
+        return best;
+    }
+
+    @Override
+    public int countLess(T value, boolean inclusive) {
+        int count = 0;
+        Node<T> current = root;
+        while (current != null) {
+            int comparision = current.value.compareTo(value);
+            if (comparision < 0 || inclusive && comparision == 0) {
+                count += size(current.left) + 1;
+                current = current.right;
+            } else current = current.left;
+        }
+        return count;
+    }
+
+    private static <T> Node<T> extreme(Node<T> node, boolean max) {
+        if (node == null) return null;
+        for (Node<T> next = max ? node.right : node.left; next != null; next = max ? node.right : node.left) {
+            node = next;
+        }
+        return node;
+    }
+
+    @Override
+    public T lower(T value) {
+        return lowerValue(value, false);
+    }
+
+    @Override
+    public T floor(T value) {
+        return lowerValue(value, true);
+    }
+
+    @Override
+    public T ceiling(T value) {
+        return higherValue(value, true);
+    }
+
+    @Override
+    public T higher(T value) {
+        return higherValue(value, false);
+    }
+
+    @Override
+    public T first() {
+        Node<T> min = extreme(root, false);
+        if (min == null) throw new NoSuchElementException();
+        return min.value;
+    }
+
+    @Override
+    public T last() {
+        Node<T> max = extreme(root, true);
+        if (max == null) throw new NoSuchElementException();
+        return max.value;
+    }
+
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public int height() {
+        return height(root);
+    }
+
+    public boolean checkInvariant() {
+        Node<T> current = root;
+        return current == null || checkInvariant(current, null, null);
+    }
+
+    private boolean checkInvariant(Node<T> node, T low, T high) {
+        if (low != null && node.value.compareTo(low) <= 0 || high != null && node.value.compareTo(high) >= 0)
+            return false;
+        if (Math.abs(height(node.right) - height(node.left)) > 1) return false;
+        return (node.left == null || checkInvariant(node.left, low, node.value))
+                && (node.right == null || checkInvariant(node.right, node.value, high));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return new SnapshotIterator(false);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> descendingIterator() {
+        return new SnapshotIterator(true);
+    }
+
+    @Override
+    public Comparator<? super T> comparator() {
+        return null;
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> descendingSet() {
+        return SubSetView.descending(this);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive) {
+        return SubSetView.range(this, true, fromElement, fromInclusive, true, toElement, toInclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> headSet(T toElement, boolean inclusive) {
+        return SubSetView.range(this, false, null, false, true, toElement, inclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> tailSet(T fromElement, boolean inclusive) {
+        return SubSetView.range(this, true, fromElement, inclusive, false, null, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> headSet(T toElement) {
+        return headSet(toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> tailSet(T fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    // итератор обходит ту версию дерева, которая была при его создании
+    private class SnapshotIterator implements Iterator<T> {
+        private final Node<T>[] stack;
+        private int depth = 0;
+        private final boolean descending;
+        private T lastReturned = null;
+
+        private SnapshotIterator(boolean descending) {
+            Node<T> start = root;
+            this.stack = (Node<T>[]) new Node[height(start) + 1];
+            this.descending = descending;
+            pushEdge(start);
+        }
+
+        private void pushEdge(Node<T> node) {
+            while (node != null) {
+                stack[depth++] = node;
+                node = descending ? node.right : node.left;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return depth > 0;
+        }
+
+        @Override
+        public T next() {
+            if (depth == 0) throw new NoSuchElementException();
+            Node<T> node = stack[--depth];
+            stack[depth] = null;
+            pushEdge(descending ? node.left : node.right);
+            lastReturned = node.value;
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) throw new IllegalStateException();
+            PersistentAVLTree.this.remove(lastReturned);
+            lastReturned = null;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+import java.util.NavigableSet;
+
+/**
+ * Набор, который по размерам поддеревьев считает элементы меньше заданного за O(log n).
+ * SubSetView над таким набором узнает свой размер двумя спусками, без обхода диапазона.
+ */
+interface RankedSet<T> extends NavigableSet<T> {
+
+    /**
+     * Количество элементов меньше value (или не больше, если inclusive).
+     */
+    int countLess(T value, boolean inclusive);
+}
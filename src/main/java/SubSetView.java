@@ -0,0 +1,320 @@
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Представление диапазона (и/или обратного порядка) поверх любого NavigableSet.
+ * Все операции сводятся к навигации исходного набора: шаг итератора - один вызов higher()/lower(),
+ * поэтому представление подходит для любого из вариантов дерева. Изменения видны в обе стороны.
+ * size() над RankedSet стоит два спуска, над остальными наборами - обход диапазона, O(k log n)
+ * для k элементов в нем; clear() удаляет элементы по одному, O(k log n).
+ */
+class SubSetView<T> extends AbstractSet<T> implements NavigableSet<T> {
+    private final NavigableSet<T> backing;
+    private final Comparator<? super T> comparator; // null - естественный порядок
+    // границы всегда в порядке возрастания исходного набора, даже у убывающего представления
+    private final boolean hasFrom;
+    private final T from;
+    private final boolean fromInclusive;
+    private final boolean hasTo;
+    private final T to;
+    private final boolean toInclusive;
+    private final boolean descending;
+
+    SubSetView(NavigableSet<T> backing, boolean hasFrom, T from, boolean fromInclusive,
+               boolean hasTo, T to, boolean toInclusive, boolean descending) {
+        this.backing = backing;
+        this.comparator = backing.comparator();
+        if (hasFrom && hasTo && compare(from, to) > 0) throw new IllegalArgumentException();
+        this.hasFrom = hasFrom;
+        this.from = from;
+        this.fromInclusive = fromInclusive;
+        this.hasTo = hasTo;
+        this.to = to;
+        this.toInclusive = toInclusive;
+        this.descending = descending;
+    }
+
+    static <T> SubSetView<T> descending(NavigableSet<T> backing) {
+        return new SubSetView<>(backing, false, null, false, false, null, false, true);
+    }
+
+    static <T> SubSetView<T> range(NavigableSet<T> backing, boolean hasFrom, T from, boolean fromInclusive,
+                                   boolean hasTo, T to, boolean toInclusive) {
+        return new SubSetView<>(backing, hasFrom, from, fromInclusive, hasTo, to, toInclusive, false);
+    }
+
+    private int compare(T first, T second) {
+        return comparator == null ? ((Comparable<T>) first).compareTo(second) : comparator.compare(first, second);
+    }
+
+    private boolean tooLow(T value) {
+        if (!hasFrom) return false;
+        int comparision = compare(value, from);
+        return comparision < 0 || comparision == 0 && !fromInclusive;
+    }
+
+    private boolean tooHigh(T value) {
+        if (!hasTo) return false;
+        int comparision = compare(value, to);
+        return comparision > 0 || comparision == 0 && !toInclusive;
+    }
+
+    private boolean inRange(T value) {
+        return !tooLow(value) && !tooHigh(value);
+    }
+
+    // навигация в порядке возрастания исходного набора
+
+    private T lowest() {
+        T result;
+        if (hasFrom)
+            result = fromInclusive ? backing.ceiling(from) : backing.higher(from);
+        else
+            result = backing.isEmpty() ? null : backing.first();
+        return result == null || tooHigh(result) ? null : result;
+    }
+
+    private T highest() {
+        T result;
+        if (hasTo)
+            result = toInclusive ? backing.floor(to) : backing.lower(to);
+        else
+            result = backing.isEmpty() ? null : backing.last();
+        return result == null || tooLow(result) ? null : result;
+    }
+
+    private T ascendingCeiling(T value) {
+        if (tooLow(value)) return lowest();
+        T result = backing.ceiling(value);
+        return result == null || tooHigh(result) ? null : result;
+    }
+
+    private T ascendingHigher(T value) {
+        if (tooLow(value)) return lowest();
+        T result = backing.higher(value);
+        return result == null || tooHigh(result) ? null : result;
+    }
+
+    private T ascendingFloor(T value) {
+        if (tooHigh(value)) return highest();
+        T result = backing.floor(value);
+        return result == null || tooLow(result) ? null : result;
+    }
+
+    private T ascendingLower(T value) {
+        if (tooHigh(value)) return highest();
+        T result = backing.lower(value);
+        return result == null || tooLow(result) ? null : result;
+    }
+
+    @Override
+    public T lower(T value) {
+        return descending ? ascendingHigher(value) : ascendingLower(value);
+    }
+
+    @Override
+    public T floor(T value) {
+        return descending ? ascendingCeiling(value) : ascendingFloor(value);
+    }
+
+    @Override
+    public T ceiling(T value) {
+        return descending ? ascendingFloor(value) : ascendingCeiling(value);
+    }
+
+    @Override
+    public T higher(T value) {
+        return descending ? ascendingLower(value) : ascendingHigher(value);
+    }
+
+    @Override
+    public T first() {
+        T result = descending ? highest() : lowest();
+        if (result == null) throw new NoSuchElementException();
+        return result;
+    }
+
+    @Override
+    public T last() {
+        T result = descending ? lowest() : highest();
+        if (result == null) throw new NoSuchElementException();
+        return result;
+    }
+
+    @Override
+    public T pollFirst() {
+        T result = descending ? highest() : lowest();
+        if (result != null) backing.remove(result);
+        return result;
+    }
+
+    @Override
+    public T pollLast() {
+        T result = descending ? lowest() : highest();
+        if (result != null) backing.remove(result);
+        return result;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o != null && inRange((T) o) && backing.contains(o);
+    }
+
+    @Override
+    public boolean add(T value) {
+        if (!inRange(value)) throw new IllegalArgumentException();
+        return backing.add(value);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o != null && inRange((T) o) && backing.remove(o);
+    }
+
+    @Override
+    public int size() {
+        if (backing instanceof RankedSet) {
+            RankedSet<T> ranked = (RankedSet<T>) backing;
+            int above = hasTo ? ranked.countLess(to, toInclusive) : backing.size();
+            int below = hasFrom ? ranked.countLess(from, !fromInclusive) : 0;
+            return Math.max(0, above - below);
+        }
+        int counter = 0;
+        for (T ignored : this) counter++;
+        return counter;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return lowest() == null;
+    }
+
+    @Override
+    public void clear() {
+        Iterator<T> iterator = iterator();
+        while (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> iterator() {
+        return new ViewIterator(descending);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<T> descendingIterator() {
+        return new ViewIterator(!descending);
+    }
+
+    @Override
+    public Comparator<? super T> comparator() {
+        if (!descending) return comparator;
+        return comparator == null ? (Comparator<? super T>) Collections.reverseOrder() : Collections.reverseOrder(comparator);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> descendingSet() {
+        return new SubSetView<>(backing, hasFrom, from, fromInclusive, hasTo, to, toInclusive, !descending);
+    }
+
+    // границы нового представления заданы в порядке этого представления
+    private NavigableSet<T> subView(boolean hasLow, T low, boolean lowInclusive, boolean hasHigh, T high, boolean highInclusive) {
+        if (descending) {
+            boolean swapHas = hasLow;
+            T swap = low;
+            boolean swapInclusive = lowInclusive;
+            hasLow = hasHigh;
+            low = high;
+            lowInclusive = highInclusive;
+            hasHigh = swapHas;
+            high = swap;
+            highInclusive = swapInclusive;
+        }
+        if (hasLow && tooLow(low) && !(compare(low, from) == 0 && !lowInclusive)) throw new IllegalArgumentException();
+        if (hasHigh && tooHigh(high) && !(compare(high, to) == 0 && !highInclusive)) throw new IllegalArgumentException();
+        if (!hasLow) {
+            hasLow = hasFrom;
+            low = from;
+            lowInclusive = fromInclusive;
+        }
+        if (!hasHigh) {
+            hasHigh = hasTo;
+            high = to;
+            highInclusive = toInclusive;
+        }
+        return new SubSetView<>(backing, hasLow, low, lowInclusive, hasHigh, high, highInclusive, descending);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive) {
+        return subView(true, fromElement, fromInclusive, true, toElement, toInclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> headSet(T toElement, boolean inclusive) {
+        return subView(false, null, false, true, toElement, inclusive);
+    }
+
+    @NotNull
+    @Override
+    public NavigableSet<T> tailSet(T fromElement, boolean inclusive) {
+        return subView(true, fromElement, inclusive, false, null, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> subSet(T fromElement, T toElement) {
+        return subSet(fromElement, true, toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> headSet(T toElement) {
+        return headSet(toElement, false);
+    }
+
+    @NotNull
+    @Override
+    public SortedSet<T> tailSet(T fromElement) {
+        return tailSet(fromElement, true);
+    }
+
+    private class ViewIterator implements Iterator<T> {
+        private final boolean descending;
+        private T next;
+        private T lastReturned = null;
+
+        private ViewIterator(boolean descending) {
+            this.descending = descending;
+            next = descending ? highest() : lowest();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (next == null) throw new NoSuchElementException();
+            lastReturned = next;
+            next = descending ? ascendingLower(next) : ascendingHigher(next);
+            return lastReturned;
+        }
+
+        @Override
+        public void remove() {
+            if (lastReturned == null) throw new IllegalStateException();
+            backing.remove(lastReturned);
+            lastReturned = null;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import jdk.jfr.*;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * События Java Flight Recorder для AVLTree. Медленные add, remove и навигация пишутся событием
+ * avltree.Operation (порог по умолчанию 1 мс, меняется в настройках записи), пакетные операции -
+ * avltree.Bulk, а раз в секунду для деревьев, включенных через AVLTree.recordStatistics,
+ * пишется avltree.Statistics. Пока запись не идет, begin/shouldCommit ничего не делают,
+ * а объект события убирается escape-анализом. Повороты в статистике считаются, только если
+ * JVM запущена с -Davltree.metrics=true, иначе поля поворотов нулевые.
+ */
+final class TreeEvents {
+    private TreeEvents() {
+    }
+
+    @Name("avltree.Operation")
+    @Label("AVL Tree Operation")
+    @Category("AVL Tree")
+    @Threshold("1 ms")
+    static final class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Size")
+        int size;
+    }
+
+    @Name("avltree.Bulk")
+    @Label("AVL Tree Bulk Operation")
+    @Category("AVL Tree")
+    static final class BulkEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Argument Size")
+        int argumentSize;
+        @Label("Size Before")
+        int sizeBefore;
+        @Label("Size After")
+        int sizeAfter;
+    }
+
+    @Name("avltree.Statistics")
+    @Label("AVL Tree Statistics")
+    @Category("AVL Tree")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class StatisticsEvent extends Event {
+        @Label("Name")
+        String name;
+        @Label("Size")
+        int size;
+        @Label("Height")
+        int height;
+        @Label("Rotations")
+        long rotations;
+        @Label("Rotations Per Second")
+        double rotationRate;
+    }
+
+    static void commit(OperationEvent event, String operation, int size) {
+        if (!event.shouldCommit()) return;
+        event.operation = operation;
+        event.size = size;
+        event.commit();
+    }
+
+    static void commit(BulkEvent event, String operation, int argumentSize, int sizeBefore, int sizeAfter) {
+        if (!event.shouldCommit()) return;
+        event.operation = operation;
+        event.argumentSize = argumentSize;
+        event.sizeBefore = sizeBefore;
+        event.sizeAfter = sizeAfter;
+        event.commit();
+    }
+
+    // деревья, для которых пишется периодическая статистика; ссылки слабые, чтобы не удерживать деревья
+    private static final List<Monitored> monitored = new ArrayList<>();
+    private static boolean hookRegistered = false;
+
+    private static final class Monitored {
+        final WeakReference<AVLTree<?>> tree;
+        final String name;
+        long lastRotations;
+        long lastNanos = System.nanoTime();
+
+        Monitored(AVLTree<?> tree, String name) {
+            this.tree = new WeakReference<>(tree);
+            this.name = name;
+            this.lastRotations = tree.rotationCount();
+        }
+    }
+
+    static synchronized void monitor(AVLTree<?> tree, String name) {
+        if (!hookRegistered) {
+            FlightRecorder.addPeriodicEvent(StatisticsEvent.class, TreeEvents::emitStatistics);
+            hookRegistered = true;
+        }
+        monitored.add(new Monitored(tree, name));
+    }
+
+    // вызывается потоком JFR; дерево не потокобезопасно, поэтому значения приблизительные
+    private static synchronized void emitStatistics() {
+        long now = System.nanoTime();
+        for (Iterator<Monitored> iterator = monitored.iterator(); iterator.hasNext(); ) {
+            Monitored entry = iterator.next();
+            AVLTree<?> tree = entry.tree.get();
+            if (tree == null) {
+                iterator.remove();
+                continue;
+            }
+            long rotations = tree.rotationCount();
+            StatisticsEvent event = new StatisticsEvent();
+            event.name = entry.name;
+            event.size = tree.size();
+            event.height = tree.height();
+            event.rotations = rotations;
+            event.rotationRate = (rotations - entry.lastRotations) * 1e9 / Math.max(1, now - entry.lastNanos);
+            event.commit();
+            entry.lastRotations = rotations;
+            entry.lastNanos = now;
+        }
+    }
+}
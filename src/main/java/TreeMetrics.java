@@ -0,0 +1,96 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Счетчики работы AVLTree: повороты, сравнения ключей и длины путей спуска (гистограмма).
+ * Отношение сравнений к пройденным узлам отделяет стоимость компаратора от формы дерева.
+ * Включаются свойством -Davltree.metrics=true; без него дерево счетчики не создает и не трогает.
+ * Дерево обновляет счетчики без синхронизации, как и само дерево; снимок из другого потока
+ * может немного отставать.
+ */
+public final class TreeMetrics {
+    static final boolean ENABLED = Boolean.getBoolean("avltree.metrics");
+    // пути длиннее не бывают: высота АВЛ-дерева из 2^31 узлов меньше 64
+    private static final int MAX_PATH = 64;
+
+    private long rotations; // заполняется только в снимке
+    private long comparisons;
+    private long descents;
+    private long nodesVisited;
+    private final long[] pathLengths = new long[MAX_PATH + 1];
+
+    TreeMetrics() {
+    }
+
+    void comparison() {
+        comparisons++;
+    }
+
+    // спуск от корня, прошедший length узлов (по одному сравнению на узел)
+    void path(int length) {
+        descents++;
+        nodesVisited += length;
+        comparisons += length;
+        pathLengths[Math.min(length, MAX_PATH)]++;
+    }
+
+    // повороты дерево считает само: их читает и событие JFR (см. TreeEvents)
+    TreeMetrics snapshot(long rotations) {
+        TreeMetrics copy = new TreeMetrics();
+        copy.rotations = rotations;
+        copy.comparisons = comparisons;
+        copy.descents = descents;
+        copy.nodesVisited = nodesVisited;
+        System.arraycopy(pathLengths, 0, copy.pathLengths, 0, pathLengths.length);
+        return copy;
+    }
+
+    public long getRotations() {
+        return rotations;
+    }
+
+    public long getComparisons() {
+        return comparisons;
+    }
+
+    public long getDescents() {
+        return descents;
+    }
+
+    public long getNodesVisited() {
+        return nodesVisited;
+    }
+
+    public double getAveragePathLength() {
+        return descents == 0 ? 0 : (double) nodesVisited / descents;
+    }
+
+    /**
+     * Элемент i - число спусков длиной i узлов.
+     */
+    public long[] getPathLengthHistogram() {
+        return pathLengths.clone();
+    }
+
+    /**
+     * Плоское представление для экспорта в системы мониторинга.
+     */
+    public Map<String, Long> toMap() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("rotations", rotations);
+        result.put("comparisons", comparisons);
+        result.put("descents", descents);
+        result.put("nodesVisited", nodesVisited);
+        for (int i = 0; i <= MAX_PATH; i++) {
+            if (pathLengths[i] != 0) result.put("pathLength." + i, pathLengths[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "TreeMetrics{rotations=" + rotations + ", comparisons=" + comparisons + ", descents=" + descents
+                + ", nodesVisited=" + nodesVisited + ", pathLengths=" + Arrays.toString(pathLengths) + '}';
+    }
+}
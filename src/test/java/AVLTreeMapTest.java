@@ -0,0 +1,125 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class AVLTreeMapTest {
+
+    private void assertSameMap(NavigableMap<Integer, Integer> control, NavigableMap<Integer, Integer> map, int range) {
+        assertEquals(control.size(), map.size());
+        assertEquals(new ArrayList<>(control.entrySet()), new ArrayList<>(map.entrySet()));
+        assertEquals(new ArrayList<>(control.descendingMap().keySet()), new ArrayList<>(map.descendingMap().keySet()));
+        assertEquals(control, map);
+        assertEquals(control.firstEntry(), map.firstEntry());
+        assertEquals(control.lastEntry(), map.lastEntry());
+        for (int key = -1; key < range + 2; key++) {
+            assertEquals(control.get(key), map.get(key));
+            assertEquals(control.containsKey(key), map.containsKey(key));
+            assertEquals(control.lowerEntry(key), map.lowerEntry(key));
+            assertEquals(control.floorEntry(key), map.floorEntry(key));
+            assertEquals(control.ceilingEntry(key), map.ceilingEntry(key));
+            assertEquals(control.higherEntry(key), map.higherEntry(key));
+            assertEquals(control.floorKey(key), map.floorKey(key));
+            assertEquals(control.ceilingKey(key), map.ceilingKey(key));
+        }
+    }
+
+    @Test
+    void randomOperations() {
+        Random random = new Random();
+        AVLTreeMap<Integer, Integer> map = new AVLTreeMap<>();
+        NavigableMap<Integer, Integer> control = new TreeMap<>();
+        for (int i = 0; i < 50000; i++) {
+            int key = random.nextInt(1000);
+            int value = random.nextInt(10);
+            switch (random.nextInt(5)) {
+                case 0:
+                    assertEquals(control.put(key, value), map.put(key, value), "Неверный результат put " + key);
+                    break;
+                case 1:
+                    assertEquals(control.remove(key), map.remove(key), "Неверный результат remove " + key);
+                    break;
+                case 2:
+                    assertEquals(control.computeIfAbsent(key, k -> k % 7 == 0 ? null : k * 2),
+                            map.computeIfAbsent(key, k -> k % 7 == 0 ? null : k * 2), "Неверный результат computeIfAbsent " + key);
+                    break;
+                case 3: // сумма, пока не станет больше 20, затем запись удаляется
+                    assertEquals(control.merge(key, value, (a, b) -> a + b > 20 ? null : a + b),
+                            map.merge(key, value, (a, b) -> a + b > 20 ? null : a + b), "Неверный результат merge " + key);
+                    break;
+                default:
+                    assertEquals(control.pollFirstEntry(), map.pollFirstEntry());
+            }
+            if (i % 500 == 0) assertTrue(map.checkInvariant(), "Нарушена инвариантность дерева.");
+        }
+        assertSameMap(control, map, 1000);
+        assertThrows(NullPointerException.class, () -> map.put(null, 1));
+        assertThrows(UnsupportedOperationException.class, () -> map.keySet().add(5));
+    }
+
+    @Test
+    void views() {
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            AVLTreeMap<Integer, Integer> map = new AVLTreeMap<>();
+            NavigableMap<Integer, Integer> control = new TreeMap<>();
+            for (int j = 0; j < 100; j++) {
+                int key = random.nextInt(200);
+                map.put(key, j);
+                control.put(key, j);
+            }
+            int from = random.nextInt(100);
+            int to = from + 1 + random.nextInt(100);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            List<NavigableMap<Integer, Integer>> controls = Arrays.asList(
+                    control.subMap(from, fromInclusive, to, toInclusive),
+                    control.headMap(to, toInclusive),
+                    control.tailMap(from, fromInclusive),
+                    control.descendingMap().subMap(to, toInclusive, from, fromInclusive),
+                    control.descendingMap().headMap(from, fromInclusive).tailMap(to, toInclusive));
+            List<NavigableMap<Integer, Integer>> views = Arrays.asList(
+                    map.subMap(from, fromInclusive, to, toInclusive),
+                    map.headMap(to, toInclusive),
+                    map.tailMap(from, fromInclusive),
+                    map.descendingMap().subMap(to, toInclusive, from, fromInclusive),
+                    map.descendingMap().headMap(from, fromInclusive).tailMap(to, toInclusive));
+            for (int v = 0; v < views.size(); v++) assertSameMap(controls.get(v), views.get(v), 200);
+
+            // изменения через представление видны в отображении и наоборот
+            NavigableMap<Integer, Integer> view = views.get(0);
+            NavigableMap<Integer, Integer> controlView = controls.get(0);
+            int inside = fromInclusive ? from : from + 1;
+            if (inside < to || toInclusive && inside == to) {
+                assertEquals(controlView.merge(inside, 1000, Integer::sum), view.merge(inside, 1000, Integer::sum));
+            }
+            assertThrows(IllegalArgumentException.class, () -> view.put(to + 1, 0));
+            assertEquals(controlView.pollLastEntry(), view.pollLastEntry());
+            for (Iterator<Map.Entry<Integer, Integer>> iterator = view.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<Integer, Integer> entry = iterator.next();
+                if (entry.getKey() % 2 == 0) iterator.remove(); else entry.setValue(-entry.getValue());
+            }
+            for (Iterator<Map.Entry<Integer, Integer>> iterator = controlView.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<Integer, Integer> entry = iterator.next();
+                if (entry.getKey() % 2 == 0) iterator.remove(); else entry.setValue(-entry.getValue());
+            }
+            assertSameMap(control, map, 200);
+            assertTrue(map.checkInvariant(), "Нарушена инвариантность дерева.");
+            view.clear();
+            controlView.clear();
+            assertSameMap(control, map, 200);
+        }
+    }
+
+    @Test
+    void mappingFunctionModifiesMap() {
+        AVLTreeMap<Integer, Integer> map = new AVLTreeMap<>(Comparator.reverseOrder());
+        map.put(1, 1);
+        assertThrows(ConcurrentModificationException.class, () -> map.computeIfAbsent(2, k -> map.put(3, 3)));
+        assertEquals(Integer.valueOf(1), map.computeIfAbsent(1, k -> map.put(4, 4)));
+        assertEquals(Arrays.asList(3, 1), new ArrayList<>(map.keySet()));
+        assertThrows(ConcurrentModificationException.class, () -> map.merge(1, 5, (a, b) -> map.remove(3)));
+    }
+}
@@ -1,5 +1,12 @@
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import java.util.*;
 
@@ -744,4 +751,707 @@ class AVLTreeTest {
             assertTrue(des.lower(tree.getRootValue()) > des.higher(tree.getRootValue()));
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void rankAndSelect() {
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            AVLTree<Integer> tree = new AVLTree<>();
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = 0; j < 50; j++) {
+                int value = random.nextInt(200);
+                controlSet.add(value);
+                tree.add(value);
+            }
+            for (int j = 0; j < 10; j++) {
+                tree.remove(random.nextInt(200));
+            }
+            controlSet.retainAll(Arrays.asList(tree.toArray()));
+            int index = 0;
+            for (int element : controlSet) {
+                assertEquals(index, tree.rank(element), "Неверная позиция элемента " + element);
+                assertEquals(element, tree.select(index), "Неверный элемент на позиции " + index);
+                index++;
+            }
+            int absent = random.nextInt(200);
+            assertEquals(controlSet.headSet(absent, false).size(), tree.rank(absent));
+            assertThrows(IndexOutOfBoundsException.class, () -> tree.select(tree.size()));
+            assertThrows(IndexOutOfBoundsException.class, () -> tree.select(-1));
+        }
+    }
+
+    @Test
+    void subSetSize() {
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            NavigableSet<Integer> tree = new AVLTree<>();
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = 0; j < 50; j++) {
+                int value = random.nextInt(200);
+                controlSet.add(value);
+                tree.add(value);
+            }
+            int from = random.nextInt(100);
+            int to = from + 1 + random.nextInt(100);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+
+            assertEquals(controlSet.subSet(from, fromInclusive, to, toInclusive).size(),
+                    tree.subSet(from, fromInclusive, to, toInclusive).size());
+            assertEquals(controlSet.headSet(to, toInclusive).size(), tree.headSet(to, toInclusive).size());
+            assertEquals(controlSet.tailSet(from, fromInclusive).size(), tree.tailSet(from, fromInclusive).size());
+            assertEquals(controlSet.descendingSet().subSet(to, toInclusive, from, fromInclusive).size(),
+                    tree.descendingSet().subSet(to, toInclusive, from, fromInclusive).size());
+            assertEquals(controlSet.descendingSet().headSet(from, fromInclusive).size(),
+                    tree.descendingSet().headSet(from, fromInclusive).size());
+            assertEquals(controlSet.subSet(from, fromInclusive, to, toInclusive).isEmpty(),
+                    tree.subSet(from, fromInclusive, to, toInclusive).isEmpty());
+        }
+    }
+
+    @Test
+    void randomAddRemove() {
+        Random random = new Random();
+        AVLTree<Integer> tree = new AVLTree<>();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) {
+            int value = random.nextInt(500);
+            if (random.nextBoolean())
+                assertEquals(controlSet.add(value), tree.add(value), "Неверный результат добавления " + value);
+            else
+                assertEquals(controlSet.remove(value), tree.remove(value), "Неверный результат удаления " + value);
+            if (i % 100 == 0) assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        }
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertEquals(controlSet.size(), tree.size());
+        assertArrayEquals(controlSet.toArray(), tree.toArray());
+    }
+
+    @Test
+    void bulkLoad() {
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            int count = random.nextInt(300);
+            for (int j = 0; j < count; j++) {
+                controlSet.add(random.nextInt(1000));
+            }
+            AVLTree<Integer> fromSet = new AVLTree<>(controlSet);
+            assertTrue(fromSet.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertEquals(controlSet.size(), fromSet.size());
+            assertArrayEquals(controlSet.toArray(), fromSet.toArray());
+
+            AVLTree<Integer> fromArray = new AVLTree<>();
+            fromArray.addAllSorted(controlSet.toArray(new Integer[0]));
+            assertTrue(fromArray.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertArrayEquals(controlSet.toArray(), fromArray.toArray());
+
+            AVLTree<Integer> fromIterator = new AVLTree<>();
+            fromIterator.addAllSorted(controlSet.iterator());
+            assertTrue(fromIterator.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertArrayEquals(controlSet.toArray(), fromIterator.toArray());
+
+            AVLTree<Integer> copy = new AVLTree<>();
+            copy.addAll(fromSet);
+            assertArrayEquals(controlSet.toArray(), copy.toArray());
+        }
+        AVLTree<Integer> tree = new AVLTree<>();
+        assertThrows(IllegalArgumentException.class, () -> tree.addAllSorted(new Integer[]{1, 3, 2}));
+        assertThrows(IllegalArgumentException.class, () -> tree.addAllSorted(new Integer[]{1, 1}));
+        assertTrue(tree.isEmpty());
+
+        tree.add(5);
+        assertTrue(tree.addAllSorted(new Integer[]{1, 5, 7}));
+        assertArrayEquals(new Object[]{1, 5, 7}, tree.toArray());
+        assertTrue(tree.checkInvariant());
+
+        // потоковое построение: каждая длина дает свою форму недостроенного стека
+        for (int count = 0; count < 520; count++) {
+            AVLTree<Integer> streamed = new AVLTree<>();
+            List<Integer> values = new ArrayList<>();
+            for (int j = 0; j < count; j++) values.add(j * 2);
+            assertEquals(count > 0, streamed.addAllSorted(values.iterator()));
+            assertTrue(streamed.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertEquals(values, new ArrayList<>(streamed));
+        }
+        assertThrows(IllegalArgumentException.class, () -> tree.addAllSorted(Arrays.asList(8, 10, 9).iterator()));
+        assertArrayEquals(new Object[]{1, 5, 7}, tree.toArray());
+        assertTrue(tree.addAllSorted(Arrays.asList(0, 5, 6, 9).iterator()));
+        assertFalse(tree.addAllSorted(Arrays.asList(1, 9).iterator()));
+        assertArrayEquals(new Object[]{0, 1, 5, 6, 7, 9}, tree.toArray());
+        assertTrue(tree.checkInvariant());
+    }
+
+    @Test
+    void setAlgebra() {
+        Random random = new Random();
+        for (int i = 0; i < 200; i++) {
+            NavigableSet<Integer> first = new TreeSet<>();
+            NavigableSet<Integer> second = new TreeSet<>();
+            int firstCount = random.nextInt(200);
+            int secondCount = random.nextInt(200);
+            for (int j = 0; j < firstCount; j++) first.add(random.nextInt(300));
+            for (int j = 0; j < secondCount; j++) second.add(random.nextInt(300));
+            AVLTree<Integer> firstTree = new AVLTree<>();
+            AVLTree<Integer> secondTree = new AVLTree<>();
+            for (int element : first) firstTree.add(element); // не через addAll, чтобы форма деревьев была случайной
+            for (int element : second) secondTree.add(element);
+
+            NavigableSet<Integer> expectedUnion = new TreeSet<>(first);
+            expectedUnion.addAll(second);
+            NavigableSet<Integer> expectedIntersection = new TreeSet<>(first);
+            expectedIntersection.retainAll(second);
+            NavigableSet<Integer> expectedDifference = new TreeSet<>(first);
+            expectedDifference.removeAll(second);
+
+            AVLTree<Integer> union = firstTree.union(secondTree);
+            AVLTree<Integer> intersection = firstTree.intersect(secondTree);
+            AVLTree<Integer> difference = firstTree.difference(secondTree);
+            for (AVLTree<Integer> result : Arrays.asList(union, intersection, difference)) {
+                assertTrue(result.checkInvariant(), "Нарушена инвариантность дерева.");
+                assertEquals(result.toArray().length, result.size());
+            }
+            assertArrayEquals(expectedUnion.toArray(), union.toArray());
+            assertArrayEquals(expectedIntersection.toArray(), intersection.toArray());
+            assertArrayEquals(expectedDifference.toArray(), difference.toArray());
+            assertArrayEquals(first.toArray(), firstTree.toArray(), "Исходное дерево изменилось.");
+            assertArrayEquals(second.toArray(), secondTree.toArray(), "Исходное дерево изменилось.");
+
+            assertEquals(expectedUnion.size() > first.size(), firstTree.addAll(secondTree));
+            assertArrayEquals(expectedUnion.toArray(), firstTree.toArray());
+            assertTrue(firstTree.checkInvariant());
+            assertEquals(expectedUnion.size() > expectedIntersection.size(), firstTree.retainAll(intersection));
+            assertArrayEquals(expectedIntersection.toArray(), firstTree.toArray());
+            assertTrue(firstTree.checkInvariant());
+            union.removeAll(secondTree);
+            assertArrayEquals(expectedDifference.toArray(), union.toArray());
+            assertTrue(union.checkInvariant());
+            assertArrayEquals(second.toArray(), secondTree.toArray(), "Аргумент операции изменился.");
+        }
+    }
+
+    @Test
+    void setAlgebraOfUnequalSizes() {
+        Random random = new Random();
+        Comparator<Integer> reverse = Comparator.reverseOrder();
+        AVLTree<Integer> large = new AVLTree<>(reverse, Integer::longValue, Long::sum);
+        NavigableSet<Integer> largeControl = new TreeSet<>(reverse);
+        for (int i = 0; i < 100000; i++) {
+            int value = random.nextInt(200000);
+            large.add(value);
+            largeControl.add(value);
+        }
+        for (int smallCount : new int[]{0, 1, 10, 1000, 100000}) {
+            AVLTree<Integer> small = new AVLTree<>(reverse, Integer::longValue, Long::sum);
+            NavigableSet<Integer> smallControl = new TreeSet<>(reverse);
+            for (int i = 0; i < smallCount; i++) {
+                int value = random.nextInt(200000);
+                small.add(value);
+                smallControl.add(value);
+            }
+            NavigableSet<Integer> expected = new TreeSet<>(largeControl);
+            expected.retainAll(smallControl);
+            for (AVLTree<Integer> intersection : Arrays.asList(large.intersect(small), small.intersect(large))) {
+                assertTrue(intersection.checkInvariant(), "Нарушена инвариантность дерева.");
+                assertArrayEquals(expected.toArray(), intersection.toArray());
+                assertEquals(expected.stream().mapToLong(Integer::longValue).sum(),
+                        expected.isEmpty() ? 0L : (long) intersection.aggregate(), "Неверная свертка результата.");
+            }
+            expected = new TreeSet<>(largeControl);
+            expected.addAll(smallControl);
+            for (AVLTree<Integer> union : Arrays.asList(large.union(small), small.union(large))) {
+                assertTrue(union.checkInvariant(), "Нарушена инвариантность дерева.");
+                assertArrayEquals(expected.toArray(), union.toArray());
+                assertSame(reverse, union.comparator());
+            }
+            expected = new TreeSet<>(largeControl);
+            expected.removeAll(smallControl);
+            assertArrayEquals(expected.toArray(), large.difference(small).toArray());
+            expected = new TreeSet<>(smallControl);
+            expected.removeAll(largeControl);
+            AVLTree<Integer> difference = small.difference(large);
+            assertTrue(difference.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertArrayEquals(expected.toArray(), difference.toArray());
+            assertArrayEquals(smallControl.toArray(), small.toArray(), "Исходное дерево изменилось.");
+        }
+        assertArrayEquals(largeControl.toArray(), large.toArray(), "Исходное дерево изменилось.");
+        assertTrue(large.checkInvariant(), "Нарушена инвариантность дерева.");
+    }
+
+    @Test
+    void comparatorOrder() {
+        assertNull(new AVLTree<Integer>().comparator(), "Естественный порядок задается компаратором null.");
+        Random random = new Random();
+        Comparator<Integer> reverse = Comparator.reverseOrder();
+        AVLTree<Integer> tree = new AVLTree<>(reverse);
+        NavigableSet<Integer> controlSet = new TreeSet<>(reverse);
+        for (int i = 0; i < 5000; i++) {
+            int value = random.nextInt(300);
+            if (random.nextBoolean())
+                assertEquals(controlSet.add(value), tree.add(value));
+            else
+                assertEquals(controlSet.remove(value), tree.remove(value));
+        }
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertSame(reverse, tree.comparator());
+        assertArrayEquals(controlSet.toArray(), tree.toArray());
+        for (int key = -1; key < 302; key++) {
+            assertEquals(controlSet.contains(key), tree.contains(key));
+            assertEquals(controlSet.lower(key), tree.lower(key));
+            assertEquals(controlSet.floor(key), tree.floor(key));
+            assertEquals(controlSet.ceiling(key), tree.ceiling(key));
+            assertEquals(controlSet.higher(key), tree.higher(key));
+        }
+        assertEquals(controlSet.subSet(250, true, 100, false).size(), tree.subSet(250, true, 100, false).size());
+        assertArrayEquals(controlSet.headSet(150).toArray(), tree.headSet(150).toArray());
+        assertEquals(controlSet.headSet(150).first(), tree.headSet(150).first());
+
+        AVLTree<Integer> copy = new AVLTree<>(controlSet);
+        assertSame(reverse, copy.comparator());
+        assertArrayEquals(controlSet.toArray(), copy.toArray());
+        assertArrayEquals(controlSet.toArray(), tree.union(copy).toArray());
+
+        AVLTree<String> strings = new AVLTree<>(String.CASE_INSENSITIVE_ORDER);
+        assertTrue(strings.add("Avl"));
+        assertFalse(strings.add("AVL"), "Строки, равные по компаратору, не должны добавляться дважды.");
+        assertTrue(strings.contains("avl"));
+        assertTrue(strings.remove("aVl"));
+        assertTrue(strings.isEmpty());
+    }
+
+    @Test
+    void iteratorRemoveAndFailFast() {
+        Random random = new Random();
+        AVLTree<Integer> tree = new AVLTree<>();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 2000; i++) {
+            int value = random.nextInt(5000);
+            tree.add(value);
+            controlSet.add(value);
+        }
+        Iterator<Integer> iterator = tree.iterator();
+        Iterator<Integer> controlIterator = controlSet.iterator();
+        while (controlIterator.hasNext()) {
+            assertTrue(iterator.hasNext());
+            assertEquals(controlIterator.next(), iterator.next(), "Итератор пропустил элемент после удаления.");
+            if (random.nextInt(3) == 0) {
+                iterator.remove();
+                controlIterator.remove();
+            }
+        }
+        assertFalse(iterator.hasNext());
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertArrayEquals(controlSet.toArray(), tree.toArray());
+
+        NavigableSet<Integer> subSet = tree.subSet(1000, true, 4000, false).descendingSet();
+        NavigableSet<Integer> controlSubSet = controlSet.subSet(1000, true, 4000, false).descendingSet();
+        iterator = subSet.iterator();
+        controlIterator = controlSubSet.iterator();
+        while (controlIterator.hasNext()) {
+            assertEquals(controlIterator.next(), iterator.next());
+            if (random.nextBoolean()) {
+                iterator.remove();
+                controlIterator.remove();
+            }
+        }
+        assertFalse(iterator.hasNext());
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertArrayEquals(controlSet.toArray(), tree.toArray());
+
+        Iterator<Integer> failFast = tree.iterator();
+        failFast.next();
+        tree.add(-1);
+        assertThrows(ConcurrentModificationException.class, failFast::next,
+                "Итератор должен замечать изменение дерева в обход него.");
+        Iterator<Integer> subSetFailFast = tree.headSet(3000).iterator();
+        subSetFailFast.next();
+        tree.remove(-1);
+        assertThrows(ConcurrentModificationException.class, subSetFailFast::remove);
+
+        while (!controlSet.isEmpty()) {
+            assertEquals(controlSet.pollFirst(), tree.pollFirst());
+            assertEquals(controlSet.pollLast(), tree.pollLast());
+        }
+        assertNull(tree.pollFirst());
+        assertTrue(tree.isEmpty());
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+    }
+
+    @Test
+    void spliterator() {
+        Random random = new Random();
+        AVLTree<Integer> tree = new AVLTree<>();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 100000; i++) {
+            int value = random.nextInt(1000000);
+            tree.add(value);
+            controlSet.add(value);
+        }
+        Spliterator<Integer> spliterator = tree.spliterator();
+        assertTrue(spliterator.hasCharacteristics(Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.SUBSIZED));
+        assertNull(spliterator.getComparator());
+        assertEquals(tree.size(), spliterator.getExactSizeIfKnown());
+        Spliterator<Integer> prefix = spliterator.trySplit();
+        assertEquals(tree.size() / 2, prefix.getExactSizeIfKnown(), "Части должны быть равными.");
+        assertEquals(tree.size() - tree.size() / 2, spliterator.getExactSizeIfKnown());
+        List<Integer> collected = new ArrayList<>();
+        prefix.forEachRemaining(collected::add);
+        while (spliterator.tryAdvance(collected::add)) ;
+        assertArrayEquals(controlSet.toArray(), collected.toArray());
+
+        assertEquals(controlSet.stream().mapToLong(Integer::longValue).sum(),
+                tree.parallelStream().mapToLong(Integer::longValue).sum());
+        assertArrayEquals(controlSet.toArray(), tree.parallelStream().toArray(), "Параллельный поток нарушил порядок.");
+        for (int i = 0; i < 20; i++) {
+            int from = random.nextInt(1000000);
+            int to = from + 1 + random.nextInt(100000);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            NavigableSet<Integer> subSet = tree.subSet(from, fromInclusive, to, toInclusive);
+            NavigableSet<Integer> controlSubSet = controlSet.subSet(from, fromInclusive, to, toInclusive);
+            assertEquals(controlSubSet.size(), subSet.spliterator().getExactSizeIfKnown());
+            assertArrayEquals(controlSubSet.toArray(), subSet.parallelStream().toArray());
+            assertArrayEquals(controlSubSet.descendingSet().toArray(), subSet.descendingSet().parallelStream().toArray());
+            assertEquals(Comparator.reverseOrder(), subSet.descendingSet().spliterator().getComparator());
+        }
+    }
+
+    @Test
+    void rangeAggregate() {
+        Random random = new Random();
+        AVLTree<Integer> sums = new AVLTree<>(null, Integer::longValue, Long::sum);
+        AVLTree<Integer> maxima = new AVLTree<>(Comparator.reverseOrder(), value -> value, Math::max);
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) {
+            int value = random.nextInt(3000);
+            if (random.nextInt(3) > 0) {
+                controlSet.add(value);
+                sums.add(value);
+                maxima.add(value);
+            } else {
+                controlSet.remove(value);
+                sums.remove(value);
+                maxima.remove(value);
+            }
+        }
+        Iterator<Integer> iterator = sums.iterator();
+        while (iterator.hasNext()) {
+            int value = iterator.next();
+            if (value % 7 == 0) {
+                iterator.remove();
+                controlSet.remove(value);
+                maxima.remove(value);
+            }
+        }
+        assertTrue(sums.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertEquals(controlSet.stream().mapToLong(Integer::longValue).sum(), (long) sums.aggregate());
+        for (int i = 0; i < 200; i++) {
+            int from = random.nextInt(3000);
+            int to = from + random.nextInt(1000) + 1;
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            NavigableSet<Integer> controlSubSet = controlSet.subSet(from, fromInclusive, to, toInclusive);
+            long expected = controlSubSet.stream().mapToLong(Integer::longValue).sum();
+            Long actual = sums.subSet(from, fromInclusive, to, toInclusive).aggregate();
+            assertEquals(expected, actual == null ? 0 : actual, "Неверная сумма на диапазоне.");
+            assertEquals(controlSubSet.isEmpty() ? null : controlSubSet.last(),
+                    maxima.subSet(to, toInclusive, from, fromInclusive).aggregate(), "Неверный максимум на диапазоне.");
+        }
+        assertEquals(controlSet.headSet(1500).stream().mapToLong(Integer::longValue).sum(),
+                (long) sums.headSet(1500).aggregate());
+
+        // операция не обязана быть коммутативной: свертка идет в порядке ключей
+        AVLTree<Integer> concatenation = new AVLTree<>(null, String::valueOf, (first, second) -> first + "," + second);
+        for (int i = 20; i > 0; i--) concatenation.add(i);
+        assertEquals("5,6,7,8", concatenation.subSet(5, true, 8, true).aggregate());
+        assertEquals("1,2,3", concatenation.headSet(3, true).aggregate());
+        assertNull(concatenation.subSet(30, true, 40, true).aggregate());
+        assertThrows(UnsupportedOperationException.class, () -> new AVLTree<Integer>().aggregate());
+    }
+
+    @Test
+    void navigation() {
+        Random random = new Random();
+        AVLTree<Integer> tree = new AVLTree<>();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int key = -1; key < 3; key++) {
+            assertNull(tree.lower(key));
+            assertNull(tree.ceiling(key));
+        }
+        for (int i = 0; i < 1000; i++) {
+            int value = random.nextInt(5000) * 2; // только четные, чтобы нечетные ключи попадали между элементами
+            tree.add(value);
+            controlSet.add(value);
+        }
+        for (int key = -2; key < 10002; key++) {
+            assertEquals(controlSet.lower(key), tree.lower(key), "Неверный lower(" + key + ")");
+            assertEquals(controlSet.floor(key), tree.floor(key), "Неверный floor(" + key + ")");
+            assertEquals(controlSet.ceiling(key), tree.ceiling(key), "Неверный ceiling(" + key + ")");
+            assertEquals(controlSet.higher(key), tree.higher(key), "Неверный higher(" + key + ")");
+        }
+    }
+
+    @Test
+    void cursor() {
+        Random random = new Random();
+        AVLTree<Integer> tree = new AVLTree<>();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 3000; i++) {
+            int value = random.nextInt(20000);
+            tree.add(value);
+            controlSet.add(value);
+        }
+        AVLTree<Integer>.Cursor cursor = tree.cursor();
+        assertNull(cursor.get());
+        assertEquals(controlSet.first(), cursor.next());
+        int key = 0;
+        for (int i = 0; i < 5000; i++) {
+            key = Math.max(-10, Math.min(20010, key + random.nextInt(200) - 90));
+            assertEquals(controlSet.ceiling(key), cursor.seekNear(key), "Неверный seekNear(" + key + ")");
+            if (cursor.get() == null) continue;
+            Integer current = cursor.get();
+            if (random.nextBoolean())
+                assertEquals(controlSet.higher(current), cursor.next());
+            else
+                assertEquals(controlSet.lower(current), cursor.prev());
+        }
+        assertEquals(controlSet.ceiling(500), cursor.seek(500));
+        tree.remove(controlSet.ceiling(500));
+        controlSet.remove(controlSet.ceiling(500));
+        assertEquals(controlSet.ceiling(500), cursor.next(), "Курсор должен пережить удаление своего элемента.");
+
+        for (int i = 0; i < 20; i++) {
+            int from = random.nextInt(20000);
+            int to = from + 1 + random.nextInt(3000);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            NavigableSet<Integer> controlSubSet = controlSet.subSet(from, fromInclusive, to, toInclusive);
+            if (random.nextBoolean()) controlSubSet = controlSubSet.descendingSet();
+            AVLTree<Integer>.SubSet subSet = tree.subSet(from, fromInclusive, to, toInclusive);
+            AVLTree<Integer>.Cursor subSetCursor =
+                    controlSubSet.comparator() == null ? subSet.cursor() : subSet.descendingSet().cursor();
+            List<Integer> forward = new ArrayList<>();
+            for (Integer value = subSetCursor.next(); value != null; value = subSetCursor.next()) forward.add(value);
+            assertArrayEquals(controlSubSet.toArray(), forward.toArray(), "Курсор вышел за границы диапазона.");
+            List<Integer> backward = new ArrayList<>();
+            for (Integer value = subSetCursor.prev(); value != null; value = subSetCursor.prev()) backward.add(0, value);
+            assertArrayEquals(controlSubSet.toArray(), backward.toArray());
+            for (int j = 0; j < 50; j++) {
+                int target = from - 100 + random.nextInt(to - from + 200);
+                assertEquals(controlSubSet.ceiling(target), subSetCursor.seekNear(target), "Неверный seekNear(" + target + ")");
+            }
+        }
+    }
+
+    @Test
+    void subSetBounds() {
+        Random random = new Random();
+        AVLTree<Integer> tree = new AVLTree<>();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 500; i++) {
+            int value = random.nextInt(2000);
+            tree.add(value);
+            controlSet.add(value);
+        }
+        for (int i = 0; i < 300; i++) {
+            int from = random.nextInt(2000);
+            int to = from + 1 + random.nextInt(30);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            NavigableSet<Integer> subSet = tree.subSet(from, fromInclusive, to, toInclusive);
+            NavigableSet<Integer> controlSubSet = controlSet.subSet(from, fromInclusive, to, toInclusive);
+            if (random.nextBoolean()) {
+                subSet = subSet.descendingSet();
+                controlSubSet = controlSubSet.descendingSet();
+            }
+            for (int j = 0; j < 3; j++) {
+                assertEquals(controlSubSet.isEmpty(), subSet.isEmpty());
+                if (controlSubSet.isEmpty()) {
+                    assertThrows(NoSuchElementException.class, subSet::first);
+                    assertThrows(NoSuchElementException.class, subSet::last);
+                } else {
+                    assertEquals(controlSubSet.first(), subSet.first());
+                    assertEquals(controlSubSet.last(), subSet.last());
+                }
+                // закэшированные края должны обновляться после изменения дерева в обход представления
+                int value = from + random.nextInt(to - from + 1);
+                assertEquals(controlSet.add(value), tree.add(value));
+                assertEquals(controlSubSet.pollLast(), subSet.pollLast(), "pollLast вышел за границы диапазона.");
+                assertEquals(controlSubSet.pollFirst(), subSet.pollFirst());
+            }
+        }
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertArrayEquals(controlSet.toArray(), tree.toArray());
+    }
+
+    @Test
+    void subSetNavigation() {
+        Random random = new Random();
+        AVLTree<Integer> tree = new AVLTree<>();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 300; i++) {
+            int value = random.nextInt(500) * 2; // нечетные ключи и границы попадают между элементами
+            tree.add(value);
+            controlSet.add(value);
+        }
+        for (int i = 0; i < 400; i++) {
+            int from = random.nextInt(1000);
+            int to = i % 4 == 0 ? from : from + random.nextInt(40); // каждое четвертое - с равными границами
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            NavigableSet<Integer> subSet = tree.subSet(from, fromInclusive, to, toInclusive);
+            NavigableSet<Integer> controlSubSet = controlSet.subSet(from, fromInclusive, to, toInclusive);
+            // убывающее представление убывающего представления снова возрастает
+            for (int turns = random.nextInt(3); turns > 0; turns--) {
+                subSet = subSet.descendingSet();
+                controlSubSet = controlSubSet.descendingSet();
+            }
+            assertArrayEquals(controlSubSet.toArray(), subSet.toArray(), "Неверное содержимое [" + from + ", " + to + "]");
+            assertEquals(controlSubSet.size(), subSet.size());
+            // ключи вокруг и за границами: ответ не должен выходить за диапазон, даже если граница - не элемент
+            for (int key = from - 3; key <= to + 3; key++) {
+                assertEquals(controlSubSet.lower(key), subSet.lower(key), "Неверный lower(" + key + ") в [" + from + ", " + to + "]");
+                assertEquals(controlSubSet.floor(key), subSet.floor(key), "Неверный floor(" + key + ") в [" + from + ", " + to + "]");
+                assertEquals(controlSubSet.ceiling(key), subSet.ceiling(key), "Неверный ceiling(" + key + ") в [" + from + ", " + to + "]");
+                assertEquals(controlSubSet.higher(key), subSet.higher(key), "Неверный higher(" + key + ") в [" + from + ", " + to + "]");
+            }
+        }
+        NavigableSet<Integer> empty = tree.subSet(11, false, 11, true);
+        assertTrue(empty.isEmpty(), "Полуоткрытый диапазон из одной точки должен быть пустым.");
+        assertEquals(0, empty.size());
+        assertThrows(IllegalArgumentException.class, () -> tree.subSet(10, true, 9, true));
+    }
+
+    @Test
+    void removeRange() {
+        Random random = new Random();
+        for (int i = 0; i < 200; i++) {
+            AVLTree<Integer> tree = new AVLTree<>(null, Integer::longValue, Long::sum);
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = random.nextInt(500); j > 0; j--) {
+                int value = random.nextInt(1000);
+                tree.add(value);
+                controlSet.add(value);
+            }
+            int from = random.nextInt(1000);
+            int to = from + random.nextInt(500);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            Integer low = random.nextInt(5) == 0 ? null : from;
+            Integer high = random.nextInt(5) == 0 ? null : to;
+            int expected;
+            if (low == null && high == null) {
+                expected = controlSet.size();
+                controlSet.clear();
+            } else {
+                NavigableSet<Integer> range = low == null ? controlSet.headSet(high, toInclusive)
+                        : high == null ? controlSet.tailSet(low, fromInclusive)
+                        : from == to && !(fromInclusive && toInclusive) ? new TreeSet<>()
+                        : controlSet.subSet(low, fromInclusive, high, toInclusive);
+                expected = range.size();
+                range.clear();
+            }
+            assertEquals(expected, tree.removeRange(low, fromInclusive, high, toInclusive), "Неверное число удаленных элементов.");
+            assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertEquals(controlSet.size(), tree.size());
+            assertArrayEquals(controlSet.toArray(), tree.toArray());
+            if (!controlSet.isEmpty()) {
+                int cutoff = random.nextInt(1000);
+                controlSet.headSet(cutoff).clear();
+                tree.headSet(cutoff).clear();
+                assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+                assertArrayEquals(controlSet.toArray(), tree.toArray());
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> new AVLTree<Integer>().removeRange(2, true, 1, true));
+    }
+
+    @Test
+    void batchAddAll() {
+        Random random = new Random();
+        for (int i = 0; i < 40; i++) {
+            AVLTree<Integer> tree = new AVLTree<>(null, Integer::longValue, Long::sum);
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = random.nextInt(20000); j > 0; j--) {
+                int value = random.nextInt(100000);
+                tree.add(value);
+                controlSet.add(value);
+            }
+            // от небольших пакетов (объединение через join) до пакетов больше дерева (слияние и перестройка)
+            List<Integer> batch = new ArrayList<>();
+            for (int j = random.nextInt(i % 2 == 0 ? 1000 : 40000); j > 0; j--) batch.add(random.nextInt(100000));
+            assertEquals(controlSet.addAll(batch), tree.addAll(batch));
+            assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertEquals(controlSet.size(), tree.size());
+            assertArrayEquals(controlSet.toArray(), tree.toArray());
+            assertEquals(controlSet.stream().mapToLong(Integer::longValue).sum(), (long) tree.aggregate());
+        }
+        AVLTree<Integer> tree = new AVLTree<>();
+        assertThrows(NullPointerException.class, () -> tree.addAll(Collections.nCopies(1000, null)));
+    }
+
+    @Test
+    void writeAndRead() throws IOException {
+        Random random = new Random();
+        Path file = Files.createTempFile("avltree", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            AVLTree<Integer> numbers = new AVLTree<>();
+            for (int i = random.nextInt(100000); i > 0; i--) numbers.add(random.nextInt());
+            AVLTree<String> strings = new AVLTree<>(Comparator.reverseOrder());
+            for (int i = random.nextInt(10000); i > 0; i--) strings.add("ключ-" + random.nextInt(1000000));
+            strings.addAll(Arrays.asList("", "\u00e9t\u00e9", "\u20ac\uffff", "\ud83d\ude00-\ud83c\udf33", "\u007f\u0080\u07ff\u0800"));
+            // два образа подряд: чтение должно остановиться ровно на конце первого
+            numbers.writeTo(channel, KeyCodec.INTEGER);
+            strings.writeTo(channel, KeyCodec.STRING);
+
+            channel.position(0);
+            AVLTree<Integer> mappedNumbers = AVLTree.readFrom(channel, KeyCodec.INTEGER, null);
+            AVLTree<String> mappedStrings = AVLTree.readFrom(channel, KeyCodec.STRING, Comparator.reverseOrder());
+            assertEquals(channel.size(), channel.position());
+            assertTrue(mappedNumbers.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertArrayEquals(numbers.toArray(), mappedNumbers.toArray());
+            assertTrue(mappedStrings.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertArrayEquals(strings.toArray(), mappedStrings.toArray());
+
+            channel.position(0);
+            AVLTree<Integer> streamedNumbers = AVLTree.readFrom((ReadableByteChannel) channel, KeyCodec.INTEGER, null);
+            assertArrayEquals(numbers.toArray(), streamedNumbers.toArray());
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            AVLTree.readFrom(buffer, KeyCodec.INTEGER, null);
+            AVLTree<String> bufferedStrings = AVLTree.readFrom(buffer, KeyCodec.STRING, Comparator.reverseOrder());
+            assertArrayEquals(strings.toArray(), bufferedStrings.toArray());
+            assertFalse(buffer.hasRemaining());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void readCorrupted() throws IOException {
+        Path file = Files.createTempFile("avltree", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            AVLTree<Integer> tree = new AVLTree<>();
+            for (int i = 0; i < 1000; i++) tree.add(i * 3);
+            tree.writeTo(channel, KeyCodec.INTEGER);
+            channel.write(ByteBuffer.wrap(new byte[]{0x7f}), channel.size() - 2);
+            channel.position(0);
+            assertThrows(IOException.class, () -> AVLTree.readFrom(channel, KeyCodec.INTEGER, null));
+            channel.truncate(channel.size() - 1);
+            channel.position(0);
+            assertThrows(IOException.class, () -> AVLTree.readFrom(channel, KeyCodec.INTEGER, null));
+            channel.position(0);
+            assertThrows(IOException.class, () -> AVLTree.readFrom((ReadableByteChannel) channel, KeyCodec.INTEGER, null));
+
+            // целый образ, но прочитанный с другим порядком
+            channel.truncate(0);
+            tree.writeTo(channel, KeyCodec.INTEGER);
+            channel.position(0);
+            assertThrows(IOException.class, () -> AVLTree.readFrom(channel, KeyCodec.INTEGER, Comparator.reverseOrder()));
+            channel.position(0);
+            assertEquals(1000, AVLTree.readFrom(channel, KeyCodec.INTEGER, null).size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ArenaAVLTreeTest {
+
+    private void randomOperations(ArenaAVLTree<Integer> tree) {
+        Random random = new Random();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) {
+            int value = random.nextInt(500);
+            if (random.nextBoolean())
+                assertEquals(controlSet.add(value), tree.add(value), "Неверный результат добавления " + value);
+            else
+                assertEquals(controlSet.remove(value), tree.remove(value), "Неверный результат удаления " + value);
+            if (i % 100 == 0) assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        }
+        assertEquals(controlSet.size(), tree.size());
+        assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+        assertEquals(new ArrayList<>(controlSet.descendingSet()), new ArrayList<>(tree.descendingSet()));
+        for (int key = -1; key < 502; key++) {
+            assertEquals(controlSet.lower(key), tree.lower(key));
+            assertEquals(controlSet.floor(key), tree.floor(key));
+            assertEquals(controlSet.ceiling(key), tree.ceiling(key));
+            assertEquals(controlSet.higher(key), tree.higher(key));
+        }
+        assertTrue(tree.capacity() < 1024, "Освобожденные ячейки не переиспользуются.");
+    }
+
+    @Test
+    void heapArena() {
+        randomOperations(new ArenaAVLTree<>());
+    }
+
+    @Test
+    void offHeapArena() {
+        ArenaAVLTree<Integer> tree = new ArenaAVLTree<>(4, true);
+        assertTrue(tree.isOffHeap());
+        randomOperations(tree);
+    }
+
+    @Test
+    void views() {
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            NavigableSet<Integer> tree = new ArenaAVLTree<>();
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = 0; j < 50; j++) {
+                int value = random.nextInt(200);
+                controlSet.add(value);
+                tree.add(value);
+            }
+            int from = random.nextInt(100);
+            int to = from + 1 + random.nextInt(100);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            List<NavigableSet<Integer>> controls = Arrays.asList(
+                    controlSet.subSet(from, fromInclusive, to, toInclusive),
+                    controlSet.headSet(to, toInclusive),
+                    controlSet.tailSet(from, fromInclusive),
+                    controlSet.descendingSet().subSet(to, toInclusive, from, fromInclusive),
+                    controlSet.descendingSet().headSet(from, fromInclusive).tailSet(to, toInclusive));
+            List<NavigableSet<Integer>> views = Arrays.asList(
+                    tree.subSet(from, fromInclusive, to, toInclusive),
+                    tree.headSet(to, toInclusive),
+                    tree.tailSet(from, fromInclusive),
+                    tree.descendingSet().subSet(to, toInclusive, from, fromInclusive),
+                    tree.descendingSet().headSet(from, fromInclusive).tailSet(to, toInclusive));
+            for (int v = 0; v < views.size(); v++) {
+                NavigableSet<Integer> control = controls.get(v);
+                NavigableSet<Integer> view = views.get(v);
+                assertEquals(new ArrayList<>(control), new ArrayList<>(view));
+                assertEquals(new ArrayList<>(control.descendingSet()), new ArrayList<>(view.descendingSet()));
+                assertEquals(control.size(), view.size());
+                for (int key = -1; key < 202; key++) {
+                    assertEquals(control.contains(key), view.contains(key));
+                    assertEquals(control.lower(key), view.lower(key));
+                    assertEquals(control.floor(key), view.floor(key));
+                    assertEquals(control.ceiling(key), view.ceiling(key));
+                    assertEquals(control.higher(key), view.higher(key));
+                }
+                if (!control.isEmpty()) {
+                    assertEquals(control.first(), view.first());
+                    assertEquals(control.last(), view.last());
+                }
+            }
+            NavigableSet<Integer> view = views.get(3);
+            assertEquals(controls.get(3).pollFirst(), view.pollFirst());
+            view.removeIf(element -> element % 3 == 0);
+            controls.get(3).removeIf(element -> element % 3 == 0);
+            assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+            assertThrows(IllegalArgumentException.class, () -> views.get(0).add(from - 1));
+        }
+    }
+
+    @Test
+    void nullKeysAndFailFastIterators() {
+        ArenaAVLTree<Integer> tree = new ArenaAVLTree<>();
+        assertThrows(NullPointerException.class, () -> tree.add(null));
+        assertTrue(tree.isEmpty());
+        for (int i = 0; i < 100; i++) tree.add(i);
+        assertThrows(NullPointerException.class, () -> tree.add(null));
+
+        Iterator<Integer> iterator = tree.iterator();
+        iterator.next();
+        tree.remove(50);
+        assertThrows(ConcurrentModificationException.class, iterator::next);
+        assertThrows(ConcurrentModificationException.class, iterator::remove);
+
+        // рост дерева после создания итератора
+        Iterator<Integer> descending = tree.descendingIterator();
+        for (int i = 100; i < 10000; i++) tree.add(i);
+        assertThrows(ConcurrentModificationException.class, descending::next);
+
+        // удаление через сам итератор fail-fast не вызывает
+        for (Iterator<Integer> removing = tree.iterator(); removing.hasNext(); ) {
+            if (removing.next() % 3 != 0) removing.remove();
+        }
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertEquals(3334, tree.size());
+    }
+
+    @Test
+    void clearKeepsCapacity() {
+        ArenaAVLTree<Integer> tree = new ArenaAVLTree<>(1000, true);
+        int capacity = tree.capacity();
+        for (int i = 0; i < 1000; i++) tree.add(i);
+        tree.clear();
+        assertTrue(tree.isEmpty());
+        assertEquals(capacity, tree.capacity(), "clear() сбросил заданную емкость.");
+        for (int i = 1000; i > 0; i--) tree.add(i);
+        assertEquals(capacity, tree.capacity(), "Ячейки после clear() не переиспользуются.");
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertEquals(1000, tree.size());
+        assertEquals(Integer.valueOf(1), tree.first());
+        assertEquals(Integer.valueOf(1000), tree.last());
+    }
+}
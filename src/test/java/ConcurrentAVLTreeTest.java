@@ -0,0 +1,158 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class ConcurrentAVLTreeTest {
+
+    @Test
+    void singleThread() {
+        Random random = new Random();
+        ConcurrentAVLTree<Integer> tree = new ConcurrentAVLTree<>();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) {
+            int value = random.nextInt(500);
+            if (random.nextBoolean())
+                assertEquals(controlSet.add(value), tree.add(value), "Неверный результат добавления " + value);
+            else
+                assertEquals(controlSet.remove(value), tree.remove(value), "Неверный результат удаления " + value);
+        }
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertEquals(controlSet.size(), tree.size());
+        assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+        assertEquals(new ArrayList<>(controlSet.descendingSet()), new ArrayList<>(tree.descendingSet()));
+        for (int key = -1; key < 502; key++) {
+            assertEquals(controlSet.lower(key), tree.lower(key));
+            assertEquals(controlSet.floor(key), tree.floor(key));
+            assertEquals(controlSet.ceiling(key), tree.ceiling(key));
+            assertEquals(controlSet.higher(key), tree.higher(key));
+        }
+        assertEquals(new ArrayList<>(controlSet.subSet(100, true, 200, false)),
+                new ArrayList<>(tree.subSet(100, true, 200, false)));
+        assertEquals(controlSet.pollFirst(), tree.pollFirst());
+        assertEquals(controlSet.pollLast(), tree.pollLast());
+    }
+
+    @Test
+    void concurrentWriters() throws Exception {
+        // каждый писатель работает со своими ключами (остаток от деления на число потоков),
+        // читатели параллельно проверяют, что навигация не теряет неизменяемые ключи
+        ConcurrentAVLTree<Integer> tree = new ConcurrentAVLTree<>();
+        int threads = 8;
+        for (int key = 0; key < 10000; key += 10) tree.add(-key - 1); // отрицательные ключи не меняются
+        ExecutorService executor = Executors.newFixedThreadPool(threads * 2);
+        List<Future<NavigableSet<Integer>>> writers = new ArrayList<>();
+        AtomicBoolean done = new AtomicBoolean(false);
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            writers.add(executor.submit(() -> {
+                Random random = new Random(id);
+                NavigableSet<Integer> own = new TreeSet<>();
+                for (int i = 0; i < 20000; i++) {
+                    int value = random.nextInt(1000) * threads + id;
+                    if (random.nextBoolean()) {
+                        assertEquals(own.add(value), tree.add(value));
+                    } else {
+                        assertEquals(own.remove(value), tree.remove(value));
+                    }
+                }
+                return own;
+            }));
+        }
+        List<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            readers.add(executor.submit(() -> {
+                Random random = new Random();
+                while (!done.get()) {
+                    int key = random.nextInt(1000) * 10;
+                    assertTrue(tree.contains(-key - 1));
+                    assertEquals(-key - 1, (int) tree.floor(-key - 1));
+                    assertEquals(-key - 1, (int) tree.lower(-key));
+                }
+            }));
+        }
+        NavigableSet<Integer> expected = new TreeSet<>();
+        for (int key = 0; key < 10000; key += 10) expected.add(-key - 1);
+        for (Future<NavigableSet<Integer>> writer : writers) expected.addAll(writer.get());
+        done.set(true);
+        for (Future<?> reader : readers) reader.get();
+        executor.shutdown();
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertEquals(new ArrayList<>(expected), new ArrayList<>(tree));
+        assertEquals(expected.size(), tree.size());
+    }
+
+    @Test
+    void contendedKeysAgainstSkipList() throws Exception {
+        // все писатели работают с одними и теми же ключами; для каждого ключа считается разность
+        // успешных добавлений и удалений - в конце она должна быть 0 или 1 и совпадать с содержимым дерева
+        ConcurrentAVLTree<Integer> tree = new ConcurrentAVLTree<>();
+        int threads = 8;
+        int keys = 512;
+        AtomicIntegerArray balance = new AtomicIntegerArray(keys);
+        ExecutorService executor = Executors.newFixedThreadPool(threads * 2);
+        AtomicBoolean done = new AtomicBoolean(false);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            writers.add(executor.submit(() -> {
+                Random random = new Random(id);
+                for (int i = 0; i < 50000; i++) {
+                    int value = random.nextInt(keys);
+                    int operation = random.nextInt(100);
+                    if (operation < 48) {
+                        if (tree.add(value)) balance.incrementAndGet(value);
+                    } else if (operation < 96) {
+                        if (tree.remove(value)) balance.decrementAndGet(value);
+                    } else {
+                        Integer polled = operation < 98 ? tree.pollFirst() : tree.pollLast();
+                        if (polled != null) balance.decrementAndGet(polled);
+                    }
+                }
+            }));
+        }
+        List<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            readers.add(executor.submit(() -> {
+                Random random = new Random();
+                while (!done.get()) {
+                    int key = random.nextInt(keys);
+                    Integer floor = tree.floor(key);
+                    Integer higher = tree.higher(key);
+                    assertTrue(floor == null || floor <= key, "floor(" + key + ") = " + floor);
+                    assertTrue(higher == null || higher > key, "higher(" + key + ") = " + higher);
+                    Integer previous = null;
+                    for (Integer value : tree.subSet(key, true, key + 64, false)) {
+                        assertTrue(previous == null || previous < value, "Итератор нарушил порядок.");
+                        assertTrue(value >= key && value < key + 64, "Итератор вышел за границы диапазона.");
+                        previous = value;
+                    }
+                }
+            }));
+        }
+        for (Future<?> writer : writers) writer.get();
+        done.set(true);
+        for (Future<?> reader : readers) reader.get();
+        executor.shutdown();
+
+        NavigableSet<Integer> expected = new ConcurrentSkipListSet<>();
+        for (int key = 0; key < keys; key++) {
+            int count = balance.get(key);
+            assertTrue(count == 0 || count == 1, "Ключ " + key + " добавлен или удален лишний раз: " + count);
+            if (count == 1) expected.add(key);
+        }
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        assertEquals(expected.size(), tree.size());
+        assertEquals(new ArrayList<>(expected), new ArrayList<>(tree));
+        for (int key = 0; key < keys; key++)
+            assertEquals(expected.contains(key), tree.contains(key), "Неверный contains(" + key + ")");
+        tree.clear();
+        assertTrue(tree.isEmpty());
+        assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+    }
+}
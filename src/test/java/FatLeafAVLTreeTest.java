@@ -0,0 +1,115 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class FatLeafAVLTreeTest {
+
+    private void randomOperations(FatLeafAVLTree<Integer> tree, int range) {
+        Random random = new Random();
+        NavigableSet<Integer> controlSet = new TreeSet<>(tree.comparator());
+        for (int i = 0; i < 40000; i++) {
+            int value = random.nextInt(range);
+            // сначала преобладают вставки, чтобы листья делились, затем удаления - чтобы сливались
+            if (random.nextInt(3) != 0 == i < 20000)
+                assertEquals(controlSet.add(value), tree.add(value), "Неверный результат добавления " + value);
+            else
+                assertEquals(controlSet.remove(value), tree.remove(value), "Неверный результат удаления " + value);
+            if (i % 100 == 0) assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        }
+        assertEquals(controlSet.size(), tree.size());
+        assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+        assertEquals(new ArrayList<>(controlSet.descendingSet()), new ArrayList<>(tree.descendingSet()));
+        for (int key = -1; key < range + 2; key++) {
+            assertEquals(controlSet.contains(key), tree.contains(key));
+            assertEquals(controlSet.lower(key), tree.lower(key));
+            assertEquals(controlSet.floor(key), tree.floor(key));
+            assertEquals(controlSet.ceiling(key), tree.ceiling(key));
+            assertEquals(controlSet.higher(key), tree.higher(key));
+        }
+    }
+
+    @Test
+    void addAndRemove() {
+        randomOperations(new FatLeafAVLTree<>(), 5000);
+        randomOperations(new FatLeafAVLTree<>(null, 4), 2000);
+        randomOperations(new FatLeafAVLTree<>(Comparator.reverseOrder(), 16), 3000);
+    }
+
+    @Test
+    void sortedLoadAndIteratorRemove() {
+        Random random = new Random();
+        for (int i = 0; i < 50; i++) {
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = random.nextInt(5000); j > 0; j--) controlSet.add(random.nextInt(20000));
+            FatLeafAVLTree<Integer> tree = new FatLeafAVLTree<>(controlSet);
+            assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+
+            // удаление через итератор по возрастанию и по убыванию
+            boolean descending = i % 2 == 0;
+            Iterator<Integer> iterator = descending ? tree.descendingIterator() : tree.iterator();
+            Iterator<Integer> controlIterator = descending ? controlSet.descendingIterator() : controlSet.iterator();
+            while (controlIterator.hasNext()) {
+                assertTrue(iterator.hasNext());
+                Integer value = controlIterator.next();
+                assertEquals(value, iterator.next());
+                if (value % 3 != 0) {
+                    controlIterator.remove();
+                    iterator.remove();
+                }
+            }
+            assertFalse(iterator.hasNext());
+            assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+        }
+        FatLeafAVLTree<Integer> tree = new FatLeafAVLTree<>();
+        tree.add(1);
+        Iterator<Integer> iterator = tree.iterator();
+        tree.add(2);
+        assertThrows(ConcurrentModificationException.class, iterator::next);
+    }
+
+    @Test
+    void views() {
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            NavigableSet<Integer> tree = new FatLeafAVLTree<>(null, 8);
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = 0; j < 200; j++) {
+                int value = random.nextInt(400);
+                controlSet.add(value);
+                tree.add(value);
+            }
+            int from = random.nextInt(200);
+            int to = from + 1 + random.nextInt(200);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            List<NavigableSet<Integer>> controls = Arrays.asList(
+                    controlSet.subSet(from, fromInclusive, to, toInclusive),
+                    controlSet.headSet(to, toInclusive),
+                    controlSet.tailSet(from, fromInclusive),
+                    controlSet.descendingSet().subSet(to, toInclusive, from, fromInclusive));
+            List<NavigableSet<Integer>> views = Arrays.asList(
+                    tree.subSet(from, fromInclusive, to, toInclusive),
+                    tree.headSet(to, toInclusive),
+                    tree.tailSet(from, fromInclusive),
+                    tree.descendingSet().subSet(to, toInclusive, from, fromInclusive));
+            for (int v = 0; v < views.size(); v++) {
+                NavigableSet<Integer> control = controls.get(v);
+                NavigableSet<Integer> view = views.get(v);
+                assertEquals(new ArrayList<>(control), new ArrayList<>(view));
+                assertEquals(control.size(), view.size());
+                for (int key = -1; key < 402; key++) {
+                    assertEquals(control.floor(key), view.floor(key));
+                    assertEquals(control.ceiling(key), view.ceiling(key));
+                }
+            }
+            views.get(0).clear();
+            controls.get(0).clear();
+            assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class IntAVLTreeTest {
+
+    private static int orNoEntry(Integer value, IntAVLTree tree) {
+        return value == null ? tree.getNoEntryKey() : value;
+    }
+
+    @Test
+    void addRemove() {
+        Random random = new Random();
+        IntAVLTree tree = new IntAVLTree();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) {
+            int value = random.nextInt(500) - 250;
+            if (random.nextBoolean())
+                assertEquals(controlSet.add(value), tree.add(value), "Неверный результат добавления " + value);
+            else
+                assertEquals(controlSet.remove(value), tree.remove(value), "Неверный результат удаления " + value);
+            if (i % 100 == 0) assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        }
+        assertEquals(controlSet.size(), tree.size());
+        assertArrayEquals(controlSet.stream().mapToInt(Integer::intValue).toArray(), tree.toArray());
+        for (int element : controlSet) {
+            assertTrue(tree.contains(element));
+        }
+    }
+
+    @Test
+    void navigation() {
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            IntAVLTree tree = new IntAVLTree();
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = 0; j < 50; j++) {
+                int value = random.nextInt(200);
+                controlSet.add(value);
+                tree.add(value);
+            }
+            for (int key = -5; key < 205; key++) {
+                assertEquals(orNoEntry(controlSet.lower(key), tree), tree.lower(key));
+                assertEquals(orNoEntry(controlSet.floor(key), tree), tree.floor(key));
+                assertEquals(orNoEntry(controlSet.higher(key), tree), tree.higher(key));
+                assertEquals(orNoEntry(controlSet.ceiling(key), tree), tree.ceiling(key));
+            }
+            assertEquals((int) controlSet.first(), tree.first());
+            assertEquals((int) controlSet.last(), tree.last());
+            assertEquals((int) controlSet.pollFirst(), tree.pollFirst());
+            assertEquals((int) controlSet.pollLast(), tree.pollLast());
+
+            PrimitiveIterator.OfInt descending = tree.descendingIterator();
+            for (Iterator<Integer> control = controlSet.descendingIterator(); control.hasNext(); ) {
+                assertEquals((int) control.next(), descending.nextInt());
+            }
+            assertFalse(descending.hasNext());
+        }
+        IntAVLTree empty = new IntAVLTree(-1);
+        assertEquals(-1, empty.floor(5));
+        assertEquals(-1, empty.pollFirst());
+        assertThrows(NoSuchElementException.class, empty::first);
+    }
+
+    @Test
+    void subSets() {
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            IntAVLTree tree = new IntAVLTree();
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = 0; j < 50; j++) {
+                int value = random.nextInt(200);
+                controlSet.add(value);
+                tree.add(value);
+            }
+            int from = random.nextInt(100);
+            int to = from + random.nextInt(100);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            List<NavigableSet<Integer>> controls = Arrays.asList(
+                    controlSet.subSet(from, fromInclusive, to, toInclusive),
+                    controlSet.headSet(to, toInclusive),
+                    controlSet.tailSet(from, fromInclusive));
+            List<IntAVLTree.SubSet> views = Arrays.asList(
+                    tree.subSet(from, fromInclusive, to, toInclusive),
+                    tree.headSet(to, toInclusive),
+                    tree.tailSet(from, fromInclusive));
+            for (int v = 0; v < views.size(); v++) {
+                NavigableSet<Integer> control = controls.get(v);
+                IntAVLTree.SubSet view = views.get(v);
+                assertEquals(control.size(), view.size());
+                assertEquals(control.isEmpty(), view.isEmpty());
+                for (int key = -5; key < 205; key++) {
+                    assertEquals(control.contains(key), view.contains(key));
+                    assertEquals(orNoEntry(control.lower(key), tree), view.lower(key), "lower " + key);
+                    assertEquals(orNoEntry(control.floor(key), tree), view.floor(key), "floor " + key);
+                    assertEquals(orNoEntry(control.higher(key), tree), view.higher(key), "higher " + key);
+                    assertEquals(orNoEntry(control.ceiling(key), tree), view.ceiling(key), "ceiling " + key);
+                }
+                PrimitiveIterator.OfInt iterator = view.iterator();
+                for (int element : control) {
+                    assertEquals(element, iterator.nextInt());
+                }
+                assertFalse(iterator.hasNext());
+                if (!control.isEmpty()) {
+                    assertEquals((int) control.first(), view.first());
+                    assertEquals((int) control.last(), view.last());
+                } else {
+                    assertThrows(NoSuchElementException.class, view::first);
+                }
+            }
+            IntAVLTree.SubSet view = views.get(0);
+            NavigableSet<Integer> control = controls.get(0);
+            assertEquals(orNoEntry(control.pollFirst(), tree), view.pollFirst());
+            PrimitiveIterator.OfInt iterator = view.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.nextInt() % 2 == 0) iterator.remove();
+            }
+            control.removeIf(element -> element % 2 == 0);
+            assertArrayEquals(controlSet.stream().mapToInt(Integer::intValue).toArray(), tree.toArray());
+            assertTrue(tree.checkInvariant());
+        }
+    }
+
+    @Test
+    void iteratorRemoveAndFailFast() {
+        Random random = new Random();
+        for (int i = 0; i < 50; i++) {
+            IntAVLTree tree = new IntAVLTree();
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = random.nextInt(2000); j > 0; j--) {
+                int value = random.nextInt(5000);
+                controlSet.add(value);
+                tree.add(value);
+            }
+            // удаление по ходу обхода в обе стороны, в том числе в представлении
+            boolean descending = i % 2 == 0;
+            PrimitiveIterator.OfInt iterator = i % 3 == 0 ? tree.subSet(1000, true, 4000, false).iterator()
+                    : descending ? tree.descendingIterator() : tree.iterator();
+            NavigableSet<Integer> controlView = i % 3 == 0 ? controlSet.subSet(1000, true, 4000, false) : controlSet;
+            Iterator<Integer> controlIterator = i % 3 == 0 ? controlView.iterator()
+                    : descending ? controlView.descendingIterator() : controlView.iterator();
+            while (controlIterator.hasNext()) {
+                assertTrue(iterator.hasNext());
+                int value = controlIterator.next();
+                assertEquals(value, iterator.nextInt());
+                if (random.nextInt(3) != 0) {
+                    controlIterator.remove();
+                    iterator.remove();
+                    assertThrows(IllegalStateException.class, iterator::remove);
+                }
+            }
+            assertFalse(iterator.hasNext());
+            assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertArrayEquals(controlSet.stream().mapToInt(Integer::intValue).toArray(), tree.toArray());
+        }
+        // изменение дерева в обход итератора, в том числе рост дерева выше исходной высоты
+        IntAVLTree tree = new IntAVLTree();
+        tree.add(1);
+        PrimitiveIterator.OfInt iterator = tree.iterator();
+        for (int i = 2; i < 1000; i++) tree.add(i);
+        assertThrows(ConcurrentModificationException.class, iterator::nextInt);
+        PrimitiveIterator.OfInt removing = tree.iterator();
+        removing.nextInt();
+        tree.remove(500);
+        assertThrows(ConcurrentModificationException.class, removing::remove);
+    }
+}
@@ -0,0 +1,171 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class LongAVLTreeTest {
+
+    private static long orNoEntry(Integer value, LongAVLTree tree) {
+        return value == null ? tree.getNoEntryKey() : value;
+    }
+
+    @Test
+    void addRemove() {
+        Random random = new Random();
+        LongAVLTree tree = new LongAVLTree();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) {
+            int value = random.nextInt(500) - 250;
+            if (random.nextBoolean())
+                assertEquals(controlSet.add(value), tree.add(value), "Неверный результат добавления " + value);
+            else
+                assertEquals(controlSet.remove(value), tree.remove(value), "Неверный результат удаления " + value);
+            if (i % 100 == 0) assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        }
+        assertEquals(controlSet.size(), tree.size());
+        assertArrayEquals(controlSet.stream().mapToLong(Integer::longValue).toArray(), tree.toArray());
+        for (int element : controlSet) {
+            assertTrue(tree.contains(element));
+        }
+    }
+
+    @Test
+    void navigation() {
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            LongAVLTree tree = new LongAVLTree();
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = 0; j < 50; j++) {
+                int value = random.nextInt(200);
+                controlSet.add(value);
+                tree.add(value);
+            }
+            for (int key = -5; key < 205; key++) {
+                assertEquals(orNoEntry(controlSet.lower(key), tree), tree.lower(key));
+                assertEquals(orNoEntry(controlSet.floor(key), tree), tree.floor(key));
+                assertEquals(orNoEntry(controlSet.higher(key), tree), tree.higher(key));
+                assertEquals(orNoEntry(controlSet.ceiling(key), tree), tree.ceiling(key));
+            }
+            assertEquals((long) controlSet.first(), tree.first());
+            assertEquals((long) controlSet.last(), tree.last());
+            assertEquals((long) controlSet.pollFirst(), tree.pollFirst());
+            assertEquals((long) controlSet.pollLast(), tree.pollLast());
+
+            PrimitiveIterator.OfLong descending = tree.descendingIterator();
+            for (Iterator<Integer> control = controlSet.descendingIterator(); control.hasNext(); ) {
+                assertEquals((long) control.next(), descending.nextLong());
+            }
+            assertFalse(descending.hasNext());
+        }
+        LongAVLTree empty = new LongAVLTree(-1);
+        assertEquals(-1, empty.floor(5));
+        assertEquals(-1, empty.pollFirst());
+        assertThrows(NoSuchElementException.class, empty::first);
+    }
+
+    @Test
+    void subSets() {
+        Random random = new Random();
+        for (int i = 0; i < 100; i++) {
+            LongAVLTree tree = new LongAVLTree();
+            NavigableSet<Integer> controlSet = new TreeSet<>();
+            for (int j = 0; j < 50; j++) {
+                int value = random.nextInt(200);
+                controlSet.add(value);
+                tree.add(value);
+            }
+            int from = random.nextInt(100);
+            int to = from + random.nextInt(100);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            List<NavigableSet<Integer>> controls = Arrays.asList(
+                    controlSet.subSet(from, fromInclusive, to, toInclusive),
+                    controlSet.headSet(to, toInclusive),
+                    controlSet.tailSet(from, fromInclusive));
+            List<LongAVLTree.SubSet> views = Arrays.asList(
+                    tree.subSet(from, fromInclusive, to, toInclusive),
+                    tree.headSet(to, toInclusive),
+                    tree.tailSet(from, fromInclusive));
+            for (int v = 0; v < views.size(); v++) {
+                NavigableSet<Integer> control = controls.get(v);
+                LongAVLTree.SubSet view = views.get(v);
+                assertEquals(control.size(), view.size());
+                assertEquals(control.isEmpty(), view.isEmpty());
+                for (int key = -5; key < 205; key++) {
+                    assertEquals(control.contains(key), view.contains(key));
+                    assertEquals(orNoEntry(control.lower(key), tree), view.lower(key), "lower " + key);
+                    assertEquals(orNoEntry(control.floor(key), tree), view.floor(key), "floor " + key);
+                    assertEquals(orNoEntry(control.higher(key), tree), view.higher(key), "higher " + key);
+                    assertEquals(orNoEntry(control.ceiling(key), tree), view.ceiling(key), "ceiling " + key);
+                }
+                PrimitiveIterator.OfLong iterator = view.iterator();
+                for (int element : control) {
+                    assertEquals(element, iterator.nextLong());
+                }
+                assertFalse(iterator.hasNext());
+                if (!control.isEmpty()) {
+                    assertEquals((long) control.first(), view.first());
+                    assertEquals((long) control.last(), view.last());
+                } else {
+                    assertThrows(NoSuchElementException.class, view::first);
+                }
+            }
+            LongAVLTree.SubSet view = views.get(0);
+            NavigableSet<Integer> control = controls.get(0);
+            assertEquals(orNoEntry(control.pollFirst(), tree), view.pollFirst());
+            PrimitiveIterator.OfLong iterator = view.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.nextLong() % 2 == 0) iterator.remove();
+            }
+            control.removeIf(element -> element % 2 == 0);
+            assertArrayEquals(controlSet.stream().mapToLong(Integer::longValue).toArray(), tree.toArray());
+            assertTrue(tree.checkInvariant());
+        }
+    }
+
+    @Test
+    void iteratorRemoveAndFailFast() {
+        Random random = new Random();
+        for (int i = 0; i < 50; i++) {
+            LongAVLTree tree = new LongAVLTree();
+            NavigableSet<Long> controlSet = new TreeSet<>();
+            for (int j = random.nextInt(2000); j > 0; j--) {
+                long value = random.nextInt(5000);
+                controlSet.add(value);
+                tree.add(value);
+            }
+            // удаление по ходу обхода в обе стороны, в том числе в представлении
+            boolean descending = i % 2 == 0;
+            PrimitiveIterator.OfLong iterator = i % 3 == 0 ? tree.subSet(1000L, true, 4000L, false).iterator()
+                    : descending ? tree.descendingIterator() : tree.iterator();
+            NavigableSet<Long> controlView = i % 3 == 0 ? controlSet.subSet(1000L, true, 4000L, false) : controlSet;
+            Iterator<Long> controlIterator = i % 3 == 0 ? controlView.iterator()
+                    : descending ? controlView.descendingIterator() : controlView.iterator();
+            while (controlIterator.hasNext()) {
+                assertTrue(iterator.hasNext());
+                long value = controlIterator.next();
+                assertEquals(value, iterator.nextLong());
+                if (random.nextInt(3) != 0) {
+                    controlIterator.remove();
+                    iterator.remove();
+                    assertThrows(IllegalStateException.class, iterator::remove);
+                }
+            }
+            assertFalse(iterator.hasNext());
+            assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertArrayEquals(controlSet.stream().mapToLong(Long::longValue).toArray(), tree.toArray());
+        }
+        // изменение дерева в обход итератора, в том числе рост дерева выше исходной высоты
+        LongAVLTree tree = new LongAVLTree();
+        tree.add(1);
+        PrimitiveIterator.OfLong iterator = tree.iterator();
+        for (int i = 2; i < 1000; i++) tree.add(i);
+        assertThrows(ConcurrentModificationException.class, iterator::nextLong);
+        PrimitiveIterator.OfLong removing = tree.iterator();
+        removing.nextLong();
+        tree.remove(500);
+        assertThrows(ConcurrentModificationException.class, removing::remove);
+    }
+}
@@ -0,0 +1,136 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class MappedAVLTreeTest {
+    // маленькие сегменты, чтобы файл рос через отображение новых сегментов
+    private static final long SEGMENT_SIZE = 4096;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void randomOperations() throws IOException {
+        Random random = new Random();
+        Path file = directory.resolve("tree.avl");
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        try (MappedAVLTree<Integer> tree = MappedAVLTree.open(file, KeyCodec.INTEGER, null, SEGMENT_SIZE)) {
+            for (int i = 0; i < 20000; i++) {
+                int value = random.nextInt(2000);
+                if (random.nextBoolean())
+                    assertEquals(controlSet.add(value), tree.add(value), "Неверный результат добавления " + value);
+                else
+                    assertEquals(controlSet.remove(value), tree.remove(value), "Неверный результат удаления " + value);
+                if (i % 100 == 0) assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+                if (i % 1000 == 0) tree.sync();
+            }
+            assertEquals(controlSet.size(), tree.size());
+            assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+            assertEquals(new ArrayList<>(controlSet.descendingSet()), new ArrayList<>(tree.descendingSet()));
+            for (int key = -1; key < 2002; key++) {
+                assertEquals(controlSet.lower(key), tree.lower(key));
+                assertEquals(controlSet.floor(key), tree.floor(key));
+                assertEquals(controlSet.ceiling(key), tree.ceiling(key));
+                assertEquals(controlSet.higher(key), tree.higher(key));
+            }
+            assertTrue(tree.capacity() < 8192, "Освобожденные записи не переиспользуются.");
+        }
+        try (MappedAVLTree<Integer> tree = MappedAVLTree.open(file, KeyCodec.INTEGER, null, SEGMENT_SIZE)) {
+            assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+            NavigableSet<Integer> view = tree.subSet(500, true, 1500, false);
+            assertEquals(new ArrayList<>(controlSet.subSet(500, true, 1500, false)), new ArrayList<>(view));
+            view.clear();
+            controlSet.subSet(500, true, 1500, false).clear();
+            assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+        }
+    }
+
+    @Test
+    void unsyncedChangesAreNotVisible() throws IOException {
+        Path file = directory.resolve("tree.avl");
+        try (MappedAVLTree<Long> tree = MappedAVLTree.open(file, KeyCodec.LONG, Comparator.reverseOrder(), SEGMENT_SIZE)) {
+            for (long i = 0; i < 1000; i++) tree.add(i);
+            tree.sync();
+            List<Long> synced = new ArrayList<>(tree);
+            // изменения после sync() меняют только свежие записи, так что файл все еще содержит
+            // зафиксированное дерево - как его увидит процесс, открывший файл после сбоя
+            for (long i = 0; i < 1000; i += 2) tree.remove(i);
+            for (long i = 1000; i < 1500; i++) tree.add(i);
+            // отображение общее со страничным кэшем, так что копия файла - это то, что останется после сбоя
+            Path crashed = directory.resolve("crashed.avl");
+            Files.copy(file, crashed);
+            try (MappedAVLTree<Long> recovered = MappedAVLTree.open(crashed, KeyCodec.LONG, Comparator.reverseOrder(), SEGMENT_SIZE)) {
+                assertTrue(recovered.checkInvariant(), "Нарушена инвариантность дерева.");
+                assertEquals(synced, new ArrayList<>(recovered));
+            }
+            tree.sync();
+            List<Long> expected = new ArrayList<>(tree);
+            Path synchronizedCopy = directory.resolve("synced.avl");
+            Files.copy(file, synchronizedCopy);
+            try (MappedAVLTree<Long> recovered = MappedAVLTree.open(synchronizedCopy, KeyCodec.LONG, Comparator.reverseOrder(), SEGMENT_SIZE)) {
+                assertEquals(expected, new ArrayList<>(recovered));
+            }
+            // второй писатель в тот же файл не допускается
+            assertThrows(IOException.class, () -> MappedAVLTree.open(file, KeyCodec.LONG, Comparator.reverseOrder(), SEGMENT_SIZE));
+        }
+        try (MappedAVLTree<Long> reopened = MappedAVLTree.open(file, KeyCodec.LONG, Comparator.reverseOrder(), SEGMENT_SIZE)) {
+            assertEquals(1000, reopened.size());
+        }
+    }
+
+    @Test
+    void freeRecordsReusedAfterSync() throws IOException {
+        try (MappedAVLTree<Integer> tree = MappedAVLTree.open(directory.resolve("tree.avl"), KeyCodec.INTEGER, null, SEGMENT_SIZE)) {
+            for (int i = 0; i < 1000; i++) tree.add(i);
+            tree.sync();
+            int capacity = tree.capacity();
+            tree.clear();
+            tree.sync();
+            for (int i = 0; i < 1000; i++) tree.add(-i);
+            assertEquals(capacity, tree.capacity(), "Освобожденные записи не переиспользуются.");
+            assertEquals(1000, tree.size());
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> MappedAVLTree.open(directory.resolve("strings.avl"), KeyCodec.STRING, null));
+    }
+
+    @Test
+    void failFastIterators() throws IOException {
+        try (MappedAVLTree<Integer> tree = MappedAVLTree.open(directory.resolve("tree.avl"), KeyCodec.INTEGER, null, SEGMENT_SIZE)) {
+            tree.add(0);
+            // рост дерева после создания итератора: старый стек был бы мал для новой высоты
+            Iterator<Integer> growing = tree.iterator();
+            for (int i = 1; i < 999; i++) tree.add(i);
+            assertThrows(ConcurrentModificationException.class, growing::next);
+
+            Iterator<Integer> iterator = tree.iterator();
+            iterator.next();
+            tree.remove(500);
+            assertThrows(ConcurrentModificationException.class, iterator::next);
+            assertThrows(ConcurrentModificationException.class, iterator::remove);
+
+            // sync() снова выдает освобожденные записи, номера в стеке итератора устаревают
+            Iterator<Integer> descending = tree.descendingIterator();
+            descending.next();
+            tree.sync();
+            assertThrows(ConcurrentModificationException.class, descending::next);
+
+            // удаление через сам итератор fail-fast не вызывает
+            for (Iterator<Integer> removing = tree.iterator(); removing.hasNext(); ) {
+                if (removing.next() % 3 != 0) removing.remove();
+            }
+            assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+            assertEquals(333, tree.size());
+            tree.clear();
+            assertTrue(tree.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+class PersistentAVLTreeTest {
+
+    @Test
+    void addRemove() {
+        Random random = new Random();
+        PersistentAVLTree<Integer> tree = new PersistentAVLTree<>();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 20000; i++) {
+            int value = random.nextInt(500);
+            if (random.nextBoolean())
+                assertEquals(controlSet.add(value), tree.add(value), "Неверный результат добавления " + value);
+            else
+                assertEquals(controlSet.remove(value), tree.remove(value), "Неверный результат удаления " + value);
+            if (i % 100 == 0) assertTrue(tree.checkInvariant(), "Нарушена инвариантность дерева.");
+        }
+        assertEquals(controlSet.size(), tree.size());
+        assertEquals(new ArrayList<>(controlSet), new ArrayList<>(tree));
+        assertEquals(new ArrayList<>(controlSet.descendingSet()), new ArrayList<>(tree.descendingSet()));
+        for (int key = -1; key < 502; key++) {
+            assertEquals(controlSet.lower(key), tree.lower(key));
+            assertEquals(controlSet.floor(key), tree.floor(key));
+            assertEquals(controlSet.ceiling(key), tree.ceiling(key));
+            assertEquals(controlSet.higher(key), tree.higher(key));
+        }
+        assertEquals(controlSet.pollFirst(), tree.pollFirst());
+        assertEquals(controlSet.pollLast(), tree.pollLast());
+        // размер представлений считается по размерам поддеревьев
+        for (int from = -1; from < 502; from += 7) {
+            int to = from + random.nextInt(200);
+            boolean fromInclusive = random.nextBoolean();
+            boolean toInclusive = random.nextBoolean();
+            assertEquals(controlSet.subSet(from, fromInclusive, to, toInclusive).size(),
+                    tree.subSet(from, fromInclusive, to, toInclusive).size());
+            assertEquals(controlSet.headSet(to, toInclusive).size(), tree.headSet(to, toInclusive).size());
+            assertEquals(controlSet.tailSet(from, fromInclusive).descendingSet().size(),
+                    tree.tailSet(from, fromInclusive).descendingSet().size());
+        }
+    }
+
+    @Test
+    void snapshots() {
+        Random random = new Random();
+        PersistentAVLTree<Integer> tree = new PersistentAVLTree<>();
+        List<PersistentAVLTree<Integer>> snapshots = new ArrayList<>();
+        List<List<Integer>> expected = new ArrayList<>();
+        NavigableSet<Integer> controlSet = new TreeSet<>();
+        for (int i = 0; i < 50; i++) {
+            for (int j = 0; j < 20; j++) {
+                int value = random.nextInt(300);
+                if (random.nextBoolean()) {
+                    tree.add(value);
+                    controlSet.add(value);
+                } else {
+                    tree.remove(value);
+                    controlSet.remove(value);
+                }
+            }
+            snapshots.add(tree.snapshot());
+            expected.add(new ArrayList<>(controlSet));
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            PersistentAVLTree<Integer> snapshot = snapshots.get(i);
+            assertTrue(snapshot.isFrozen());
+            assertEquals(expected.get(i), new ArrayList<>(snapshot), "Снимок изменился после изменения дерева.");
+            assertEquals(expected.get(i).size(), snapshot.size());
+        }
+        PersistentAVLTree<Integer> snapshot = tree.snapshot();
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.add(1000));
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.remove(1000));
+        assertThrows(UnsupportedOperationException.class, snapshot::pollFirst);
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.headSet(100).clear());
+
+        Iterator<Integer> iterator = tree.iterator();
+        tree.clear();
+        assertEquals(expected.get(expected.size() - 1), iterate(iterator), "Итератор должен обходить свою версию дерева.");
+        assertEquals(expected.get(expected.size() - 1), new ArrayList<>(snapshot));
+    }
+
+    private List<Integer> iterate(Iterator<Integer> iterator) {
+        List<Integer> result = new ArrayList<>();
+        iterator.forEachRemaining(result::add);
+        return result;
+    }
+
+    @Test
+    void readersScanSnapshotsWhileWriterMutates() throws Exception {
+        PersistentAVLTree<Integer> tree = new PersistentAVLTree<>();
+        for (int i = 0; i < 1000; i++) tree.add(i);
+        AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            readers.add(executor.submit(() -> {
+                while (!done.get()) {
+                    PersistentAVLTree<Integer> snapshot = tree.snapshot();
+                    int size = snapshot.size();
+                    int counter = 0;
+                    Integer previous = null;
+                    for (int element : snapshot) {
+                        if (previous != null) assertTrue(previous < element);
+                        previous = element;
+                        counter++;
+                    }
+                    assertEquals(size, counter, "Снимок изменился во время обхода.");
+                }
+            }));
+        }
+        Random random = new Random();
+        for (int i = 0; i < 50000; i++) {
+            int value = random.nextInt(2000);
+            if (random.nextBoolean()) tree.add(value);
+            else tree.remove(value);
+        }
+        done.set(true);
+        for (Future<?> reader : readers) reader.get();
+        executor.shutdown();
+        assertTrue(tree.checkInvariant());
+    }
+}
@@ -0,0 +1,57 @@
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TreeEventsTest {
+
+    @Test
+    void recordedEvents() throws Exception {
+        Path file = Files.createTempFile("avltree", ".jfr");
+        AVLTree<Integer> tree = new AVLTree<Integer>().recordStatistics("test");
+        try (Recording recording = new Recording()) {
+            recording.enable("avltree.Operation").withThreshold(Duration.ZERO);
+            recording.enable("avltree.Bulk");
+            recording.enable("avltree.Statistics").withPeriod(Duration.ofMillis(100));
+            recording.start();
+            for (int i = 0; i < 1000; i++) tree.add(i);
+            tree.floor(500);
+            tree.remove(500);
+            tree.addAll(Arrays.asList(5000, 5001, 5002));
+            tree.headSet(100).clear();
+            Thread.sleep(500);
+            recording.stop();
+            recording.dump(file);
+        }
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        Map<String, List<RecordedEvent>> byType = events.stream()
+                .collect(Collectors.groupingBy(event -> event.getEventType().getName()));
+
+        Set<String> operations = byType.get("avltree.Operation").stream()
+                .map(event -> event.getString("operation")).collect(Collectors.toSet());
+        assertTrue(operations.containsAll(Arrays.asList("add", "floor", "remove")), "Нет событий операций: " + operations);
+
+        Map<String, RecordedEvent> bulk = byType.get("avltree.Bulk").stream()
+                .collect(Collectors.toMap(event -> event.getString("operation"), event -> event));
+        assertEquals(3, bulk.get("addAll").getInt("argumentSize"));
+        assertEquals(999, bulk.get("addAll").getInt("sizeBefore"));
+        assertEquals(1002, bulk.get("addAll").getInt("sizeAfter"));
+        assertEquals(100, bulk.get("SubSet.clear").getInt("argumentSize"), "Неверное число удаленных элементов.");
+
+        List<RecordedEvent> periodic = byType.get("avltree.Statistics");
+        RecordedEvent statistics = periodic.get(periodic.size() - 1);
+        assertEquals("test", statistics.getString("name"));
+        assertEquals(tree.size(), statistics.getInt("size"));
+        assertEquals(tree.height(), statistics.getInt("height"));
+        assertTrue(statistics.getLong("rotations") > 0); // повороты считаются при -Davltree.metrics=true (см. pom.xml)
+    }
+}
@@ -0,0 +1,53 @@
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// запускается отдельным прогоном surefire с -Davltree.metrics=true (см. pom.xml)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class TreeMetricsTest {
+
+    @Test
+    void countersFollowOperations() {
+        long[] calls = new long[1];
+        AVLTree<Integer> tree = new AVLTree<>((first, second) -> {
+            calls[0]++;
+            return Integer.compare(first, second);
+        });
+        for (int i = 0; i < 1023; i++) tree.add(i);
+        TreeMetrics afterInsert = tree.metrics();
+        assertTrue(afterInsert.getRotations() > 0, "Последовательная вставка должна вызывать повороты.");
+        assertEquals(calls[0], afterInsert.getComparisons(), "Каждое сравнение должно учитываться.");
+
+        for (int i = 0; i < 1023; i++) assertTrue(tree.contains(i));
+        TreeMetrics afterLookup = tree.metrics();
+        assertEquals(afterInsert.getRotations(), afterLookup.getRotations(), "Поиск не должен поворачивать дерево.");
+        assertEquals(afterInsert.getDescents() + 1023, afterLookup.getDescents());
+        assertEquals(calls[0], afterLookup.getComparisons());
+        assertEquals(afterLookup.getDescents(), Arrays.stream(afterLookup.getPathLengthHistogram()).sum());
+        assertTrue(afterLookup.getAveragePathLength() <= tree.height(), "Путь не может быть длиннее высоты.");
+        assertEquals(afterLookup.getRotations(), afterLookup.toMap().get("rotations"));
+        assertNotSame(tree.metrics(), tree.metrics(), "Снимок не должен меняться вместе с деревом.");
+    }
+
+    // горячий цикл вставок и удалений со скомпилированной проверкой инварианта; с включенными метриками
+    // C2 выносил чтение right.height выше проверки right == null, и JVM падала с SIGSEGV. Тест идет первым:
+    // падение воспроизводится, только пока compare() не видел дерева с компаратором
+    @Test
+    @Order(1)
+    void invariantUnderCompiledChecks() {
+        for (int round = 0; round < 20; round++) {
+            Random random = new Random(round);
+            AVLTree<Integer> tree = new AVLTree<>();
+            for (int i = 0; i < 50000; i++) {
+                int key = random.nextInt(1000);
+                if (random.nextBoolean()) tree.add(key); else tree.remove(key);
+                if (i % 500 == 0) assertTrue(tree.checkInvariant(), "Нарушен инвариант дерева.");
+            }
+        }
+    }
+}